@@ -0,0 +1,217 @@
+package ru.zkir.urbaneye3d;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+/**
+ * Building-related tags of a primitive, parsed once when the primitive is registered in the Scene.
+ * Tag change makes the primitive dirty, so the snapshot is re-created then.
+ *
+ * Numeric tags are NaN if the tag is missing or cannot be parsed, so that defaults can be applied.
+ * String tags are null if missing.
+ */
+final class BuildingTags {
+    static final double DEFAULT_LEVELS_NUMBER = 2;
+    static final double DEFAULT_LEVEL_HEIGHT = 3;
+    static final double METERS_PER_FOOT = 0.3048;
+
+    final String building;
+    final String buildingPart;
+
+    final double height;        // height, or building:height
+    final double levels;
+    final double minHeight;
+    final double minLevel;
+    final double roofHeight;
+    final double roofLevels;
+
+    final String roofShape;
+    final String roofDirection;
+    final String roofOrientation;
+    // inheritable from the parent building
+    final String colour;
+    final String roofColour;
+
+    // tags of the snapshot, values are collected in one pass over the tags of the primitive.
+    private static final int BUILDING = 0;
+    private static final int BUILDING_PART = 1;
+    private static final int HEIGHT = 2;
+    private static final int BUILDING_HEIGHT = 3;
+    private static final int LEVELS = 4;
+    private static final int MIN_HEIGHT = 5;
+    private static final int MIN_LEVEL = 6;
+    private static final int ROOF_HEIGHT = 7;
+    private static final int ROOF_LEVELS = 8;
+    private static final int ROOF_SHAPE = 9;
+    private static final int ROOF_DIRECTION = 10;
+    private static final int ROOF_ORIENTATION = 11;
+    private static final int COLOUR = 12;
+    private static final int ROOF_COLOUR = 13;
+    private static final int TAG_COUNT = 14;
+
+    BuildingTags(OsmPrimitive primitive) {
+        String[] values = new String[TAG_COUNT];
+        primitive.visitKeys((tagged, key, value) -> {
+            int tag = tagIndex(key);
+            if (tag >= 0) {
+                values[tag] = value;
+            }
+        });
+        building = values[BUILDING];
+        buildingPart = values[BUILDING_PART];
+
+        double value = parseLength(values[HEIGHT]);
+        height = Double.isNaN(value) ? parseLength(values[BUILDING_HEIGHT]) : value;
+        levels = parseLength(values[LEVELS]);
+        minHeight = parseLength(values[MIN_HEIGHT]);
+        minLevel = parseLength(values[MIN_LEVEL]);
+        roofHeight = parseLength(values[ROOF_HEIGHT]);
+        roofLevels = parseLength(values[ROOF_LEVELS]);
+
+        roofShape = values[ROOF_SHAPE];
+        roofDirection = values[ROOF_DIRECTION];
+        roofOrientation = values[ROOF_ORIENTATION];
+        colour = values[COLOUR];
+        roofColour = values[ROOF_COLOUR];
+    }
+
+    private static int tagIndex(String key) {
+        switch (key) {
+            case "building": return BUILDING;
+            case "building:part": return BUILDING_PART;
+            case "height": return HEIGHT;
+            case "building:height": return BUILDING_HEIGHT;
+            case "building:levels": return LEVELS;
+            case "min_height": return MIN_HEIGHT;
+            case "building:min_level": return MIN_LEVEL;
+            case "roof:height": return ROOF_HEIGHT;
+            case "roof:levels": return ROOF_LEVELS;
+            case "roof:shape": return ROOF_SHAPE;
+            case "roof:direction": return ROOF_DIRECTION;
+            case "roof:orientation": return ROOF_ORIENTATION;
+            case "building:colour": return COLOUR;
+            case "roof:colour": return ROOF_COLOUR;
+            default: return -1;
+        }
+    }
+
+    // Heights of an element, after all defaults are applied.
+    static final class Heights {
+        final double height;
+        final double minHeight;
+        final double roofHeight;
+        final String roofShape;
+
+        Heights(double height, double minHeight, double roofHeight, String roofShape) {
+            this.height = height;
+            this.minHeight = minHeight;
+            this.roofHeight = roofHeight;
+            this.roofShape = roofShape;
+        }
+    }
+
+    /**
+     * Applies defaults for missing heights.
+     *
+     * @param asBuilding element is created for the building tag, not for building:part
+     * @param parentHeight height of the parent building, NaN if there is no parent or it has no height
+     */
+    Heights resolveHeights(boolean asBuilding, double parentHeight) {
+        String shape = roofShape == null || roofShape.isEmpty() ? "flat" : roofShape;
+
+        //default values for minHeight. Tags order: min_height, minLevel
+        double resolvedMinHeight = minHeight;
+        if (Double.isNaN(resolvedMinHeight)) {
+            resolvedMinHeight = Double.isNaN(minLevel) ? 0.0 : minLevel * DEFAULT_LEVEL_HEIGHT;
+        }
+
+        //default value for roof:height
+        double resolvedRoofHeight = roofHeight;
+        if (Double.isNaN(resolvedRoofHeight)) {
+            if (!Double.isNaN(roofLevels)) {
+                resolvedRoofHeight = roofLevels * DEFAULT_LEVEL_HEIGHT;
+            } else {
+                resolvedRoofHeight = shape.equals("flat") ? 0.0 : 1.0 * DEFAULT_LEVEL_HEIGHT;
+            }
+        }
+
+        //default values for height. Tags order: height, building:levels+roof:levels, default height or parent height
+        double resolvedHeight = height;
+        if (Double.isNaN(resolvedHeight)) {
+            double resolvedLevels = levels;
+            if (asBuilding && Double.isNaN(resolvedLevels)) {
+                resolvedLevels = DEFAULT_LEVELS_NUMBER;
+            }
+            if (!Double.isNaN(resolvedLevels)) {
+                //roof:levels are not included into levels, so we can do this increment
+                resolvedHeight = resolvedLevels * DEFAULT_LEVEL_HEIGHT + resolvedRoofHeight;
+            } else {
+                //This is a very controversial feature. There are a lot of building parts without height,
+                //which are not rendered in any 3D renderer. So they can look strange.
+                //Parent height can be missing if building part is orphan, or spatial containment check failed.
+                resolvedHeight = Double.isNaN(parentHeight) ? 0.0 : parentHeight;
+            }
+        }
+
+        if (resolvedHeight < resolvedMinHeight) {
+            // this it not a defined behaviour, so we can do anything.
+            // disappearing buildings are not nice, so let's limit height.
+            resolvedHeight = resolvedMinHeight;
+        }
+        return new Heights(resolvedHeight, resolvedMinHeight, resolvedRoofHeight, shape);
+    }
+
+    // value of the tag for which the element is created: building or building:part
+    String getSourceValue(boolean asBuilding) {
+        return asBuilding ? building : buildingPart;
+    }
+
+    /**
+     * Numeric tag value: "12", "12 m", "12m", "40 ft", "40ft", "40'", "40'6\"".
+     * Feet are converted to metres, anything after the first space other than a unit is ignored.
+     *
+     * @return NaN if the value is missing or is not a number
+     */
+    static double parseLength(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        String number = value;
+        double scale = 1;
+        int space = value.indexOf(' ');
+        if (space >= 0) {
+            number = value.substring(0, space);
+            String unit = value.substring(space + 1).trim();
+            if (unit.equals("ft") || unit.equals("feet")) {
+                scale = METERS_PER_FOOT;
+            }
+        }
+
+        double inches = 0;
+        if (number.endsWith("m")) {
+            number = number.substring(0, number.length() - 1);
+        } else if (number.endsWith("ft")) {
+            number = number.substring(0, number.length() - 2);
+            scale = METERS_PER_FOOT;
+        } else if (number.indexOf('\'') > 0) {
+            // feet and inches
+            int quote = number.indexOf('\'');
+            String rest = number.substring(quote + 1);
+            number = number.substring(0, quote);
+            scale = METERS_PER_FOOT;
+            if (rest.endsWith("\"")) {
+                inches = parseNumber(rest.substring(0, rest.length() - 1));
+            } else if (!rest.isEmpty()) {
+                return Double.NaN;
+            }
+        }
+        return (parseNumber(number) + inches / 12) * scale;
+    }
+
+    private static double parseNumber(String number) {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
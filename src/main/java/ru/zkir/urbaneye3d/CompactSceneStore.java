@@ -0,0 +1,142 @@
+package ru.zkir.urbaneye3d;
+
+import ru.zkir.urbaneye3d.roofgenerators.RoofShapes;
+
+import java.awt.Color;
+
+/**
+ * Compact read-only view of the scene elements, used in compact store mode (urbaneye3d.compact_store.enabled).
+ *
+ * Element attributes are kept in parallel primitive arrays, and the geometries of all elements and all levels of detail
+ * in one shared vertex arena and one shared index arena, instead of a few dozen objects per element.
+ * Geometry is handed over to the store when an element is built (see Scene.completeUpdate), before the element
+ * is cached or published, so elements never change after that, and the renderer reads geometry from here.
+ *
+ * The arrays belong to CompactStoreArena, which is shared by all views. View is immutable: slots it refers to
+ * are not freed or overwritten while the snapshot of the view can be in use.
+ * Elements are addressed by their position in the snapshot.
+ */
+public final class CompactSceneStore {
+    // slot of the element at the snapshot position
+    private final int[] elementSlots;
+
+    // origins are float offsets (metres) from the base: float is enough for a city, and takes half the space.
+    final double baseX;
+    final double baseY;
+    final float[] originOffsetX;
+    final float[] originOffsetY;
+
+    final float[] minHeights;
+    final float[] wallHeights;
+    final float[] heights;
+    final int[] colors;         // packed 0xRRGGBB
+    final int[] roofColors;
+    final byte[] roofShapes;    // RoofShapes ordinal
+
+    // geometry of slot s at level of detail lod is elementGeometries[3 * s + lod]. Levels can share the same geometry.
+    final int[] elementGeometries;
+
+    // geometries. Indices are absolute (into the whole vertex arena), triangles of a geometry come first, then its lines.
+    final int[] vertexStarts;
+    final int[] vertexCounts;
+    final int[] triangleStarts;
+    final int[] triangleIndexCounts;
+    final int[] lineStarts;
+    final int[] lineIndexCounts;
+    final float[] bounds;       // minX, minY, minZ, maxX, maxY, maxZ per geometry, local coordinates of the element
+
+    final float[] vertices;     // ElementGeometry.VERTEX_SIZE floats per vertex
+    final int[] indices;
+
+    // ranges written to the arenas: vertex start, vertex count, index start, index count. See SceneBuffers.syncStore
+    final int[] writeLog;
+    final int writeCount;
+    final int logGeneration;
+
+    CompactSceneStore(int[] elementSlots, double baseX, double baseY, float[] originOffsetX, float[] originOffsetY,
+                      float[] minHeights, float[] wallHeights, float[] heights, int[] colors, int[] roofColors,
+                      byte[] roofShapes, int[] elementGeometries, int[] vertexStarts, int[] vertexCounts,
+                      int[] triangleStarts, int[] triangleIndexCounts, int[] lineStarts, int[] lineIndexCounts,
+                      float[] bounds, float[] vertices, int[] indices, int[] writeLog, int writeCount, int logGeneration) {
+        this.elementSlots = elementSlots;
+        this.baseX = baseX;
+        this.baseY = baseY;
+        this.originOffsetX = originOffsetX;
+        this.originOffsetY = originOffsetY;
+        this.minHeights = minHeights;
+        this.wallHeights = wallHeights;
+        this.heights = heights;
+        this.colors = colors;
+        this.roofColors = roofColors;
+        this.roofShapes = roofShapes;
+        this.elementGeometries = elementGeometries;
+        this.vertexStarts = vertexStarts;
+        this.vertexCounts = vertexCounts;
+        this.triangleStarts = triangleStarts;
+        this.triangleIndexCounts = triangleIndexCounts;
+        this.lineStarts = lineStarts;
+        this.lineIndexCounts = lineIndexCounts;
+        this.bounds = bounds;
+        this.vertices = vertices;
+        this.indices = indices;
+        this.writeLog = writeLog;
+        this.writeCount = writeCount;
+        this.logGeneration = logGeneration;
+    }
+
+    public int size() {
+        return elementSlots.length;
+    }
+
+    // element: position in the snapshot
+    // origin of the element in scene metres, the same as RenderableBuildingElement.originX/originY
+    public double getOriginX(int element) {
+        return baseX + originOffsetX[elementSlots[element]];
+    }
+
+    public double getOriginY(int element) {
+        return baseY + originOffsetY[elementSlots[element]];
+    }
+
+    public double getMinHeight(int element) {
+        return minHeights[elementSlots[element]];
+    }
+
+    public double getWallHeight(int element) {
+        return wallHeights[elementSlots[element]];
+    }
+
+    public double getHeight(int element) {
+        return heights[elementSlots[element]];
+    }
+
+    public Color getColor(int element) {
+        return new Color(colors[elementSlots[element]]);
+    }
+
+    public Color getRoofColor(int element) {
+        return new Color(roofColors[elementSlots[element]]);
+    }
+
+    public RoofShapes getRoofShape(int element) {
+        return RoofShapes.values()[roofShapes[elementSlots[element]]];
+    }
+
+    // geometry of the element at the level of detail
+    public int getGeometry(int element, int lod) {
+        return elementGeometries[3 * elementSlots[element] + lod];
+    }
+
+    // geometry slots, some of them can be free
+    public int getGeometryCount() {
+        return vertexStarts.length;
+    }
+
+    public int getTriangleIndexCount(int geometry) {
+        return triangleIndexCounts[geometry];
+    }
+
+    public int getVertexCount() {
+        return vertices.length / ElementGeometry.VERTEX_SIZE;
+    }
+}
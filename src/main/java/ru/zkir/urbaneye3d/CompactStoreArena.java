@@ -0,0 +1,238 @@
+package ru.zkir.urbaneye3d;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Storage of the compact store mode. It's owned by Scene and written by the scene thread only,
+ * snapshots get read-only views of it (CompactSceneStore).
+ *
+ * Element attributes and geometries are kept in slots of growable arrays. An element is written once, when it's built,
+ * and stays until it's neither in the scene nor in the element cache (see ElementReferences). Then it's evicted,
+ * but its slots are freed (and can be reused) only when snapshots which can refer to them are released,
+ * see Scene.reclaimStorage().
+ * So the part of the arrays a view reads never changes. Arrays are grown by copying, older views keep the old arrays.
+ *
+ * Vertex and index ranges are allocated from free lists. Every geometry write is appended to the write log,
+ * so the GL thread uploads only the ranges written since its last sync.
+ */
+final class CompactStoreArena {
+    // origins are float offsets (metres) from the base: float is enough for a city, and takes half the space.
+    private boolean hasBase;
+    private double baseX;
+    private double baseY;
+
+    // element slots
+    private float[] originOffsetX = new float[64];
+    private float[] originOffsetY = new float[64];
+    private float[] minHeights = new float[64];
+    private float[] wallHeights = new float[64];
+    private float[] heights = new float[64];
+    private int[] colors = new int[64];         // packed 0xRRGGBB
+    private int[] roofColors = new int[64];
+    private byte[] roofShapes = new byte[64];   // RoofShapes ordinal
+    private int[] elementGeometries = new int[3 * 64]; // geometry slot per level of detail. Levels can share the same geometry.
+    private final Slots elementSlots = new Slots();
+    private final IdentityHashMap<RenderableBuildingElement, Integer> elementIndex = new IdentityHashMap<>();
+
+    // geometry slots. Indices are absolute (into the whole vertex arena), triangles of a geometry come first, then its lines.
+    private int[] vertexStarts = new int[64];
+    private int[] vertexCounts = new int[64];
+    private int[] triangleStarts = new int[64];
+    private int[] triangleIndexCounts = new int[64];
+    private int[] lineStarts = new int[64];
+    private int[] lineIndexCounts = new int[64];
+    private float[] bounds = new float[6 * 64]; // minX, minY, minZ, maxX, maxY, maxZ per geometry, local coordinates
+    private final Slots geometrySlots = new Slots();
+
+    private float[] vertices = new float[ElementGeometry.VERTEX_SIZE * 1024]; // VERTEX_SIZE floats per vertex
+    private int[] indices = new int[4096];
+    private final RangeAllocator vertexRanges = new RangeAllocator(Integer.MAX_VALUE);
+    private final RangeAllocator indexRanges = new RangeAllocator(Integer.MAX_VALUE);
+
+    // written ranges: vertex start, vertex count, index start, index count. Append only, a new log is started
+    // when the arenas are grown (everything is uploaded then anyway) or when the log gets too long.
+    private int[] writeLog = new int[4 * 64];
+    private int writeCount;
+    private int logGeneration; // incremented when a new log is started
+
+    /**
+     * Copies attributes and geometries of a new element. Called before the element is cached or published.
+     * @param geometries geometries of the levels of detail
+     */
+    void add(RenderableBuildingElement element, ElementGeometry[] geometries) {
+        if (!hasBase) {
+            hasBase = true;
+            baseX = element.originX;
+            baseY = element.originY;
+        }
+        int slot = elementSlots.allocate();
+        if (slot == heights.length) {
+            growElements(2 * heights.length);
+        }
+        originOffsetX[slot] = (float) (element.originX - baseX);
+        originOffsetY[slot] = (float) (element.originY - baseY);
+        minHeights[slot] = (float) element.minHeight;
+        wallHeights[slot] = (float) element.wallHeight;
+        heights[slot] = (float) element.height;
+        colors[slot] = element.color.getRGB() & 0xFFFFFF;
+        roofColors[slot] = element.roofColor.getRGB() & 0xFFFFFF;
+        roofShapes[slot] = (byte) element.roofShape.ordinal();
+        for (int lod = 0; lod < 3; lod++) {
+            int shared = -1;
+            for (int level = 0; level < lod; level++) {
+                if (geometries[level] == geometries[lod]) {
+                    shared = elementGeometries[3 * slot + level];
+                }
+            }
+            elementGeometries[3 * slot + lod] = shared >= 0 ? shared : addGeometry(geometries[lod]);
+        }
+        elementIndex.put(element, slot);
+    }
+
+    // Frees slots of evicted elements. Only when no view which can refer to them is in use!
+    // Elements of another arena are ignored.
+    void free(List<RenderableBuildingElement> elements) {
+        for (RenderableBuildingElement element : elements) {
+            Integer slot = elementIndex.remove(element);
+            if (slot == null) {
+                continue;
+            }
+            for (int lod = 0; lod < 3; lod++) {
+                int geometry = elementGeometries[3 * slot + lod];
+                boolean shared = false;
+                for (int level = 0; level < lod; level++) {
+                    shared |= elementGeometries[3 * slot + level] == geometry;
+                }
+                if (!shared) {
+                    vertexRanges.free(vertexStarts[geometry], vertexCounts[geometry]);
+                    indexRanges.free(triangleStarts[geometry], triangleIndexCounts[geometry] + lineIndexCounts[geometry]);
+                    geometrySlots.free(geometry);
+                }
+            }
+            elementSlots.free(slot);
+        }
+    }
+
+    // view of the current state for a snapshot. elements: elements of the snapshot, all of them are in the arena.
+    CompactSceneStore view(List<RenderableBuildingElement> elements) {
+        int[] slots = new int[elements.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = elementIndex.get(elements.get(i));
+        }
+        return new CompactSceneStore(slots, baseX, baseY, originOffsetX, originOffsetY, minHeights, wallHeights, heights,
+                                     colors, roofColors, roofShapes, elementGeometries,
+                                     vertexStarts, vertexCounts, triangleStarts, triangleIndexCounts, lineStarts, lineIndexCounts,
+                                     bounds, vertices, indices, writeLog, writeCount, logGeneration);
+    }
+
+    private int addGeometry(ElementGeometry geometry) {
+        int id = geometrySlots.allocate();
+        if (id == vertexStarts.length) {
+            growGeometries(2 * vertexStarts.length);
+        }
+        int vertexCount = geometry.getVertexCount();
+        int indexCount = geometry.getTriangleIndexCount() + geometry.getLineIndexCount();
+        int firstVertex = vertexRanges.allocate(vertexCount);
+        int firstIndex = indexRanges.allocate(indexCount);
+        if (vertexRanges.getTop() * ElementGeometry.VERTEX_SIZE > vertices.length || indexRanges.getTop() > indices.length) {
+            growArenas();
+        }
+
+        geometry.copyVertices(vertices, firstVertex * ElementGeometry.VERTEX_SIZE);
+        vertexStarts[id] = firstVertex;
+        vertexCounts[id] = vertexCount;
+        int offset = firstIndex;
+        triangleStarts[id] = offset;
+        triangleIndexCounts[id] = geometry.getTriangleIndexCount();
+        for (int k = 0; k < geometry.getTriangleIndexCount(); k++) {
+            indices[offset++] = firstVertex + geometry.getTriangleIndex(k);
+        }
+        lineStarts[id] = offset;
+        lineIndexCounts[id] = geometry.getLineIndexCount();
+        for (int k = 0; k < geometry.getLineIndexCount(); k++) {
+            indices[offset++] = firstVertex + geometry.getLineIndex(k);
+        }
+        bounds[6 * id] = geometry.minX;
+        bounds[6 * id + 1] = geometry.minY;
+        bounds[6 * id + 2] = geometry.minZ;
+        bounds[6 * id + 3] = geometry.maxX;
+        bounds[6 * id + 4] = geometry.maxY;
+        bounds[6 * id + 5] = geometry.maxZ;
+
+        if (writeCount * 4 == writeLog.length) {
+            if (writeLog.length >= 4 * vertexStarts.length) {
+                // log is longer than the number of geometries, uploading everything is cheaper
+                writeLog = new int[writeLog.length];
+                writeCount = 0;
+                logGeneration++;
+            } else {
+                writeLog = Arrays.copyOf(writeLog, 2 * writeLog.length);
+            }
+        }
+        writeLog[4 * writeCount] = firstVertex;
+        writeLog[4 * writeCount + 1] = vertexCount;
+        writeLog[4 * writeCount + 2] = firstIndex;
+        writeLog[4 * writeCount + 3] = indexCount;
+        writeCount++;
+        return id;
+    }
+
+    private void growElements(int capacity) {
+        originOffsetX = Arrays.copyOf(originOffsetX, capacity);
+        originOffsetY = Arrays.copyOf(originOffsetY, capacity);
+        minHeights = Arrays.copyOf(minHeights, capacity);
+        wallHeights = Arrays.copyOf(wallHeights, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+        roofColors = Arrays.copyOf(roofColors, capacity);
+        roofShapes = Arrays.copyOf(roofShapes, capacity);
+        elementGeometries = Arrays.copyOf(elementGeometries, 3 * capacity);
+    }
+
+    private void growGeometries(int capacity) {
+        vertexStarts = Arrays.copyOf(vertexStarts, capacity);
+        vertexCounts = Arrays.copyOf(vertexCounts, capacity);
+        triangleStarts = Arrays.copyOf(triangleStarts, capacity);
+        triangleIndexCounts = Arrays.copyOf(triangleIndexCounts, capacity);
+        lineStarts = Arrays.copyOf(lineStarts, capacity);
+        lineIndexCounts = Arrays.copyOf(lineIndexCounts, capacity);
+        bounds = Arrays.copyOf(bounds, 6 * capacity);
+    }
+
+    private void growArenas() {
+        int vertexCapacity = vertices.length / ElementGeometry.VERTEX_SIZE;
+        while (vertexCapacity < vertexRanges.getTop()) {
+            vertexCapacity *= 2;
+        }
+        int indexCapacity = indices.length;
+        while (indexCapacity < indexRanges.getTop()) {
+            indexCapacity *= 2;
+        }
+        vertices = Arrays.copyOf(vertices, vertexCapacity * ElementGeometry.VERTEX_SIZE);
+        indices = Arrays.copyOf(indices, indexCapacity);
+        // GL buffers are reallocated and uploaded as a whole after growth, so the log starts again
+        writeLog = new int[writeLog.length];
+        writeCount = 0;
+        logGeneration++;
+    }
+
+    // free list of slot numbers, new slots are taken at the end
+    private static final class Slots {
+        private int[] free = new int[16];
+        private int freeCount;
+        private int count;
+
+        int allocate() {
+            return freeCount > 0 ? free[--freeCount] : count++;
+        }
+
+        void free(int slot) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, 2 * free.length);
+            }
+            free[freeCount++] = slot;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ru.zkir.urbaneye3d;
 
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
 import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
 import org.openstreetmap.josm.data.osm.event.DataSetListener;
@@ -15,6 +17,8 @@ import org.openstreetmap.josm.gui.layer.LayerManager;
 import org.openstreetmap.josm.gui.layer.MainLayerManager;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.NavigatableComponent;
+import org.openstreetmap.josm.spi.preferences.Config;
+import ru.zkir.urbaneye3d.utils.Contour;
 
 import java.awt.BorderLayout;
 import java.awt.Cursor;
@@ -27,11 +31,23 @@ public class DialogWindow3D extends ToggleDialog
 {
     private final Renderer3D renderer3D;
     private final Scene scene3d = new Scene();
+    private final SceneBuilder sceneBuilder;
     private OsmDataLayer listenedLayer;
 
+    // Streaming mode: only buildings within the radius (m) around the map center are built.
+    static final String STREAMING_PREF_KEY = "urbaneye3d.streaming.enabled";
+    static final String STREAMING_RADIUS_PREF_KEY = "urbaneye3d.streaming.radius";
+    static final int DEFAULT_STREAMING_RADIUS = 2000;
+    // area is moved when the map center moves by this fraction of the radius, not on every pan.
+    private static final double STREAMING_MOVE_THRESHOLD = 0.25;
+    private LatLon streamingCenter;
+    private double streamingRadius;
+
     public DialogWindow3D(UrbanEye3dPlugin plugin) {
         super("Urban Eye 3D", "urbaneye3d", "Urban Eye 3D", null, 150, true); //path for the icon is not required, JOSM picks it up by  automatically.
         renderer3D = new Renderer3D(scene3d);
+        // scene is built in background, renderer is repainted when a new snapshot is ready.
+        sceneBuilder = new SceneBuilder(scene3d, renderer3D::repaint);
         add(renderer3D, BorderLayout.CENTER);
 
         // Register the action so the shortcut works, but don't create a menu item
@@ -68,6 +84,12 @@ public class DialogWindow3D extends ToggleDialog
     @Override
     public void destroy() {
         updateListenedLayer(null);
+        sceneBuilder.shutdown();
+        UrbanEye3dPlugin.debugMsg("Dataset events received: " + sceneBuilder.getEventsReceived() +
+                                  ", scene updates executed: " + sceneBuilder.getUpdatesExecuted());
+        UrbanEye3dPlugin.debugMsg("Last frame: elements drawn: " + renderer3D.getDrawnElements() +
+                                  ", culled: " + renderer3D.getCulledElements() +
+                                  ", triangles drawn: " + renderer3D.getDrawnTriangles());
         super.destroy();
     }
 
@@ -87,63 +109,96 @@ public class DialogWindow3D extends ToggleDialog
 
 
     private void updateData() {
-        if (listenedLayer != null) {
-            scene3d.updateData(listenedLayer.getDataSet());
-        } else {
-            scene3d.updateData(null);
+        DataSet dataSet = listenedLayer != null ? listenedLayer.getDataSet() : null;
+        updateStreamingArea(dataSet, true);
+        sceneBuilder.rebuild(dataSet);
+    }
+
+    // requests a new streaming area, if streaming is switched on/off or the map center has moved far enough.
+    private void updateStreamingArea(DataSet dataSet, boolean force) {
+        boolean enabled = Config.getPref().getBoolean(STREAMING_PREF_KEY, false);
+        LatLon center = null;
+        double radius = 0;
+        if (enabled && MainApplication.getMap() != null) {
+            NavigatableComponent mapView = MainApplication.getMap().mapView;
+            center = mapView.getProjection().eastNorth2latlon(mapView.getCenter());
+            radius = Math.max(100, Config.getPref().getInt(STREAMING_RADIUS_PREF_KEY, DEFAULT_STREAMING_RADIUS));
         }
-        renderer3D.repaint();
+
+        if (!force) {
+            if (center == null && streamingCenter == null) {
+                return;
+            }
+            if (center != null && streamingCenter != null && radius == streamingRadius) {
+                double dy = (center.lat() - streamingCenter.lat()) * Contour.METERS_PER_DEGREE;
+                double dx = (center.lon() - streamingCenter.lon()) * Contour.METERS_PER_DEGREE * Math.cos(Math.toRadians(center.lat()));
+                if (Math.sqrt(dx * dx + dy * dy) < radius * STREAMING_MOVE_THRESHOLD) {
+                    return;
+                }
+            }
+        }
+        streamingCenter = center;
+        streamingRadius = radius;
+        sceneBuilder.setStreamingArea(dataSet, center != null ? Scene.getStreamingArea(center, radius) : null);
+    }
+
+    // only the primitives affected by the event are re-meshed, not the whole scene.
+    private void updateData(AbstractDatasetChangedEvent event) {
+        sceneBuilder.update(event.getDataset(), event.getPrimitives());
     }
 
 
     // --- DataSetListener ---
     @Override
     public void dataChanged(DataChangedEvent event) {
+        //bulk change, it's not known what exactly has been changed.
         updateData();
     }
 
     @Override
     public void primitivesAdded(PrimitivesAddedEvent event) {
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void primitivesRemoved(PrimitivesRemovedEvent event) {
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void tagsChanged(TagsChangedEvent event) {
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void nodeMoved(NodeMovedEvent event) {
        //System.out.println("Event: nodeMoved");
-        updateData();
+        updateData(event);
 
     }
 
     @Override
     public void wayNodesChanged(WayNodesChangedEvent event) {
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void relationMembersChanged(RelationMembersChangedEvent event) {
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void otherDatasetChange(AbstractDatasetChangedEvent event) {
         //System.out.println("Event: otherDatasetChange");
-        updateData();
+        updateData(event);
     }
 
     @Override
     public void zoomChanged() {
         //this event is triggered for both moving and panning
         // we need to process this, because our camera always look to the center of the screen.
+        // In streaming mode buildings around the new center are loaded in background.
+        updateStreamingArea(listenedLayer != null ? listenedLayer.getDataSet() : null, false);
         renderer3D.repaint();
     }
 
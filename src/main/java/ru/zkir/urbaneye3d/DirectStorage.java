@@ -0,0 +1,118 @@
+package ru.zkir.urbaneye3d;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap memory of element geometries in direct storage mode (urbaneye3d.direct_buffers.enabled).
+ * Geometries take ranges of large shared direct buffers (chunks), rather than a direct buffer each:
+ * direct buffers are freed only by GC, which does not see how much native memory they hold.
+ * Storage is owned by Scene. Ranges are returned by the scene when elements are evicted, and reused by new geometries.
+ * A chunk which becomes fully free is dropped, all chunks are dropped when the scene is disposed.
+ * Dropped chunks are released by GC, as soon as nothing refers to their ranges.
+ *
+ * Allocation is thread safe, since elements are meshed in parallel.
+ */
+final class DirectStorage {
+    static final int CHUNK_SIZE = 4 << 20;
+
+    private static final int UNIT = Integer.BYTES; // ranges are allocated in 4-byte units, so that float and int views are aligned
+
+    private final int chunkUnits;
+    // dropped chunks are null, their numbers are reused
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final List<RangeAllocator> allocators = new ArrayList<>();
+    private long allocatedBytes;
+
+    DirectStorage(int chunkSize) {
+        this.chunkUnits = chunkSize / UNIT;
+    }
+
+    /**
+     * @param bytes size, multiple of 4
+     * @return allocation: chunk << 32 | offset in bytes. Use {@link #buffer} to access it.
+     */
+    synchronized long allocate(int bytes) {
+        if (bytes == 0) {
+            return 0; // empty geometry, nothing to free
+        }
+        int units = bytes / UNIT;
+        int dropped = -1;
+        for (int chunk = 0; chunk < chunks.size(); chunk++) {
+            if (allocators.get(chunk) == null) {
+                dropped = chunk;
+                continue;
+            }
+            int start = allocators.get(chunk).allocate(units);
+            if (start >= 0) {
+                allocatedBytes += bytes;
+                return (long) chunk << 32 | (long) start * UNIT;
+            }
+        }
+        // geometry larger than a chunk gets a chunk of its own
+        int capacity = Math.max(chunkUnits, units);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity * UNIT).order(ByteOrder.nativeOrder());
+        RangeAllocator allocator = new RangeAllocator(capacity);
+        int chunk = dropped;
+        if (chunk < 0) {
+            chunk = chunks.size();
+            chunks.add(null);
+            allocators.add(null);
+        }
+        chunks.set(chunk, buffer);
+        allocators.set(chunk, allocator);
+        allocatedBytes += bytes;
+        return (long) chunk << 32 | (long) allocator.allocate(units) * UNIT;
+    }
+
+    // native order view of the allocation, position 0, limit bytes
+    synchronized ByteBuffer buffer(long allocation, int bytes) {
+        if (bytes == 0) {
+            return ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer chunk = chunks.get((int) (allocation >>> 32)).duplicate();
+        int offset = (int) allocation;
+        chunk.position(offset).limit(offset + bytes);
+        // slice() does not keep the byte order
+        return chunk.slice().order(ByteOrder.nativeOrder());
+    }
+
+    // range can be reused after that, nothing should read it anymore.
+    synchronized void free(long allocation, int bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        int chunk = (int) (allocation >>> 32);
+        RangeAllocator allocator = allocators.get(chunk);
+        allocator.free((int) allocation / UNIT, bytes / UNIT);
+        allocatedBytes -= bytes;
+        if (allocator.getTop() == 0) {
+            chunks.set(chunk, null);
+            allocators.set(chunk, null);
+        }
+    }
+
+    // drops all chunks, when the scene is disposed. Storage must not be used after that.
+    synchronized void dispose() {
+        chunks.clear();
+        allocators.clear();
+        allocatedBytes = 0;
+    }
+
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    // native memory held, allocated or not
+    synchronized long getCapacity() {
+        long capacity = 0;
+        for (ByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                capacity += chunk.capacity();
+            }
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,365 @@
+package ru.zkir.urbaneye3d;
+
+import org.openstreetmap.josm.data.osm.PrimitiveId;
+import ru.zkir.urbaneye3d.utils.Contour;
+import ru.zkir.urbaneye3d.utils.Frustum;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounding volume hierarchy over scene elements, for frustum culling.
+ *
+ * Bounds are kept in "scene metres": (lon, lat) * METERS_PER_DEGREE, the same as element originX/originY,
+ * so the tree does not depend on the camera and it's built once per snapshot.
+ * At render time the box is converted to the camera coordinates the same way as elements are:
+ * x' = (x - cameraX) * cos(cameraLat), y' = y - cameraY.
+ *
+ * Incremental updates change a few elements only, so the tree of the previous snapshot is refitted rather than rebuilt:
+ * elements kept by the update stay in their slots, new elements of the same primitives take slots of the replaced ones.
+ * Tree is rebuilt from scratch, when too many slots are empty or too many elements did not find a slot.
+ */
+class ElementBVH {
+    private static final int LEAF_SIZE = 8;
+
+    private final List<RenderableBuildingElement> elements;
+
+    // positions of the elements in the list, reordered so that each node covers a contiguous range. -1: empty slot.
+    private int[] items;
+    private double[] itemBounds;
+    // new elements which did not find a slot in the refitted tree, they are tested one by one.
+    private int[] extraItems = new int[0];
+    private double[] extraBounds = new double[0];
+
+    // nodes, in flat arrays. Leaf has left == -1. Children are always after their parent.
+    // Node ranges do not change on refit, so these arrays are shared with refitted trees, only bounds are copied.
+    private double[] nodeBounds = new double[6 * 64]; // minX, minY, minZ, maxX, maxY, maxZ
+    private int[] nodeLeft = new int[64];
+    private int[] nodeRight = new int[64];
+    private int[] nodeStart = new int[64];
+    private int[] nodeEnd = new int[64];
+    private int nodeCount;
+    // traversal stack of cull(), reused between frames. cull() is called by the GL thread only.
+    private int[] cullStack = new int[64];
+
+    // store: in compact store mode element geometries are there (in the same order as elements), otherwise null.
+    // previous: tree of the previous snapshot, it's refitted if possible. Can be null.
+    ElementBVH(List<RenderableBuildingElement> sceneElements, CompactSceneStore store, ElementBVH previous) {
+        this.elements = sceneElements;
+        if (previous == null || previous.nodeCount == 0 || !refit(previous, store)) {
+            rebuild(store);
+        }
+    }
+
+    /**
+     * Collects elements whose bounding boxes are (at least partially) inside the frustum.
+     * Elements are reported by their positions in the snapshot, renderer keeps per-element state by them.
+     *
+     * @param visible receives positions of visible elements, its length should be at least size()
+     * @return number of visible elements
+     */
+    int cull(Frustum frustum, double cameraX, double cameraY, double lonScale, int[] visible) {
+        int count = 0;
+        int[] stack = cullStack;
+        int top = 0;
+        if (nodeCount > 0) {
+            stack[top++] = 0;
+        }
+        while (top > 0) {
+            int node = stack[--top];
+            int offset = node * 6;
+            if (nodeBounds[offset] > nodeBounds[offset + 3]) {
+                continue; // all slots are empty
+            }
+            int result = testBox(frustum, nodeBounds, offset, cameraX, cameraY, lonScale);
+            if (result == Frustum.OUTSIDE) {
+                continue;
+            }
+            if (result == Frustum.INSIDE) {
+                for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                    if (items[i] >= 0) {
+                        visible[count++] = items[i];
+                    }
+                }
+            } else if (nodeLeft[node] < 0) {
+                for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                    if (items[i] >= 0 && testBox(frustum, itemBounds, i * 6, cameraX, cameraY, lonScale) != Frustum.OUTSIDE) {
+                        visible[count++] = items[i];
+                    }
+                }
+            } else {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                    cullStack = stack;
+                }
+                stack[top++] = nodeLeft[node];
+                stack[top++] = nodeRight[node];
+            }
+        }
+        for (int i = 0; i < extraItems.length; i++) {
+            if (testBox(frustum, extraBounds, i * 6, cameraX, cameraY, lonScale) != Frustum.OUTSIDE) {
+                visible[count++] = extraItems[i];
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return elements.size();
+    }
+
+    static int testBox(Frustum frustum, double[] bounds, int offset, double cameraX, double cameraY, double lonScale) {
+        return frustum.testBox((bounds[offset] - cameraX) * lonScale, bounds[offset + 1] - cameraY, bounds[offset + 2],
+                               (bounds[offset + 3] - cameraX) * lonScale, bounds[offset + 4] - cameraY, bounds[offset + 5]);
+    }
+
+    private void rebuild(CompactSceneStore store) {
+        int n = elements.size();
+        double[] bounds = new double[6 * n];
+        // box centres on the horizontal axes, the split key
+        double[] centroids = new double[2 * n];
+        float[] box = new float[6];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            computeElementBounds(elements.get(i), store, i, box, bounds, i * 6);
+            centroids[2 * i] = bounds[i * 6] + bounds[i * 6 + 3];
+            centroids[2 * i + 1] = bounds[i * 6 + 1] + bounds[i * 6 + 4];
+            order[i] = i;
+        }
+        if (n > 0) {
+            build(order, bounds, centroids, 0, n);
+        }
+
+        double[] sortedBounds = new double[6 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(bounds, order[i] * 6, sortedBounds, i * 6, 6);
+        }
+        this.items = order;
+        this.itemBounds = sortedBounds;
+    }
+
+    // Takes the tree of the previous snapshot and puts new elements into it. Returns false, if it's not worth it.
+    private boolean refit(ElementBVH previous, CompactSceneStore store) {
+        int n = elements.size();
+        IdentityHashMap<RenderableBuildingElement, Integer> positions = new IdentityHashMap<>(n);
+        for (int i = 0; i < n; i++) {
+            positions.put(elements.get(i), i);
+        }
+
+        // elements kept by the update stay in their slots, slots of removed elements are freed.
+        int[] newItems = new int[previous.items.length];
+        Map<PrimitiveId, ArrayDeque<Integer>> freeSlots = new HashMap<>();
+        int empty = 0;
+        for (int slot = 0; slot < newItems.length; slot++) {
+            int oldPosition = previous.items[slot];
+            Integer position = oldPosition < 0 ? null : positions.remove(previous.elements.get(oldPosition));
+            if (position != null) {
+                newItems[slot] = position;
+            } else {
+                newItems[slot] = -1;
+                empty++;
+                if (oldPosition >= 0) {
+                    freeSlots.computeIfAbsent(previous.elements.get(oldPosition).primitiveId, k -> new ArrayDeque<>()).add(slot);
+                }
+            }
+        }
+
+        // extra elements of the previous tree, which are still there
+        int[] extra = new int[Math.max(16, previous.extraItems.length)];
+        double[] newExtraBounds = new double[6 * extra.length];
+        int extraCount = 0;
+        for (int i = 0; i < previous.extraItems.length; i++) {
+            Integer position = positions.remove(previous.elements.get(previous.extraItems[i]));
+            if (position != null) {
+                System.arraycopy(previous.extraBounds, i * 6, newExtraBounds, extraCount * 6, 6);
+                extra[extraCount++] = position;
+            }
+        }
+
+        // new elements: re-meshed elements of the same primitive are usually at the same place, so they take its slots.
+        double[] newItemBounds = previous.itemBounds.clone();
+        float[] box = new float[6];
+        for (int position = 0; position < n; position++) {
+            RenderableBuildingElement element = elements.get(position);
+            if (!positions.containsKey(element)) {
+                continue;
+            }
+            ArrayDeque<Integer> slots = freeSlots.get(element.primitiveId);
+            if (slots != null && !slots.isEmpty()) {
+                int slot = slots.poll();
+                newItems[slot] = position;
+                empty--;
+                computeElementBounds(element, store, position, box, newItemBounds, slot * 6);
+            } else {
+                if (extraCount > Math.max(LEAF_SIZE, n / 16)) {
+                    return false; // too many new elements, the tree would not be any good
+                }
+                if (extraCount == extra.length) {
+                    extra = Arrays.copyOf(extra, extra.length * 2);
+                    newExtraBounds = Arrays.copyOf(newExtraBounds, extra.length * 6);
+                }
+                computeElementBounds(element, store, position, box, newExtraBounds, extraCount * 6);
+                extra[extraCount++] = position;
+            }
+        }
+        if (extraCount > Math.max(LEAF_SIZE, n / 16) || empty > newItems.length / 4) {
+            return false;
+        }
+
+        this.items = newItems;
+        this.itemBounds = newItemBounds;
+        this.extraItems = Arrays.copyOf(extra, extraCount);
+        this.extraBounds = Arrays.copyOf(newExtraBounds, extraCount * 6);
+        this.nodeLeft = previous.nodeLeft;
+        this.nodeRight = previous.nodeRight;
+        this.nodeStart = previous.nodeStart;
+        this.nodeEnd = previous.nodeEnd;
+        this.nodeCount = previous.nodeCount;
+        this.nodeBounds = new double[previous.nodeBounds.length];
+        // children are after their parent, so going backwards refits children first
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            int nodeOffset = node * 6;
+            resetBounds(nodeBounds, nodeOffset);
+            if (nodeLeft[node] < 0) {
+                for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+                    if (items[i] >= 0) {
+                        unionBounds(nodeBounds, nodeOffset, itemBounds, i * 6);
+                    }
+                }
+            } else {
+                unionBounds(nodeBounds, nodeOffset, nodeBounds, nodeLeft[node] * 6);
+                unionBounds(nodeBounds, nodeOffset, nodeBounds, nodeRight[node] * 6);
+            }
+        }
+        return true;
+    }
+
+    // box: bounding box of the element geometry, in local coordinates: minX, minY, minZ, maxX, maxY, maxZ
+    static void computeElementBounds(RenderableBuildingElement element, CompactSceneStore store, int position,
+                                             float[] box, double[] bounds, int offset) {
+        double originX, originY;
+        if (store != null) {
+            System.arraycopy(store.bounds, 6 * store.getGeometry(position, RenderableBuildingElement.LOD_FULL), box, 0, 6);
+            originX = store.getOriginX(position);
+            originY = store.getOriginY(position);
+        } else {
+            originX = element.originX;
+            originY = element.originY;
+            ElementGeometry geometry = element.getGeometry();
+            box[0] = geometry.minX;
+            box[1] = geometry.minY;
+            box[2] = geometry.minZ;
+            box[3] = geometry.maxX;
+            box[4] = geometry.maxY;
+            box[5] = geometry.maxZ;
+        }
+        // local x is scaled with the latitude of the element origin, but rendered with the latitude of the camera.
+        // the difference is tiny, a margin covers it.
+        double lonScale = Math.cos(Math.toRadians(originY / Contour.METERS_PER_DEGREE));
+        double extent = Math.max(box[3] - box[0], box[4] - box[1]);
+        double margin = 1.0 + 0.01 * extent;
+        bounds[offset] = originX + (box[0] - margin) / lonScale;
+        bounds[offset + 1] = originY + box[1] - margin;
+        bounds[offset + 2] = box[2] - margin;
+        bounds[offset + 3] = originX + (box[3] + margin) / lonScale;
+        bounds[offset + 4] = originY + box[4] + margin;
+        bounds[offset + 5] = box[5] + margin;
+    }
+
+    private static void resetBounds(double[] bounds, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[offset + axis] = Double.MAX_VALUE;
+            bounds[offset + 3 + axis] = -Double.MAX_VALUE;
+        }
+    }
+
+    private static void unionBounds(double[] bounds, int offset, double[] other, int otherOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[offset + axis] = Math.min(bounds[offset + axis], other[otherOffset + axis]);
+            bounds[offset + 3 + axis] = Math.max(bounds[offset + 3 + axis], other[otherOffset + 3 + axis]);
+        }
+    }
+
+    // builds subtree for order[start, end), returns node index
+    private int build(int[] order, double[] bounds, double[] centroids, int start, int end) {
+        int node = newNode();
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        int nodeOffset = node * 6;
+        resetBounds(nodeBounds, nodeOffset);
+        for (int i = start; i < end; i++) {
+            unionBounds(nodeBounds, nodeOffset, bounds, order[i] * 6);
+        }
+
+        if (end - start <= LEAF_SIZE) {
+            nodeLeft[node] = -1;
+            return node;
+        }
+
+        // split by the median of the longest horizontal axis. Only the median is needed, not the full sort.
+        int axis = (nodeBounds[nodeOffset + 3] - nodeBounds[nodeOffset]) >= (nodeBounds[nodeOffset + 4] - nodeBounds[nodeOffset + 1]) ? 0 : 1;
+        int middle = (start + end) / 2;
+        select(order, centroids, axis, start, end - 1, middle);
+
+        int left = build(order, bounds, centroids, start, middle);
+        int right = build(order, bounds, centroids, middle, end);
+        nodeLeft[node] = left;
+        nodeRight[node] = right;
+        return node;
+    }
+
+    // quickselect: reorders order[left..right] so that k-th element is in place, smaller ones before it, bigger after.
+    private static void select(int[] order, double[] centroids, int axis, int left, int right, int k) {
+        while (right > left) {
+            // median of three as the pivot, it's good for already sorted input (buildings are often sorted by id, i.e. by location)
+            int middle = (left + right) >>> 1;
+            if (key(order, centroids, axis, middle) < key(order, centroids, axis, left)) swap(order, middle, left);
+            if (key(order, centroids, axis, right) < key(order, centroids, axis, left)) swap(order, right, left);
+            if (key(order, centroids, axis, right) < key(order, centroids, axis, middle)) swap(order, right, middle);
+            double pivot = key(order, centroids, axis, middle);
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (key(order, centroids, axis, i) < pivot) i++;
+                while (key(order, centroids, axis, j) > pivot) j--;
+                if (i <= j) {
+                    swap(order, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static double key(int[] order, double[] centroids, int axis, int i) {
+        return centroids[order[i] * 2 + axis];
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+    }
+
+    private int newNode() {
+        if (nodeCount == nodeLeft.length) {
+            int capacity = nodeLeft.length * 2;
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * 6);
+            nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+            nodeRight = Arrays.copyOf(nodeRight, capacity);
+            nodeStart = Arrays.copyOf(nodeStart, capacity);
+            nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+        }
+        return nodeCount++;
+    }
+}
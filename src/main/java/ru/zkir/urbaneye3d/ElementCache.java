@@ -0,0 +1,126 @@
+package ru.zkir.urbaneye3d;
+
+import org.openstreetmap.josm.data.osm.PrimitiveId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Renderable elements (with their meshes) created for primitives during previous scene updates.
+ * Entry is valid only while the fingerprint of element input data is the same:
+ * geometry, resolved heights, colours, roof tags etc. See Scene.createElements.
+ * So elements of unchanged buildings are reused instead of being meshed again.
+ * Least recently used entries are evicted when the cache is full.
+ * In streaming mode entries of buildings which left the area are removed at once, see Scene.moveStreamingArea.
+ * Listener is told about elements which left the cache: evicted, replaced or cleared.
+ */
+class ElementCache {
+    private static class Entry {
+        final long fingerprint;
+        final List<RenderableBuildingElement> elements;
+
+        Entry(long fingerprint, List<RenderableBuildingElement> elements) {
+            this.fingerprint = fingerprint;
+            this.elements = elements;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<PrimitiveId, Entry> entries;
+    private final Consumer<List<RenderableBuildingElement>> removalListener;
+
+    // statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ElementCache(int capacity, Consumer<List<RenderableBuildingElement>> removalListener) {
+        this.capacity = capacity;
+        this.removalListener = removalListener;
+        // access order = LRU
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PrimitiveId, Entry> eldest) {
+                if (size() > ElementCache.this.capacity) {
+                    evictions++;
+                    ElementCache.this.removalListener.accept(eldest.getValue().elements);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return cached elements, or null if there are no elements for this primitive, or they were created from other data.
+     */
+    List<RenderableBuildingElement> get(PrimitiveId primitiveId, long fingerprint) {
+        Entry entry = entries.get(primitiveId);
+        if (entry != null && entry.fingerprint == fingerprint) {
+            hits++;
+            return entry.elements;
+        }
+        misses++;
+        return null;
+    }
+
+    void put(PrimitiveId primitiveId, long fingerprint, List<RenderableBuildingElement> elements) {
+        Entry replaced = entries.put(primitiveId, new Entry(fingerprint, elements));
+        if (replaced != null) {
+            removalListener.accept(replaced.elements);
+        }
+    }
+
+    void remove(PrimitiveId primitiveId) {
+        Entry removed = entries.remove(primitiveId);
+        if (removed != null) {
+            evictions++;
+            removalListener.accept(removed.elements);
+        }
+    }
+
+    // removes entries of all other primitives
+    void retainAll(Set<PrimitiveId> primitiveIds) {
+        Iterator<Map.Entry<PrimitiveId, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PrimitiveId, Entry> entry = it.next();
+            if (!primitiveIds.contains(entry.getKey())) {
+                it.remove();
+                evictions++;
+                removalListener.accept(entry.getValue().elements);
+            }
+        }
+    }
+
+    void clear() {
+        for (Entry entry : entries.values()) {
+            removalListener.accept(entry.elements);
+        }
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "element cache: " + entries.size() + " entries, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+}
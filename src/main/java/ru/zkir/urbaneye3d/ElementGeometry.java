@@ -0,0 +1,387 @@
+package ru.zkir.urbaneye3d;
+
+import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.Point3D;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Triangulated and lit mesh of a renderable element, as flat arrays ready to be uploaded into vertex buffers
+ * or passed to GL directly.
+ * Lighting is baked into vertex colours when the element is created, since the sun direction is constant
+ * and fake AO depends on vertex height only. So nothing is computed or allocated when a frame is rendered.
+ * Every face gets its own vertices, since vertex colour depends on the face normal (flat shading).
+ *
+ * In direct storage mode (see Scene.DIRECT_STORAGE_PREF_KEY) vertices and indices are kept off the Java heap,
+ * in a native-order range of DirectStorage. JOSM's heap is left for the data. Arrays are null then, use the accessors.
+ * Vertices are stored in the GPU layout there, so they are passed to glBufferData as they are, see SceneBuffers.
+ */
+public class ElementGeometry {
+    // vertex layout: position, normal, base (unlit) colour, lit colour.
+    // Normal and base colour are used by the shader path, which computes lighting on GPU.
+    public static final int VERTEX_SIZE = 12;
+    public static final int POSITION_OFFSET = 0;
+    public static final int NORMAL_OFFSET = 3;
+    public static final int BASE_COLOR_OFFSET = 6;
+    public static final int LIT_COLOR_OFFSET = 9;
+
+    // Direct storage layout: attributes are not interleaved, each one is a block of 3 floats per vertex, in this order.
+    // So the attributes of either pipeline are a single range: normal + base colour + position for the shader,
+    // position + lit colour for the fixed function pipeline.
+    static final int DIRECT_NORMAL_BLOCK = 0;
+    static final int DIRECT_BASE_COLOR_BLOCK = 1;
+    static final int DIRECT_POSITION_BLOCK = 2;
+    static final int DIRECT_LIT_COLOR_BLOCK = 3;
+    // block of each attribute of the vertex layout, by offset / 3
+    private static final int[] DIRECT_BLOCKS = {DIRECT_POSITION_BLOCK, DIRECT_NORMAL_BLOCK, DIRECT_BASE_COLOR_BLOCK, DIRECT_LIT_COLOR_BLOCK};
+
+    // Sun direction (normalized)
+    static final Point3D SUN_DIRECTION = new Point3D(0.5, 0.5, 1.0).normalize();
+    // fake AO: the bottom of the building is darker by this fraction
+    static final float AO_STRENGTH = 0.4f;
+
+    public final float[] vertices;  // VERTEX_SIZE floats per vertex
+    public final int[] triangles;   // 3 vertex indices per triangle
+    public final int[] lines;       // 2 vertex indices per edge of the original faces, for wireframe mode
+
+    // direct storage mode: vertices, and triangle indices followed by line indices. null otherwise.
+    private final FloatBuffer vertexData;
+    private final IntBuffer indexData;
+    private final DirectStorage storage;
+    private final long allocation; // range of the storage
+    private final int vertexCount;
+    private final int triangleIndexCount;
+    private final int lineIndexCount;
+
+    // axis aligned bounding box, in local coordinates of the element. Used for frustum culling.
+    public final float minX, minY, minZ;
+    public final float maxX, maxY, maxZ;
+
+    private ElementGeometry(Builder builder, DirectStorage storage) {
+        vertexCount = builder.vertexCount;
+        triangleIndexCount = builder.triangleIndexCount;
+        lineIndexCount = builder.lineIndexCount;
+        int vertexFloats = vertexCount * VERTEX_SIZE;
+        this.storage = storage;
+        if (storage != null) {
+            allocation = storage.allocate(getStorageBytes());
+            ByteBuffer buffer = storage.buffer(allocation, getStorageBytes());
+            vertexData = buffer.asFloatBuffer();
+            vertexData.limit(vertexFloats);
+            for (int offset = 0; offset < VERTEX_SIZE; offset++) {
+                for (int vertex = 0; vertex < vertexCount; vertex++) {
+                    vertexData.put(directIndex(vertex, offset), builder.vertices[vertex * VERTEX_SIZE + offset]);
+                }
+            }
+            buffer.position(Float.BYTES * vertexFloats);
+            // slice() does not keep the byte order
+            indexData = buffer.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            indexData.put(builder.triangles, 0, triangleIndexCount).put(builder.lines, 0, lineIndexCount).flip();
+            vertices = null;
+            triangles = null;
+            lines = null;
+        } else {
+            vertices = Arrays.copyOf(builder.vertices, vertexFloats);
+            triangles = Arrays.copyOf(builder.triangles, triangleIndexCount);
+            lines = Arrays.copyOf(builder.lines, lineIndexCount);
+            vertexData = null;
+            indexData = null;
+            allocation = -1;
+        }
+
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int offset = 0; offset < vertexFloats; offset += VERTEX_SIZE) {
+            for (int axis = 0; axis < 3; axis++) {
+                float value = builder.vertices[offset + POSITION_OFFSET + axis];
+                min[axis] = Math.min(min[axis], value);
+                max[axis] = Math.max(max[axis], value);
+            }
+        }
+        if (vertexCount == 0) {
+            min = new float[3];
+            max = new float[3];
+        }
+        this.minX = min[0];
+        this.minY = min[1];
+        this.minZ = min[2];
+        this.maxX = max[0];
+        this.maxY = max[1];
+        this.maxZ = max[2];
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getTriangleIndexCount() {
+        return triangleIndexCount;
+    }
+
+    public int getLineIndexCount() {
+        return lineIndexCount;
+    }
+
+    public boolean isDirect() {
+        return vertexData != null;
+    }
+
+    // attribute component of the vertex, offset is POSITION_OFFSET, NORMAL_OFFSET, ... plus the component
+    public float getVertexValue(int vertex, int offset) {
+        return vertexData != null ? vertexData.get(directIndex(vertex, offset)) : vertices[vertex * VERTEX_SIZE + offset];
+    }
+
+    public int getTriangleIndex(int k) {
+        return indexData != null ? indexData.get(k) : triangles[k];
+    }
+
+    public int getLineIndex(int k) {
+        return indexData != null ? indexData.get(triangleIndexCount + k) : lines[k];
+    }
+
+    // copies all vertices into the array, starting at the offset
+    void copyVertices(float[] target, int offset) {
+        if (vertexData != null) {
+            // absolute reads only, the buffer can be used by GL thread at the same time
+            for (int vertex = 0; vertex < vertexCount; vertex++) {
+                for (int k = 0; k < VERTEX_SIZE; k++) {
+                    target[offset + vertex * VERTEX_SIZE + k] = vertexData.get(directIndex(vertex, k));
+                }
+            }
+        } else {
+            System.arraycopy(vertices, 0, target, offset, vertices.length);
+        }
+    }
+
+    // Direct storage mode: returns the memory to DirectStorage, when the element is evicted.
+    // Geometry must not be used after that.
+    void freeStorage() {
+        if (storage != null) {
+            storage.free(allocation, getStorageBytes());
+        }
+    }
+
+    // index in vertexData of the attribute component, see DIRECT_BLOCKS
+    private int directIndex(int vertex, int offset) {
+        return (DIRECT_BLOCKS[offset / 3] * vertexCount + vertex) * 3 + offset % 3;
+    }
+
+    private int getStorageBytes() {
+        return Float.BYTES * vertexCount * VERTEX_SIZE + Integer.BYTES * (triangleIndexCount + lineIndexCount);
+    }
+
+    // direct storage mode: buffers for glBufferData. Vertices are in the direct storage layout,
+    // indices are triangles, then lines. Use duplicates, the buffers are shared between threads.
+    FloatBuffer getVertexData() {
+        return vertexData;
+    }
+
+    IntBuffer getIndexData() {
+        return indexData;
+    }
+
+    /**
+     * @param mesh welded and triangulated mesh of the element, not null. An element always has one,
+     *             the flat roof mesh is the fallback, see RenderableBuildingElement.composeMesh().
+     */
+    public static ElementGeometry build(RenderableBuildingElement building, Mesh mesh) {
+        return build(building, mesh, null);
+    }
+
+    // storage: direct storage mode, storage of the scene. null to keep the geometry in heap arrays.
+    static ElementGeometry build(RenderableBuildingElement building, Mesh mesh, DirectStorage storage) {
+        Builder builder = new Builder(building, mesh);
+        addGroup(builder, mesh, Mesh.WALL, building.color);
+        addGroup(builder, mesh, Mesh.ROOF, building.roofColor);
+        addGroup(builder, mesh, Mesh.BOTTOM, building.bottomColor);
+        return builder.build(storage);
+    }
+
+    private static void addGroup(Builder builder, Mesh mesh, int group, Color color) {
+        for (int face = mesh.getGroupStart(group); face < mesh.getGroupEnd(group); face++) {
+            builder.addFace(face, color);
+        }
+    }
+
+    private static Point3D faceNormal(Mesh mesh, int face) {
+        int p1 = mesh.getFaceVertex(face, 0);
+        int p2 = mesh.getFaceVertex(face, 1);
+        int p3 = mesh.getFaceVertex(face, 2);
+
+        Point3D v1 = new Point3D(mesh.getX(p2) - mesh.getX(p1), mesh.getY(p2) - mesh.getY(p1), mesh.getZ(p2) - mesh.getZ(p1));
+        Point3D v2 = new Point3D(mesh.getX(p3) - mesh.getX(p1), mesh.getY(p3) - mesh.getY(p1), mesh.getZ(p3) - mesh.getZ(p1));
+        return new Point3D(
+                v1.y * v2.z - v1.z * v2.y,
+                v1.z * v2.x - v1.x * v2.z,
+                v1.x * v2.y - v1.y * v2.x
+        ).normalize();
+    }
+
+    private static Color applyLighting(Color baseColor, double dotProduct) {
+        // 70% ambient light + 30% diffuse light from the sun
+        // We clamp the dot product to 0 so that faces pointing away from the light aren't darkened
+        double diffuseFactor = Math.abs(dotProduct);
+        float factor = (float) (0.5 + 0.5 * diffuseFactor);
+
+        // Ensure the factor does not exceed 1.0
+        factor = Math.min(1.0f, factor);
+
+        return new Color(
+                (int) (baseColor.getRed() * factor),
+                (int) (baseColor.getGreen() * factor),
+                (int) (baseColor.getBlue() * factor)
+        );
+    }
+
+    // Fake ambient occlusion: the lower the vertex, the darker it is.
+    private static Color applyFakeAO(Color baseColor, double z, RenderableBuildingElement building) {
+        double totalHeight = building.height - building.minHeight;
+        double vertexHeight = z - building.minHeight;
+        float aoFactor = 1.0f;
+        if (totalHeight > 0.1) { // Avoid division by zero
+            aoFactor = (1.0f - AO_STRENGTH) + AO_STRENGTH * (float)(vertexHeight / totalHeight);
+        }
+
+        return new Color(
+                (int)(baseColor.getRed() * aoFactor),
+                (int)(baseColor.getGreen() * aoFactor),
+                (int)(baseColor.getBlue() * aoFactor)
+        );
+    }
+
+    private static class Builder {
+        private final RenderableBuildingElement building;
+        private final Mesh mesh;
+        private float[] vertices = new float[VERTEX_SIZE * 64];
+        private int vertexCount;
+        private int[] triangles = new int[3 * 64];
+        private int triangleIndexCount;
+        private int[] lines = new int[2 * 64];
+        private int lineIndexCount;
+        // mesh vertex -> vertex of the current face, -1 if not added. Reset after each face.
+        private final int[] faceIndex;
+        // vertices created for a mesh vertex, as a linked list: firstVertex[mesh vertex], nextVertex[vertex]
+        private final int[] firstVertex;
+        private int[] nextVertex = new int[64];
+
+        Builder(RenderableBuildingElement building, Mesh mesh) {
+            this.building = building;
+            this.mesh = mesh;
+            this.faceIndex = new int[mesh.getVertexCount()];
+            this.firstVertex = new int[mesh.getVertexCount()];
+            Arrays.fill(faceIndex, -1);
+            Arrays.fill(firstVertex, -1);
+        }
+
+        // Flat shading: a vertex has the normal and the colour of its face, so faces share a vertex
+        // only if they have the same normal and colour, e.g. coplanar faces of a split wall or roof plane.
+        // Triangles (already triangulated by Mesh) refer to the face vertices.
+        void addFace(int face, Color color) {
+            int size = mesh.getFaceSize(face);
+            if (size < 3) return;
+            Point3D normal = faceNormal(mesh, face);
+            Color litColor = applyLighting(color, normal.dot(SUN_DIRECTION));
+
+            for (int i = 0; i < size; i++) {
+                addLine(localIndex(mesh.getFaceVertex(face, i), normal, color, litColor),
+                        localIndex(mesh.getFaceVertex(face, (i + 1) % size), normal, color, litColor));
+            }
+
+            int faceTriangleIndices = mesh.getTriangleIndexCount(face);
+            for (int t = 0; t + 2 < faceTriangleIndices; t += 3) {
+                addTriangle(localIndex(mesh.getTriangleVertex(face, t), normal, color, litColor),
+                            localIndex(mesh.getTriangleVertex(face, t + 1), normal, color, litColor),
+                            localIndex(mesh.getTriangleVertex(face, t + 2), normal, color, litColor));
+            }
+
+            // only entries of this face were set, so they are reset instead of the whole map
+            for (int i = 0; i < size; i++) {
+                faceIndex[mesh.getFaceVertex(face, i)] = -1;
+            }
+            for (int t = 0; t < faceTriangleIndices; t++) {
+                faceIndex[mesh.getTriangleVertex(face, t)] = -1;
+            }
+        }
+
+        private int localIndex(int meshIndex, Point3D normal, Color color, Color litColor) {
+            if (faceIndex[meshIndex] < 0) {
+                faceIndex[meshIndex] = sharedVertex(meshIndex, normal, color, litColor);
+            }
+            return faceIndex[meshIndex];
+        }
+
+        // vertex of an earlier face with the same position, normal and colour, or a new one.
+        // Lit colour depends on the normal, the colour and the height only, so it's the same too.
+        private int sharedVertex(int meshIndex, Point3D normal, Color color, Color litColor) {
+            for (int vertex = firstVertex[meshIndex]; vertex >= 0; vertex = nextVertex[vertex]) {
+                int offset = vertex * VERTEX_SIZE;
+                if (vertices[offset + NORMAL_OFFSET] == (float) normal.x
+                        && vertices[offset + NORMAL_OFFSET + 1] == (float) normal.y
+                        && vertices[offset + NORMAL_OFFSET + 2] == (float) normal.z
+                        && vertices[offset + BASE_COLOR_OFFSET] == color.getRed() / 255.0f
+                        && vertices[offset + BASE_COLOR_OFFSET + 1] == color.getGreen() / 255.0f
+                        && vertices[offset + BASE_COLOR_OFFSET + 2] == color.getBlue() / 255.0f) {
+                    return vertex;
+                }
+            }
+            addVertex(meshIndex, normal, color, litColor);
+            int vertex = vertexCount - 1;
+            if (nextVertex.length <= vertex) {
+                nextVertex = Arrays.copyOf(nextVertex, nextVertex.length * 2);
+            }
+            nextVertex[vertex] = firstVertex[meshIndex];
+            firstVertex[meshIndex] = vertex;
+            return vertex;
+        }
+
+        private void addVertex(int meshIndex, Point3D normal, Color baseColor, Color litColor) {
+            if (vertices.length < (vertexCount + 1) * VERTEX_SIZE) {
+                vertices = Arrays.copyOf(vertices, vertices.length * 2);
+            }
+            int offset = vertexCount * VERTEX_SIZE;
+            double z = mesh.getZ(meshIndex);
+            vertices[offset + POSITION_OFFSET] = (float) mesh.getX(meshIndex);
+            vertices[offset + POSITION_OFFSET + 1] = (float) mesh.getY(meshIndex);
+            vertices[offset + POSITION_OFFSET + 2] = (float) z;
+            vertices[offset + NORMAL_OFFSET] = (float) normal.x;
+            vertices[offset + NORMAL_OFFSET + 1] = (float) normal.y;
+            vertices[offset + NORMAL_OFFSET + 2] = (float) normal.z;
+            putColor(offset + BASE_COLOR_OFFSET, baseColor);
+            putColor(offset + LIT_COLOR_OFFSET, applyFakeAO(litColor, z, building));
+            vertexCount++;
+        }
+
+        private void putColor(int offset, Color color) {
+            vertices[offset] = color.getRed() / 255.0f;
+            vertices[offset + 1] = color.getGreen() / 255.0f;
+            vertices[offset + 2] = color.getBlue() / 255.0f;
+        }
+
+        private void addTriangle(int a, int b, int c) {
+            if (triangles.length < triangleIndexCount + 3) {
+                triangles = Arrays.copyOf(triangles, triangles.length * 2);
+            }
+            triangles[triangleIndexCount++] = a;
+            triangles[triangleIndexCount++] = b;
+            triangles[triangleIndexCount++] = c;
+        }
+
+        private void addLine(int a, int b) {
+            if (lines.length < lineIndexCount + 2) {
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            lines[lineIndexCount++] = a;
+            lines[lineIndexCount++] = b;
+        }
+
+        // builder arrays are copied into the final storage once: heap arrays, or the direct storage
+        ElementGeometry build(DirectStorage storage) {
+            return new ElementGeometry(this, storage);
+        }
+    }
+}
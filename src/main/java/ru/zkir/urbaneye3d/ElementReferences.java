@@ -0,0 +1,58 @@
+package ru.zkir.urbaneye3d;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks whether renderable elements are still referenced by the scene or by the element cache.
+ * Element referenced by neither is evicted: its storage outside the Java heap management (compact store slots,
+ * direct storage) can be freed, once snapshots which can still refer to it are released. See Scene.reclaimStorage().
+ * Used by the scene thread only.
+ */
+final class ElementReferences {
+    static final int IN_SCENE = 1;
+    static final int IN_CACHE = 2;
+
+    private final IdentityHashMap<RenderableBuildingElement, Integer> references = new IdentityHashMap<>();
+    private List<RenderableBuildingElement> evicted = new ArrayList<>();
+
+    void retain(RenderableBuildingElement element, int reference) {
+        references.merge(element, reference, (a, b) -> a | b);
+    }
+
+    void release(RenderableBuildingElement element, int reference) {
+        Integer current = references.get(element);
+        if (current != null && (current & reference) != 0) {
+            if ((current & ~reference) == 0) {
+                references.remove(element);
+                evicted.add(element);
+            } else {
+                references.put(element, current & ~reference);
+            }
+        }
+    }
+
+    // elements of the new scene are retained, elements of the previous scene which are not there anymore are released.
+    void updateScene(List<RenderableBuildingElement> elements, List<RenderableBuildingElement> previousElements) {
+        Set<RenderableBuildingElement> scene = Collections.newSetFromMap(new IdentityHashMap<>(elements.size()));
+        for (RenderableBuildingElement element : elements) {
+            scene.add(element);
+            retain(element, IN_SCENE);
+        }
+        for (RenderableBuildingElement element : previousElements) {
+            if (!scene.contains(element)) {
+                release(element, IN_SCENE);
+            }
+        }
+    }
+
+    // elements evicted since the last call
+    List<RenderableBuildingElement> takeEvicted() {
+        List<RenderableBuildingElement> result = evicted;
+        evicted = new ArrayList<>();
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+package ru.zkir.urbaneye3d;
+
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GL2ES2;
+import ru.zkir.urbaneye3d.utils.Point3D;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * GLSL program, which does the same lighting as ElementGeometry bakes on CPU:
+ * ambient + diffuse sun light and height-based fake AO.
+ * Sun direction and AO strength are uniforms, so they can be changed without rebuilding any mesh.
+ * Transformations still come from the fixed function matrix stack (GLSL 1.20, compatibility profile).
+ */
+class LightingShader {
+    // attribute locations, bound before linking
+    static final int POSITION_ATTRIBUTE = 0;
+    static final int NORMAL_ATTRIBUTE = 1;
+    static final int BASE_COLOR_ATTRIBUTE = 2;
+
+    private static final String VERTEX_SHADER =
+            "#version 120\n" +
+            "attribute vec3 position;\n" +
+            "attribute vec3 normal;\n" +
+            "attribute vec3 baseColor;\n" +
+            "uniform vec3 sunDirection;\n" +
+            "uniform float aoStrength;\n" +
+            "uniform vec2 heightRange; // minHeight, height of the element\n" +
+            "varying vec3 color;\n" +
+            "void main() {\n" +
+            "    float light = min(1.0, 0.5 + 0.5 * abs(dot(normal, sunDirection)));\n" +
+            "    float totalHeight = heightRange.y - heightRange.x;\n" +
+            "    float ao = 1.0;\n" +
+            "    if (totalHeight > 0.1) {\n" +
+            "        ao = (1.0 - aoStrength) + aoStrength * (position.z - heightRange.x) / totalHeight;\n" +
+            "    }\n" +
+            "    color = baseColor * light * ao;\n" +
+            "    gl_Position = gl_ModelViewProjectionMatrix * vec4(position, 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#version 120\n" +
+            "varying vec3 color;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vec4(color, 1.0);\n" +
+            "}\n";
+
+    private final int program;
+    private final int sunDirectionLocation;
+    private final int aoStrengthLocation;
+    private final int heightRangeLocation;
+
+    private LightingShader(int program, GL2ES2 gl) {
+        this.program = program;
+        this.sunDirectionLocation = gl.glGetUniformLocation(program, "sunDirection");
+        this.aoStrengthLocation = gl.glGetUniformLocation(program, "aoStrength");
+        this.heightRangeLocation = gl.glGetUniformLocation(program, "heightRange");
+    }
+
+    /**
+     * @return compiled shader, or null if it cannot be compiled on this system.
+     */
+    static LightingShader create(GL2 gl) {
+        int vertexShader = compile(gl, GL2ES2.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compile(gl, GL2ES2.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            gl.glDeleteShader(vertexShader);
+            gl.glDeleteShader(fragmentShader);
+            return null;
+        }
+
+        int program = gl.glCreateProgram();
+        gl.glAttachShader(program, vertexShader);
+        gl.glAttachShader(program, fragmentShader);
+        gl.glBindAttribLocation(program, POSITION_ATTRIBUTE, "position");
+        gl.glBindAttribLocation(program, NORMAL_ATTRIBUTE, "normal");
+        gl.glBindAttribLocation(program, BASE_COLOR_ATTRIBUTE, "baseColor");
+        gl.glLinkProgram(program);
+        // shaders are not needed after linking
+        gl.glDetachShader(program, vertexShader);
+        gl.glDetachShader(program, fragmentShader);
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        gl.glGetProgramiv(program, GL2ES2.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            UrbanEye3dPlugin.debugMsg("Shader program cannot be linked: " + getProgramLog(gl, program));
+            gl.glDeleteProgram(program);
+            return null;
+        }
+        return new LightingShader(program, gl);
+    }
+
+    void use(GL2 gl, Point3D sunDirection, float aoStrength) {
+        gl.glUseProgram(program);
+        gl.glUniform3f(sunDirectionLocation, (float) sunDirection.x, (float) sunDirection.y, (float) sunDirection.z);
+        gl.glUniform1f(aoStrengthLocation, aoStrength);
+    }
+
+    // per element uniforms
+    void setHeightRange(GL2 gl, double minHeight, double height) {
+        gl.glUniform2f(heightRangeLocation, (float) minHeight, (float) height);
+    }
+
+    void release(GL2 gl) {
+        gl.glUseProgram(0);
+    }
+
+    void dispose(GL2 gl) {
+        gl.glDeleteProgram(program);
+    }
+
+    private static int compile(GL2 gl, int type, String source) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, 1, new String[]{source}, new int[]{source.length()}, 0);
+        gl.glCompileShader(shader);
+
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL2ES2.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            UrbanEye3dPlugin.debugMsg("Shader cannot be compiled: " + getShaderLog(gl, shader));
+            gl.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    private static String getShaderLog(GL2 gl, int shader) {
+        int[] length = new int[1];
+        gl.glGetShaderiv(shader, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return "";
+        }
+        byte[] log = new byte[length[0]];
+        gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+        return new String(log, 0, length[0], StandardCharsets.UTF_8);
+    }
+
+    private static String getProgramLog(GL2 gl, int program) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(program, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return "";
+        }
+        byte[] log = new byte[length[0]];
+        gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+        return new String(log, 0, length[0], StandardCharsets.UTF_8);
+    }
+}
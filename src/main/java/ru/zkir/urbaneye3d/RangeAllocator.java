@@ -0,0 +1,83 @@
+package ru.zkir.urbaneye3d;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Free list of ranges of an arena (CompactStoreArena) or of a memory chunk (DirectStorage).
+ * The smallest free range which fits is taken, adjacent free ranges are merged.
+ * New ranges are taken at the top, up to the capacity. Not thread safe.
+ */
+final class RangeAllocator {
+    private final int capacity;
+    private final TreeMap<Integer, Integer> freeByStart = new TreeMap<>();
+    private final TreeSet<Long> freeBySize = new TreeSet<>(); // length << 32 | start
+    private int top;
+
+    RangeAllocator(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return start of the range, or -1 if there is no space left
+     */
+    int allocate(int length) {
+        if (length == 0) {
+            return 0;
+        }
+        Long fit = freeBySize.ceiling((long) length << 32);
+        if (fit != null) {
+            int start = (int) (fit & 0xFFFFFFFFL);
+            int free = (int) (fit >>> 32);
+            remove(start, free);
+            if (free > length) {
+                add(start + length, free - length);
+            }
+            return start;
+        }
+        if (length > capacity - top) {
+            return -1;
+        }
+        int start = top;
+        top += length;
+        return start;
+    }
+
+    void free(int start, int length) {
+        if (length == 0) {
+            return;
+        }
+        Map.Entry<Integer, Integer> before = freeByStart.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            remove(before.getKey(), before.getValue());
+            start = before.getKey();
+            length += before.getValue();
+        }
+        Integer after = freeByStart.get(start + length);
+        if (after != null) {
+            remove(start + length, after);
+            length += after;
+        }
+        if (start + length == top) {
+            top = start;
+        } else {
+            add(start, length);
+        }
+    }
+
+    // end of the highest allocated range
+    int getTop() {
+        return top;
+    }
+
+    private void add(int start, int length) {
+        freeByStart.put(start, length);
+        freeBySize.add((long) length << 32 | start);
+    }
+
+    private void remove(int start, int length) {
+        freeByStart.remove(start);
+        freeBySize.remove((long) length << 32 | start);
+    }
+}
@@ -1,10 +1,10 @@
 package ru.zkir.urbaneye3d;
 
-import com.drew.lang.annotations.NotNull;
 import org.openstreetmap.josm.data.coor.LatLon;
 import ru.zkir.urbaneye3d.utils.ColorUtils;
 import ru.zkir.urbaneye3d.utils.Contour;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshWelder;
 import ru.zkir.urbaneye3d.utils.Point2D;
 import ru.zkir.urbaneye3d.roofgenerators.RoofShapes;
 
@@ -21,23 +21,43 @@ public class RenderableBuildingElement {
     public final double minHeight;  // z0 -- z-coordinate of building bottom
     public final double wallHeight; // z1 -- z coordinate of walls top
     public final double height;     // z2 -- z coordinate of roof top
-    public final @NotNull Color color;
-    public final @NotNull Color roofColor;
-    public final @NotNull Color bottomColor;
+    // colours, roof orientation, contour and origin are needed to build the geometry.
+    // In compact store mode they are dropped after the hand-over, CompactSceneStore keeps colours, heights and origins.
+    public Color color;
+    public Color roofColor;
+    public Color bottomColor;
     public final RoofShapes roofShape;
     public final double roofDirection;
-    public final @NotNull String roofOrientation;
-    private final Contour contour;
-    public final LatLon origin;
-    private Mesh mesh;
+    public String roofOrientation;
+    private Contour contour;
+    public LatLon origin;
+    // origin in metres, precomputed for the floating origin in renderer: (lon, lat) * METERS_PER_DEGREE.
+    // x is not scaled by cos(lat) here, it's done per frame, using latitude of the camera.
+    public final double originX;
+    public final double originY;
+    private ElementGeometry geometry;
+
+    // Levels of detail. Distant buildings are drawn with simplified roofs or as plain extruded boxes.
+    public static final int LOD_FULL = 0;
+    public static final int LOD_SIMPLIFIED = 1;
+    public static final int LOD_BOX = 2;
+    private ElementGeometry[] lodGeometries;
 
     public RenderableBuildingElement(PrimitiveId primitiveId, LatLon origin, Contour contour, double height, double minHeight, double roofHeight, String wallColor, String roofColor, String roofShape, String roofDirectionStr, String roofOrientation) {
+        this(primitiveId, origin, contour, height, minHeight, roofHeight, wallColor, roofColor, roofShape, roofDirectionStr, roofOrientation, null);
+    }
+
+    // directStorage: storage of the scene in direct storage mode, null otherwise.
+    RenderableBuildingElement(PrimitiveId primitiveId, LatLon origin, Contour contour, double height, double minHeight, double roofHeight, String wallColor, String roofColor, String roofShape, String roofDirectionStr, String roofOrientation,
+                              DirectStorage directStorage) {
         this.primitiveId = primitiveId;
         if (contour==null){
             throw new RuntimeException("contour must be specified");
         }
 
         this.origin = origin;
+        this.originX = origin.lon() * Contour.METERS_PER_DEGREE;
+        this.originY = origin.lat() * Contour.METERS_PER_DEGREE;
         if (contour.outerRings.isEmpty()){
             throw new RuntimeException("There can be empty multipolygon relations, broken or not fully downloaded. " +
                                        "However, renderable building cannot be created without outer ring. " +
@@ -87,7 +107,7 @@ public class RenderableBuildingElement {
         this.bottomColor = this.color.darker().darker(); //Fake AO LOL!
         
         //since we have all the data, we can compose building mesh right in constructor.
-        composeMesh();
+        composeMesh(directStorage);
     }
 
     public boolean hasComplexContour() {
@@ -106,22 +126,100 @@ public class RenderableBuildingElement {
         return contour.innerRings;
     }
 
-    public Mesh getMesh() {
-        return this.mesh;
+    public ElementGeometry getGeometry() {
+        return this.geometry;
+    }
+
+    /**
+     * @param lod level of detail, LOD_FULL, LOD_SIMPLIFIED or LOD_BOX.
+     * @return geometry for this level. Levels with nothing to simplify share the same geometry object.
+     */
+    public ElementGeometry getGeometry(int lod) {
+        return lodGeometries == null ? null : lodGeometries[lod];
+    }
+
+    // false if the geometry has been handed over to the store, in compact store mode.
+    public boolean hasGeometry() {
+        return this.lodGeometries != null;
+    }
+
+    /**
+     * Compact store mode: hands the geometries over to CompactStoreArena.
+     * Called by the scene thread once, right after the element is built, before it's cached or published.
+     * @return geometries of the levels of detail
+     */
+    ElementGeometry[] takeGeometry() {
+        ElementGeometry[] geometries = this.lodGeometries;
+        this.geometry = null;
+        this.lodGeometries = null;
+        return geometries;
+    }
+
+    // Compact store mode: drops the data copied to the store, after CompactStoreArena.add.
+    void dropStoredAttributes() {
+        this.color = null;
+        this.roofColor = null;
+        this.bottomColor = null;
+        this.roofOrientation = null;
+        this.contour = null;
+        this.origin = null;
+    }
+
+    // Direct storage mode: returns the memory of the geometries to DirectStorage, when the element is evicted by the scene.
+    void freeStorage() {
+        if (lodGeometries != null) {
+            freeStorage(lodGeometries);
+        }
+    }
 
+    // levels of detail can share the same geometry, it's freed once.
+    static void freeStorage(ElementGeometry[] geometries) {
+        for (int lod = 0; lod < geometries.length; lod++) {
+            boolean shared = false;
+            for (int level = 0; level < lod; level++) {
+                shared |= geometries[level] == geometries[lod];
+            }
+            if (!shared) {
+                geometries[lod].freeStorage();
+            }
+        }
     }
-	
-    public void composeMesh(){
-        this.mesh = null;
 
-        this.mesh = roofShape.getMesher().generate(this);
+    // meshes are not kept, only the geometries built from them.
+    private void composeMesh(DirectStorage directStorage){
+        Mesh mesh = roofShape.getMesher().generate(this);
+        boolean isFlat = roofShape == RoofShapes.FLAT;
 
         //last chance! mesh can be null, in case specific roof shapes was not created due to limitations
-        // for example, GABLED and HIPPED can be created for quadrangles only.
-        if( this.mesh == null){
+        // for example, GABLED and HIPPED cannot be created for footprints with holes, or if straight skeleton fails.
+        if( mesh == null){
             // Collect all contours (outer and inner) for flat roof generation
-            this.mesh = RoofShapes.FLAT.getMesher().generate(this);
+            mesh = RoofShapes.FLAT.getMesher().generate(this);
+            isFlat = true;
         }
+
+        //faces are welded and triangulated once here, not at each frame.
+        mesh = prepareMesh(mesh);
+        //lighting is baked too, renderer only passes vertices to GL.
+        this.geometry = ElementGeometry.build(this, mesh, directStorage);
+
+        ElementGeometry simplified = this.geometry;
+        Mesh simplifiedMesh = isFlat ? null : roofShape.getMesher().generateSimplified(this);
+        if (simplifiedMesh != null) {
+            simplified = ElementGeometry.build(this, prepareMesh(simplifiedMesh), directStorage);
+        }
+        // box is the flat roof mesh: footprint extruded to the full height.
+        ElementGeometry box = this.geometry;
+        if (!isFlat) {
+            Mesh boxMesh = RoofShapes.FLAT.getMesher().generate(this);
+            box = ElementGeometry.build(this, prepareMesh(boxMesh), directStorage);
+        }
+        this.lodGeometries = new ElementGeometry[]{this.geometry, simplified, box};
+    }
+
+    // meshers do not share vertices between rings and rows, and can create degenerate faces, e.g. for a zero roof height.
+    private static Mesh prepareMesh(Mesh mesh) {
+        return MeshWelder.weld(mesh).triangulate();
     }
 
 
@@ -5,27 +5,23 @@ import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLEventListener;
 import com.jogamp.opengl.awt.GLJPanel;
 import com.jogamp.opengl.glu.GLU;
-import com.jogamp.opengl.glu.GLUtessellator;
-import com.jogamp.opengl.glu.GLUtessellatorCallbackAdapter;
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.NavigatableComponent;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.data.coor.LatLon;
-import ru.zkir.urbaneye3d.utils.Mesh;
-import ru.zkir.urbaneye3d.utils.Point3D;
+import ru.zkir.urbaneye3d.utils.Contour;
+import ru.zkir.urbaneye3d.utils.Frustum;
 
-import java.awt.Color;
 import java.awt.Point;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.util.List;
 
 public class Renderer3D extends GLJPanel implements GLEventListener {
-    private final List<RenderableBuildingElement> buildings;
+    private final Scene scene;
     private final GLU glu = new GLU();
     public boolean isWireframeMode;
 
@@ -35,12 +31,42 @@ public class Renderer3D extends GLJPanel implements GLEventListener {
 
     private Point lastMousePoint;
 
-    // Sun direction (normalized)
-    private final Point3D SUN_DIRECTION = new Point3D(0.5, 0.5, 1.0).normalize();
-
+    // Retained mode: element meshes are uploaded into vertex buffers once.
+    // Immediate mode (glBegin/glEnd) is kept as a fallback, for the case VBOs are not supported.
+    private final SceneBuffers sceneBuffers = new SceneBuffers();
+    private boolean isVboSupported;
+    // Optional programmable pipeline: lighting is computed by shader. Requires VBOs.
+    private LightingShader lightingShader;
+    private boolean isShaderSupported;
+
+    // Frustum culling: elements outside the view are not drawn. Buffers are reused between frames.
+    private final float[] projectionMatrix = new float[16];
+    private final float[] modelviewMatrix = new float[16];
+    private final Frustum frustum = new Frustum();
+    // positions of visible elements in the snapshot
+    private int[] visibleElements = new int[0];
+    // bounding box of the element being drawn, local coordinates: minX, minY, minZ, maxX, maxY, maxZ
+    private final float[] box = new float[6];
+    // stats of the last frame
+    private volatile int drawnElements;
+    private volatile int culledElements;
+    private volatile int drawnTriangles;
+
+    // Level of detail is chosen by the size of the element on the screen, px.
+    // Element is drawn at full detail if it is larger than LOD_SIZES[LOD_FULL], simplified if it is larger than
+    // LOD_SIZES[LOD_SIMPLIFIED], and as a box otherwise.
+    static final double[] LOD_SIZES = {80, 20};
+    // LOD is switched only when the size is beyond the threshold by this factor, so elements near the threshold do not flicker.
+    static final double LOD_HYSTERESIS = 1.25;
+    // level of detail currently used for each element of lodSnapshot, by its position.
+    // Elements are shared between snapshots and cached, so this state is kept here rather than in elements.
+    private SceneSnapshot lodSnapshot;
+    private byte[] elementLods = new byte[0];
+    private static final double FIELD_OF_VIEW = 45.0;
+    private int viewportHeight = 1;
 
     public Renderer3D( Scene scene) {
-        this.buildings = scene.renderableElements;
+        this.scene = scene;
         this.addGLEventListener(this);
 
         addMouseListener(new MouseAdapter() {
@@ -110,28 +136,51 @@ public class Renderer3D extends GLJPanel implements GLEventListener {
         GL2 gl = glAutoDrawable.getGL().getGL2();
         gl.glClearColor(1.0f, 1.0f, 1.0f, 1.0f); // White background
         gl.glEnable(GL2.GL_DEPTH_TEST);
+        isVboSupported = gl.isFunctionAvailable("glGenBuffers") && gl.isFunctionAvailable("glBufferData");
+        // init is called again if the context has been recreated, old buffers are gone.
+        sceneBuffers.reset();
+        lightingShader = null;
+        isShaderSupported = isVboSupported && gl.getContext().hasGLSL();
         //gl.glEnable(GL2.GL_CULL_FACE);
         //gl.glCullFace(GL2.GL_BACK);
     }
 
     @Override
-    public void dispose(GLAutoDrawable glAutoDrawable) {}
-
-    private Color applyLighting(Color baseColor, double dotProduct) {
-        // 70% ambient light + 30% diffuse light from the sun
-        // We clamp the dot product to 0 so that faces pointing away from the light aren't darkened
-        double diffuseFactor = Math.abs(dotProduct);
-        float factor = (float) (0.5 + 0.5 * diffuseFactor);
-
-        // Ensure the factor does not exceed 1.0
-        factor = Math.min(1.0f, factor);
-
-        return new Color(
-                (int) (baseColor.getRed() * factor),
-                (int) (baseColor.getGreen() * factor),
-                (int) (baseColor.getBlue() * factor)
-        );
+    public void dispose(GLAutoDrawable glAutoDrawable) {
+        GL2 gl = glAutoDrawable.getGL().getGL2();
+        sceneBuffers.dispose(gl);
+        if (lightingShader != null) {
+            lightingShader.dispose(gl);
+            lightingShader = null;
+        }
+    }
+
+    public int getDrawnElements() {
+        return drawnElements;
+    }
+
+    public int getCulledElements() {
+        return culledElements;
+    }
+
+    public int getDrawnTriangles() {
+        return drawnTriangles;
     }
+
+    /**
+     * @return level of detail for an element of the given screen size, px, which is currently drawn at currentLod.
+     */
+    static int selectLod(int currentLod, double screenSize) {
+        int lod = currentLod;
+        while (lod > RenderableBuildingElement.LOD_FULL && screenSize > LOD_SIZES[lod - 1] * LOD_HYSTERESIS) {
+            lod--;
+        }
+        while (lod < RenderableBuildingElement.LOD_BOX && screenSize < LOD_SIZES[lod] / LOD_HYSTERESIS) {
+            lod++;
+        }
+        return lod;
+    }
+
     public void toggleWireframeMode() {
         isWireframeMode = !isWireframeMode;
         Config.getPref().putBoolean("urbaneye3d.wireframe.enabled", isWireframeMode);
@@ -147,6 +196,17 @@ public class Renderer3D extends GLJPanel implements GLEventListener {
         gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
         gl.glLoadIdentity();
 
+        // scene can be rebuilt in background while we are drawing, so we take the latest complete snapshot once.
+        // It's held until the frame is drawn, so that storage of its elements is not reused meanwhile.
+        SceneSnapshot buildings = scene.acquireSnapshot();
+        try {
+            drawSnapshot(gl, buildings);
+        } finally {
+            buildings.release();
+        }
+    }
+
+    private void drawSnapshot(GL2 gl, SceneSnapshot buildings) {
         if ( buildings == null || buildings.isEmpty()) {
             return;
         }
@@ -161,186 +221,182 @@ public class Renderer3D extends GLJPanel implements GLEventListener {
 
         glu.gluLookAt(eyeX, eyeY, eyeZ, 0, 0, 0, 0, 0, 1);
 
+        boolean useVbo = isVboSupported && Config.getPref().getBoolean("urbaneye3d.vbo.enabled", true);
+        boolean useShader = useVbo && isShaderSupported && Config.getPref().getBoolean("urbaneye3d.shaders.enabled", false);
+        if (useShader && lightingShader == null) {
+            lightingShader = LightingShader.create(gl);
+            if (lightingShader == null) {
+                // compilation failed, we do not try again.
+                isShaderSupported = false;
+                useShader = false;
+            }
+        }
+        // compact store mode: geometry is read from the store, not from the elements.
+        CompactSceneStore store = buildings.store;
+        if (useVbo) {
+            // new elements are uploaded, only when the snapshot has changed.
+            if (store != null) {
+                sceneBuffers.syncStore(gl, store, useShader);
+            } else {
+                sceneBuffers.sync(gl, buildings, useShader);
+            }
+            sceneBuffers.beginDraw(gl);
+        }
+        if (useShader) {
+            lightingShader.use(gl, ElementGeometry.SUN_DIRECTION, ElementGeometry.AO_STRENGTH);
+        }
+
+        // --- Floating origin ---
+        // Camera (map center) position is computed once per frame. Element origins are precomputed in metres,
+        // so only relative offset is calculated per element, in double precision, vertex data is local to element.
+        LatLon mapCenter = MainApplication.getMap().mapView.getProjection().eastNorth2latlon(MainApplication.getMap().mapView.getCenter());
+        double cameraX = mapCenter.lon() * Contour.METERS_PER_DEGREE;
+        double cameraY = mapCenter.lat() * Contour.METERS_PER_DEGREE;
+        double lonScale = Math.cos(Math.toRadians(mapCenter.lat()));
+
+        // --- Frustum culling ---
+        // camera does not move between elements, so matrices are read once.
+        gl.glGetFloatv(GL2.GL_PROJECTION_MATRIX, projectionMatrix, 0);
+        gl.glGetFloatv(GL2.GL_MODELVIEW_MATRIX, modelviewMatrix, 0);
+        frustum.set(projectionMatrix, modelviewMatrix);
+        if (visibleElements.length < buildings.size()) {
+            visibleElements = new int[buildings.size()];
+        }
+        int visibleCount = buildings.bvh.cull(frustum, cameraX, cameraY, lonScale, visibleElements);
+        drawnElements = visibleCount;
+        culledElements = buildings.size() - visibleCount;
+        if (buildings != lodSnapshot) {
+            // new snapshot, positions have changed. LOD is chosen again, hysteresis starts from the full detail.
+            lodSnapshot = buildings;
+            elementLods = new byte[buildings.size()];
+        }
+
         // --- Render buildings ---
-        for (RenderableBuildingElement building : buildings) {
+        boolean useLod = Config.getPref().getBoolean("urbaneye3d.lod.enabled", true);
+        // size of 1 m at 1 m distance, px
+        double pixelsPerRadian = viewportHeight / (2 * Math.tan(Math.toRadians(FIELD_OF_VIEW / 2)));
+        int triangles = 0;
+        for (int v = 0; v < visibleCount; v++) {
+            int position = visibleElements[v];
+            RenderableBuildingElement building = buildings.get(position);
+            // compact store mode: origins and heights are read from the store, elements do not keep them
+            double x = ((store != null ? store.getOriginX(position) : building.originX) - cameraX) * lonScale;
+            double y = (store != null ? store.getOriginY(position) : building.originY) - cameraY;
+            ElementGeometry geometry = null;
+            if (store != null) {
+                System.arraycopy(store.bounds, 6 * store.getGeometry(position, RenderableBuildingElement.LOD_FULL), box, 0, 6);
+            } else {
+                geometry = building.getGeometry(RenderableBuildingElement.LOD_FULL);
+                box[0] = geometry.minX;
+                box[1] = geometry.minY;
+                box[2] = geometry.minZ;
+                box[3] = geometry.maxX;
+                box[4] = geometry.maxY;
+                box[5] = geometry.maxZ;
+            }
+            int lod = RenderableBuildingElement.LOD_FULL;
+            if (useLod) {
+                double dx = x + (box[0] + box[3]) / 2 - eyeX;
+                double dy = y + (box[1] + box[4]) / 2 - eyeY;
+                double dz = (box[2] + box[5]) / 2 - eyeZ;
+                double distance = Math.max(1.0, Math.sqrt(dx * dx + dy * dy + dz * dz));
+                double sx = box[3] - box[0];
+                double sy = box[4] - box[1];
+                double sz = box[5] - box[2];
+                double screenSize = Math.sqrt(sx * sx + sy * sy + sz * sz) / distance * pixelsPerRadian;
+                lod = selectLod(elementLods[position], screenSize);
+                elementLods[position] = (byte) lod;
+            }
+            int storeGeometry = -1;
+            if (store != null) {
+                storeGeometry = store.getGeometry(position, lod);
+                triangles += store.getTriangleIndexCount(storeGeometry) / 3;
+            } else {
+                geometry = building.getGeometry(lod);
+                triangles += geometry.getTriangleIndexCount() / 3;
+            }
+
             gl.glPushMatrix();
-            LatLon mapCenter = MainApplication.getMap().mapView.getProjection().eastNorth2latlon(MainApplication.getMap().mapView.getCenter());
-            double dx = building.origin.lon() - mapCenter.lon();
-            double dy = building.origin.lat() - mapCenter.lat();
-            double transX = dx * Math.cos(Math.toRadians(mapCenter.lat())) * 111320.0;
-            double transY = dy * 111320.0;
-            gl.glTranslated(transX, transY, 0);
-
-            Mesh buildingMesh = building.getMesh();
-
-            if (buildingMesh != null ){
-                //in normal circumstances we should be able to compose mesh for building.
-                //so we can render mesh directly.
-
-                // Draw wall faces
-                for (int[] face : buildingMesh.wallFaces) {
-                    drawPolygon(gl, building, face, building.color);
-                }
+            gl.glTranslated(x, y, 0);
 
-                // Draw roof faces
-                for (int[] face : buildingMesh.roofFaces) {
-                    drawPolygon(gl, building, face, building.roofColor);
+            if (useShader) {
+                if (store != null) {
+                    lightingShader.setHeightRange(gl, store.getMinHeight(position), store.getHeight(position));
+                } else {
+                    lightingShader.setHeightRange(gl, building.minHeight, building.height);
                 }
-                // Draw bottom faces
-                for (int[] face : buildingMesh.bottomFaces) {
-                    drawPolygon(gl, building, face, building.bottomColor );
+            }
+            if (store != null) {
+                if (useVbo) {
+                    sceneBuffers.drawStoreGeometry(gl, storeGeometry, isWireframeMode);
+                } else {
+                    drawStoreGeometry(gl, store, storeGeometry);
                 }
+            } else if (useVbo) {
+                sceneBuffers.draw(gl, geometry, isWireframeMode);
+            } else {
+                drawGeometry(gl, geometry);
             }
 
             gl.glPopMatrix();
         }
+        drawnTriangles = triangles;
+        if (useShader) {
+            lightingShader.release(gl);
+        }
+        if (useVbo) {
+            sceneBuffers.endDraw(gl);
+        }
         gl.glFlush();
     }
 
 
-    private void drawPolygon(GL2 gl, RenderableBuildingElement building, int[] faceIndices, Color color) {
-        if (faceIndices.length < 3) return;
-        List<Point3D> vertices = building.getMesh().verts;
-        // Calculate face normal for lighting
-        Point3D p1 = vertices.get(faceIndices[0]);
-        Point3D p2 = vertices.get(faceIndices[1]);
-        Point3D p3 = vertices.get(faceIndices[2]);
-
-        Point3D v1 = new Point3D(p2.x - p1.x, p2.y - p1.y, p2.z - p1.z);
-        Point3D v2 = new Point3D(p3.x - p1.x, p3.y - p1.y, p3.z - p1.z);
-        Point3D normal = new Point3D(
-                v1.y * v2.z - v1.z * v2.y,
-                v1.z * v2.x - v1.x * v2.z,
-                v1.x * v2.y - v1.y * v2.x
-        ).normalize();
-
-        double dotProduct = normal.dot(SUN_DIRECTION);
-        Color litColor = applyLighting(color, dotProduct);
+    // Immediate mode fallback. Geometry is already triangulated and lit, so we just pass vertices to GL.
+    private void drawGeometry(GL2 gl, ElementGeometry geometry) {
+        int count = isWireframeMode ? geometry.getLineIndexCount() : geometry.getTriangleIndexCount();
+        gl.glBegin(isWireframeMode ? GL2.GL_LINES : GL2.GL_TRIANGLES);
+        for (int k = 0; k < count; k++) {
+            int index = isWireframeMode ? geometry.getLineIndex(k) : geometry.getTriangleIndex(k);
+            gl.glColor3f(geometry.getVertexValue(index, ElementGeometry.LIT_COLOR_OFFSET),
+                         geometry.getVertexValue(index, ElementGeometry.LIT_COLOR_OFFSET + 1),
+                         geometry.getVertexValue(index, ElementGeometry.LIT_COLOR_OFFSET + 2));
+            gl.glVertex3f(geometry.getVertexValue(index, ElementGeometry.POSITION_OFFSET),
+                          geometry.getVertexValue(index, ElementGeometry.POSITION_OFFSET + 1),
+                          geometry.getVertexValue(index, ElementGeometry.POSITION_OFFSET + 2));
+        }
+        gl.glEnd();
+    }
 
+    // Immediate mode fallback, compact store mode: indices of a geometry are a range of the store index arena.
+    private void drawStoreGeometry(GL2 gl, CompactSceneStore store, int geometry) {
         if (isWireframeMode) {
-            gl.glBegin(GL2.GL_LINE_LOOP);
-            gl.glColor3f(litColor.getRed() / 255.0f, litColor.getGreen() / 255.0f, litColor.getBlue() / 255.0f);
-            for (int index : faceIndices) {
-                Point3D p = vertices.get(index);
-                gl.glVertex3d(p.x, p.y, p.z);
-            }
-            gl.glEnd();
-        } else if (faceIndices.length == 4) {
-            gl.glBegin(GL2.GL_QUADS);
-            Point3D p4 = vertices.get(faceIndices[3]);
-
-            drawVertexWithFakeAO(gl, p1, litColor, building);
-            drawVertexWithFakeAO(gl, p2, litColor, building);
-            drawVertexWithFakeAO(gl, p3, litColor, building);
-            drawVertexWithFakeAO(gl, p4, litColor, building);
-
-            gl.glEnd();
-
+            drawVertices(gl, store.vertices, store.indices, store.lineStarts[geometry], store.lineIndexCounts[geometry]);
         } else {
-            // Use tessellator for all polygons to handle non-convex cases correctly.
-            GLUtessellator tess = glu.gluNewTess();
-            TessellatorCallback callback = new TessellatorCallback(gl, glu, litColor, building);
-
-            glu.gluTessCallback(tess, GLU.GLU_TESS_VERTEX_DATA, callback);
-            glu.gluTessCallback(tess, GLU.GLU_TESS_BEGIN, callback);
-            glu.gluTessCallback(tess, GLU.GLU_TESS_END, callback);
-            glu.gluTessCallback(tess, GLU.GLU_TESS_ERROR, callback);
-            glu.gluTessCallback(tess, GLU.GLU_TESS_COMBINE_DATA, callback);
-
-            glu.gluTessProperty(tess, GLU.GLU_TESS_WINDING_RULE, GLU.GLU_TESS_WINDING_ODD);
-
-            glu.gluTessBeginPolygon(tess, null);
-            glu.gluTessBeginContour(tess);
-
-            for (int index : faceIndices) {
-                Point3D p = vertices.get(index);
-                double[] vertexData = {p.x, p.y, p.z};
-                glu.gluTessVertex(tess, vertexData, 0, p);
-            }
-
-            glu.gluTessEndContour(tess);
-            glu.gluTessEndPolygon(tess);
-            glu.gluDeleteTess(tess);
+            drawVertices(gl, store.vertices, store.indices, store.triangleStarts[geometry], store.triangleIndexCounts[geometry]);
         }
     }
 
-    private void drawVertexWithFakeAO(GL2 gl, Point3D vertex, Color baseColor, RenderableBuildingElement building) {
-        double totalHeight = building.height - building.minHeight;
-        double vertexHeight = vertex.z - building.minHeight;
-        float aoFactor = 1.0f;
-        if (totalHeight > 0.1) { // Avoid division by zero
-            aoFactor = 0.6f + 0.4f * (float)(vertexHeight / totalHeight);
+    private void drawVertices(GL2 gl, float[] vertices, int[] indices, int start, int count) {
+        gl.glBegin(isWireframeMode ? GL2.GL_LINES : GL2.GL_TRIANGLES);
+        for (int k = start; k < start + count; k++) {
+            int offset = indices[k] * ElementGeometry.VERTEX_SIZE;
+            int color = offset + ElementGeometry.LIT_COLOR_OFFSET;
+            gl.glColor3f(vertices[color], vertices[color + 1], vertices[color + 2]);
+            gl.glVertex3f(vertices[offset], vertices[offset + 1], vertices[offset + 2]);
         }
-
-        Color finalColor = new Color(
-                (int)(baseColor.getRed() * aoFactor),
-                (int)(baseColor.getGreen() * aoFactor),
-                (int)(baseColor.getBlue() * aoFactor)
-        );
-
-        gl.glColor3f(finalColor.getRed() / 255.0f, finalColor.getGreen() / 255.0f, finalColor.getBlue() / 255.0f);
-        gl.glVertex3d(vertex.x, vertex.y, vertex.z);
+        gl.glEnd();
     }
 
-    // Tessellator callback inner class
-    private class TessellatorCallback extends GLUtessellatorCallbackAdapter {
-        private final GL2 gl;
-        private final GLU glu;
-        private final Color baseColor;
-        private final RenderableBuildingElement building;
-
-        public TessellatorCallback(GL2 gl, GLU glu, Color baseColor, RenderableBuildingElement building) {
-            this.gl = gl;
-            this.glu = glu;
-            this.baseColor = baseColor;
-            this.building = building;
-        }
-
-        @Override
-        public void begin(int type) {
-            gl.glBegin(type);
-        }
-
-        @Override
-        public void end() {
-            gl.glEnd();
-        }
-
-        @Override
-        public void vertex(Object vertexData) {
-            if (vertexData instanceof Point3D) {
-                drawVertexWithFakeAO(gl, (Point3D) vertexData, baseColor, building);
-            }
-        }
-
-        @Override
-        public void combine(double[] coords, Object[] data, float[] weight, Object[] outData) {
-            Point3D newVertex = new Point3D(coords[0], coords[1], coords[2]);
-            outData[0] = newVertex;
-        }
-
-        @Override
-        public void vertexData(Object vertexData, Object polygonData) {
-            if (vertexData instanceof Point3D) {
-                drawVertexWithFakeAO(gl, (Point3D) vertexData, baseColor, building);
-            }
-        }
-
-        @Override
-        public void error(int errnum) {
-            //TODO: uncomment when some way to output more specific error, including object id is found.
-            //UrbanEye3dPlugin.debugMsg("Tessellation Error (" + errnum + "): " + glu.gluErrorString(errnum));
-        }
-    }
     @Override
     public void reshape(GLAutoDrawable glAutoDrawable, int x, int y, int width, int height) {
         GL2 gl = glAutoDrawable.getGL().getGL2();
         if (height <= 0) height = 1;
         float aspect = (float) width / (float) height;
         gl.glViewport(0, 0, width, height);
+        viewportHeight = height;
         gl.glMatrixMode(GL2.GL_PROJECTION);
         gl.glLoadIdentity();
-        glu.gluPerspective(45.0, aspect, 10.0, 5000.0);
+        glu.gluPerspective(FIELD_OF_VIEW, aspect, 10.0, 5000.0);
         gl.glMatrixMode(GL2.GL_MODELVIEW);
         gl.glLoadIdentity();
     }
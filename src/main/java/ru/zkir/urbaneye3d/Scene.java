@@ -3,214 +3,747 @@ package ru.zkir.urbaneye3d;
 import com.drew.lang.annotations.NotNull;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.*;
+import org.openstreetmap.josm.spi.preferences.Config;
 import ru.zkir.urbaneye3d.utils.Contour;
+import ru.zkir.urbaneye3d.utils.Fingerprint;
+import ru.zkir.urbaneye3d.utils.NodePoints;
 import ru.zkir.urbaneye3d.utils.Point2D;
+import ru.zkir.urbaneye3d.utils.SpatialGrid;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class Scene {
     //the list of elements that should be rendered.
     //renderable element can be either a building or a building part.
     final List<RenderableBuildingElement> renderableElements = new ArrayList<>();
 
-    final static List<String> inheritableKeys = Arrays.asList("building:colour", "building:material", "roof:colour", "roof:material");
+    // Immutable copy of renderableElements, published at the end of each update.
+    // Scene can be built in a background thread, renderer reads only this snapshot.
+    private final AtomicReference<SceneSnapshot> snapshot = new AtomicReference<>(SceneSnapshot.EMPTY);
+
+    // The state below is kept between updates, so that a change of a few primitives
+    // can be applied without rebuilding the whole city.
+    private DataSet dataSet;
+
+    // A map to cache the expensive-to-create Contour objects for each primitive (in lat/lon).
+    private final HashMap<OsmPrimitive, Contour> primitiveContours = new HashMap<>();
+    // Bboxes as they were at the moment of the last update.
+    // Needed to find building parts at the old position of a moved building.
+    private final HashMap<OsmPrimitive, BBox> primitiveBBoxes = new HashMap<>();
+    // Tags are parsed once, when the primitive is registered.
+    private final HashMap<OsmPrimitive, BuildingTags> primitiveTags = new HashMap<>();
+    // Nodes common to several contours are converted once per update, contours share their points.
+    private final NodePoints nodePoints = new NodePoints();
+
+    private final LinkedHashSet<OsmPrimitive> buildings = new LinkedHashSet<>();
+    private final LinkedHashSet<OsmPrimitive> buildingParts = new LinkedHashSet<>();
+    private final HashMap<OsmPrimitive, OsmPrimitive> partParents = new HashMap<>();
+    private final HashMap<OsmPrimitive, Set<OsmPrimitive>> parentParts = new HashMap<>();
+    private final HashMap<OsmPrimitive, Double> buildingHeights = new HashMap<>();
+
+    // Spatial indexes for building/building part containment matching.
+    // Cell size is about 100 m, a typical building occupies a single cell or a few.
+    static final double SPATIAL_INDEX_CELL_SIZE = 0.001;
+    private final SpatialGrid<OsmPrimitive> buildingIndex = new SpatialGrid<>(SPATIAL_INDEX_CELL_SIZE);
+    private final SpatialGrid<OsmPrimitive> partIndex = new SpatialGrid<>(SPATIAL_INDEX_CELL_SIZE);
+
+    // renderable elements created for each primitive. Multipolygons can be split into several elements.
+    private final LinkedHashMap<OsmPrimitive, List<RenderableBuildingElement>> primitiveElements = new LinkedHashMap<>();
+
+    // Elements (and their geometries) are reused across updates, even full rebuilds, if their input data is the same.
+    // Cache should be larger than a typical scene, otherwise a full rebuild evicts entries it is going to need.
+    // In streaming mode it holds only the elements of the area.
+    static final int ELEMENT_CACHE_SIZE = 250000;
+    final ElementCache elementCache = new ElementCache(ELEMENT_CACHE_SIZE, this::elementsUncached);
+
+    // Compact store mode: geometry of the elements is kept in a CompactStoreArena, elements hand it over when they are built.
+    // Saves memory on large scenes. Arena is written in place, only new elements are copied on each update.
+    static final String COMPACT_STORE_PREF_KEY = "urbaneye3d.compact_store.enabled";
+    private CompactStoreArena storeArena; // null if the mode is off
+
+    // Direct storage mode: geometry of the elements is kept off the Java heap, in the storage of the scene.
+    static final String DIRECT_STORAGE_PREF_KEY = "urbaneye3d.direct_buffers.enabled";
+    final DirectStorage directStorage = new DirectStorage(DirectStorage.CHUNK_SIZE);
+    private DirectStorage elementStorage; // directStorage if the mode is on, null otherwise
+
+    // Elements are tracked while they are in the scene or in the cache. Storage of evicted elements (compact store slots,
+    // direct storage) is freed when the snapshots replaced before they were evicted are released.
+    private final ElementReferences elementReferences = new ElementReferences();
+    private final ArrayDeque<SceneSnapshot> retiredSnapshots = new ArrayDeque<>();
+    private final ArrayDeque<List<RenderableBuildingElement>> retiredElements = new ArrayDeque<>();
+
+    // Streaming mode: only buildings within this area (usually a radius around the map center) are in the scene.
+    // null means the whole dataset.
+    private BBox streamingArea;
+
+    // elements to be created for a primitive, and fingerprint of their input data.
+    // Factories capture copies of everything they need (contour, resolved tags), they do not read the dataset.
+    private static class ElementJob {
+        final PrimitiveId primitiveId;
+        final List<Supplier<RenderableBuildingElement>> factories = new ArrayList<>();
+        final Fingerprint fingerprint = new Fingerprint();
+
+        ElementJob(PrimitiveId primitiveId) {
+            this.primitiveId = primitiveId;
+        }
+    }
+
+    // Update is done in two steps: prepare* methods read the dataset (under its read lock, see SceneBuilder)
+    // and collect element jobs, completeUpdate() meshes them and publishes the snapshot, without the dataset.
+    private final LinkedHashMap<OsmPrimitive, ElementJob> pendingJobs = new LinkedHashMap<>();
+    private boolean publishPending;
+    private String pendingMessage;
 
+    /**
+     * Rebuilds the whole scene from the given dataset.
+     */
     public void updateData(DataSet dataSet) {
-        renderableElements.clear();
+        prepareData(dataSet);
+        completeUpdate();
+    }
+
+    /**
+     * First step of {@link #updateData}: reads the dataset. Must be followed by {@link #completeUpdate()}.
+     */
+    void prepareData(DataSet dataSet) {
+        clear();
+        if (isStorageModeSwitched()) {
+            // Elements of the other mode cannot be reused: compact ones have no geometry, direct ones keep it off the heap.
+            elementCache.clear();
+            if (isCompactStore() != (storeArena != null)) {
+                storeArena = storeArena == null ? new CompactStoreArena() : null;
+            }
+            elementStorage = isDirectStorage() ? directStorage : null;
+        }
+        this.dataSet = dataSet;
+        publishPending = true;
         if (dataSet == null){
             return;
         }
 
-        // A map to cache the expensive-to-create Contour objects for each primitive.
-        HashMap<OsmPrimitive, Contour> primitiveContours = new HashMap<>();
+        prepare(streamingArea == null ? dataSet.allPrimitives() : searchPrimitives(dataSet, streamingArea));
+        if (streamingArea != null) {
+            // cache is bounded by the area: elements built for other areas are not kept, see prepareStreamingArea.
+            Set<PrimitiveId> inArea = new HashSet<>();
+            for (OsmPrimitive primitive : buildings) {
+                inArea.add(primitive.getPrimitiveId());
+            }
+            for (OsmPrimitive primitive : buildingParts) {
+                inArea.add(primitive.getPrimitiveId());
+            }
+            elementCache.retainAll(inArea);
+        }
+        pendingMessage = "Scene rebuilt";
+    }
+
+    /**
+     * Second step of an update: creates elements (meshing is the expensive part) and publishes the new snapshot.
+     * It does not read the dataset, so it's done after the dataset lock is released.
+     */
+    void completeUpdate() {
+        if (!publishPending) {
+            return;
+        }
+        try {
+            // Mesh generation (it is done in RenderableBuildingElement constructor) is the most expensive part,
+            // and it is independent for each element. So it is done in parallel, on all cores.
+            List<Map.Entry<OsmPrimitive, ElementJob>> jobs = new ArrayList<>(pendingJobs.entrySet());
+            List<List<RenderableBuildingElement>> results = jobs.parallelStream()
+                    .map(job -> job.getValue().factories.stream().map(Supplier::get).collect(Collectors.toList()))
+                    .collect(Collectors.toList()); //order is preserved
+            for (int i = 0; i < jobs.size(); i++) {
+                if (storeArena != null) {
+                    // geometry is handed over before elements are cached or published, they never change after that.
+                    for (RenderableBuildingElement element : results.get(i)) {
+                        ElementGeometry[] geometries = element.takeGeometry();
+                        storeArena.add(element, geometries);
+                        element.dropStoredAttributes();
+                        // copied, direct storage is not needed anymore
+                        RenderableBuildingElement.freeStorage(geometries);
+                    }
+                }
+                primitiveElements.put(jobs.get(i).getKey(), results.get(i));
+            }
+
+            renderableElements.clear();
+            for (List<RenderableBuildingElement> elements : primitiveElements.values()) {
+                renderableElements.addAll(elements);
+            }
+            // elements of the scene are marked before the cache evicts anything
+            elementReferences.updateScene(renderableElements, snapshot.get());
+            for (int i = 0; i < jobs.size(); i++) {
+                ElementJob job = jobs.get(i).getValue();
+                for (RenderableBuildingElement element : results.get(i)) {
+                    elementReferences.retain(element, ElementReferences.IN_CACHE);
+                }
+                elementCache.put(job.primitiveId, job.fingerprint.get(), results.get(i));
+            }
+            publishSnapshot();
+            if (pendingMessage != null) {
+                UrbanEye3dPlugin.debugMsg(pendingMessage + ", " + renderableElements.size() + " elements, " + elementCache);
+            }
+        } finally {
+            pendingJobs.clear();
+            publishPending = false;
+            pendingMessage = null;
+        }
+    }
+
+    /**
+     * Drops the pending update after a failure of prepare* or {@link #completeUpdate()}.
+     * The scene can be half updated then, so the next update of any kind is a full rebuild.
+     * The published snapshot is not affected.
+     */
+    void discardUpdate() {
+        pendingJobs.clear();
+        nodePoints.clear();
+        publishPending = false;
+        pendingMessage = null;
+        // incremental updates fall back to a rebuild for another dataset
+        dataSet = null;
+    }
+
+    /**
+     * Applies a change of some primitives to the scene.
+     * Only the renderable elements affected by the change are re-meshed and replaced:
+     * the changed buildings and building parts themselves, the ways and relations which refer to changed nodes and ways,
+     * and the building parts and parent buildings whose containment can be changed by the change.
+     *
+     * @param dataSet dataset the changed primitives belong to
+     * @param changedPrimitives primitives reported by the dataset event. Can be nodes, ways or relations, including removed ones.
+     */
+    public void updatePrimitives(DataSet dataSet, Collection<? extends OsmPrimitive> changedPrimitives) {
+        preparePrimitives(dataSet, changedPrimitives);
+        completeUpdate();
+    }
+
+    /**
+     * First step of {@link #updatePrimitives}: reads the dataset. Must be followed by {@link #completeUpdate()}.
+     */
+    void preparePrimitives(DataSet dataSet, Collection<? extends OsmPrimitive> changedPrimitives) {
+        if (dataSet != this.dataSet || isStorageModeSwitched()) {
+            //scene was built for another dataset or storage mode, incremental update makes no sense.
+            prepareData(dataSet);
+            return;
+        }
+        if (dataSet == null) {
+            return;
+        }
+
+        Set<OsmPrimitive> affectedPrimitives = collectAffectedPrimitives(changedPrimitives);
+        if (!affectedPrimitives.isEmpty()) {
+            prepare(affectedPrimitives);
+        }
+    }
+
+    /**
+     * Sets the streaming area to be used by the next rebuild, see {@link #updateData}.
+     *
+     * @param area area, or null to build the whole dataset.
+     */
+    public void setStreamingArea(BBox area) {
+        this.streamingArea = area;
+    }
+
+    /**
+     * Moves the streaming area without rebuilding the whole scene:
+     * buildings which left the area are evicted, buildings which came into it are meshed.
+     * Buildings which stay in the area are not touched at all.
+     *
+     * @param area new area, or null to build the whole dataset.
+     */
+    public void moveStreamingArea(DataSet dataSet, BBox area) {
+        prepareStreamingArea(dataSet, area);
+        completeUpdate();
+    }
+
+    /**
+     * First step of {@link #moveStreamingArea}: reads the dataset. Must be followed by {@link #completeUpdate()}.
+     */
+    void prepareStreamingArea(DataSet dataSet, BBox area) {
+        this.streamingArea = area;
+        if (dataSet != this.dataSet || isStorageModeSwitched()) {
+            prepareData(dataSet);
+            return;
+        }
+        if (dataSet == null) {
+            return;
+        }
+
+        Set<OsmPrimitive> dirtyPrimitives = new LinkedHashSet<>();
+        if (area != null) {
+            for (OsmPrimitive primitive : buildings) {
+                if (!area.intersects(primitiveBBoxes.get(primitive))) {
+                    dirtyPrimitives.add(primitive);
+                }
+            }
+            for (OsmPrimitive primitive : buildingParts) {
+                if (!area.intersects(primitiveBBoxes.get(primitive))) {
+                    dirtyPrimitives.add(primitive);
+                }
+            }
+            // Elements which left the area are not cached: the cache would grow with every area visited.
+            // Their storage is freed when they are out of the scene too, they are meshed again if the area comes back.
+            for (OsmPrimitive primitive : dirtyPrimitives) {
+                elementCache.remove(primitive.getPrimitiveId());
+            }
+        }
+        Collection<? extends OsmPrimitive> candidates = area == null ? dataSet.allPrimitives() : searchPrimitives(dataSet, area);
+        for (OsmPrimitive primitive : candidates) {
+            if (!buildings.contains(primitive) && !buildingParts.contains(primitive)
+                    && (isBuilding(primitive) || isBuildingPart(primitive))) {
+                dirtyPrimitives.add(primitive);
+            }
+        }
+
+        if (!dirtyPrimitives.isEmpty()) {
+            prepare(dirtyPrimitives);
+            pendingMessage = "Streaming area moved, " + dirtyPrimitives.size() + " primitives loaded or evicted";
+        }
+    }
+
+    /**
+     * @return area around the given point, to be used as a streaming area.
+     */
+    static BBox getStreamingArea(LatLon center, double radius) {
+        double dLat = radius / Contour.METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(center.lat())));
+        return new BBox(center.lon() - dLon, center.lat() - dLat, center.lon() + dLon, center.lat() + dLat);
+    }
+
+    private static boolean isCompactStore() {
+        return Config.getPref().getBoolean(COMPACT_STORE_PREF_KEY, false);
+    }
+
+    private static boolean isDirectStorage() {
+        return Config.getPref().getBoolean(DIRECT_STORAGE_PREF_KEY, false);
+    }
+
+    // mode of the preferences is not the one the scene (and the element cache) was built in
+    private boolean isStorageModeSwitched() {
+        return isCompactStore() != (storeArena != null) || isDirectStorage() != (elementStorage != null);
+    }
+
+    // ways and relations whose bboxes intersect the area. Dataset has its own spatial index, so it is cheap.
+    private static List<OsmPrimitive> searchPrimitives(DataSet dataSet, BBox area) {
+        List<OsmPrimitive> result = new ArrayList<>(dataSet.searchWays(area));
+        result.addAll(dataSet.searchRelations(area));
+        return result;
+    }
+
+    private boolean isInStreamingArea(OsmPrimitive primitive) {
+        // building parts of a building on the edge can be partially out of the area.
+        // It's far from the camera, so it is not a big problem.
+        return streamingArea == null || streamingArea.intersects(primitive.getBBox());
+    }
+
+    /**
+     * @return the latest complete list of renderable elements. The list is never modified,
+     * so it can be safely used from any thread without locks.
+     * In compact store and direct storage modes, use {@link #acquireSnapshot()} to read geometry from another thread.
+     */
+    public SceneSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * @return the latest snapshot, which must be released by {@link SceneSnapshot#release()} after use.
+     * Storage of its elements (compact store slots, direct storage) is not reused by the scene thread until it's released.
+     */
+    public SceneSnapshot acquireSnapshot() {
+        while (true) {
+            SceneSnapshot current = snapshot.get();
+            current.readers.incrementAndGet();
+            // snapshot could be replaced (and its slots freed) before it was marked as read, then we take the new one.
+            if (snapshot.get() == current) {
+                return current;
+            }
+            current.release();
+        }
+    }
+
+    /**
+     * Drops everything the scene holds, including the direct storage. Called in the scene thread, when the dialog is destroyed,
+     * the scene must not be updated after that. Snapshots still held by the renderer stay readable.
+     */
+    void dispose() {
+        clear();
+        elementCache.clear();
+        snapshot.set(SceneSnapshot.EMPTY);
+        retiredSnapshots.clear();
+        retiredElements.clear();
+        storeArena = null;
+        directStorage.dispose();
+    }
+
+    private void publishSnapshot() {
+        SceneSnapshot previous = snapshot.get();
+        CompactSceneStore store = storeArena == null ? null : storeArena.view(renderableElements);
+        snapshot.set(new SceneSnapshot(renderableElements, store, previous));
+        // evicted elements can still be in the previous snapshot, and the older ones.
+        retiredSnapshots.add(previous);
+        retiredElements.add(elementReferences.takeEvicted());
+        reclaimStorage();
+    }
+
+    // Frees storage of elements retired with snapshots which are not read anymore. Oldest first:
+    // elements evicted later could be in any older snapshot.
+    private void reclaimStorage() {
+        while (!retiredSnapshots.isEmpty() && retiredSnapshots.peek().readers.get() == 0) {
+            retiredSnapshots.poll();
+            List<RenderableBuildingElement> elements = retiredElements.poll();
+            if (storeArena != null) {
+                storeArena.free(elements);
+            }
+            for (RenderableBuildingElement element : elements) {
+                element.freeStorage();
+            }
+        }
+    }
+
+    private void elementsUncached(List<RenderableBuildingElement> elements) {
+        for (RenderableBuildingElement element : elements) {
+            elementReferences.release(element, ElementReferences.IN_CACHE);
+        }
+    }
 
-        //preliminary list of building parts. Needed to check buildings
-        ArrayList<OsmPrimitive> buildings = new ArrayList<>();
-        ArrayList<OsmPrimitive> buildingParts = new ArrayList<>();
-        HashMap<OsmPrimitive, OsmPrimitive> partParents = new HashMap<>();
-        HashMap<OsmPrimitive, Double> buildingHeights = new HashMap<>();
+    private void clear() {
+        renderableElements.clear();
+        primitiveContours.clear();
+        primitiveBBoxes.clear();
+        primitiveTags.clear();
+        buildings.clear();
+        buildingParts.clear();
+        partParents.clear();
+        parentParts.clear();
+        buildingHeights.clear();
+        buildingIndex.clear();
+        partIndex.clear();
+        primitiveElements.clear();
+        pendingJobs.clear();
+    }
 
+    // Changed node affects the ways it belongs to, changed way affects the relations it is a member of.
+    // So we go up by referrers, nodes themselves are not interesting.
+    private Set<OsmPrimitive> collectAffectedPrimitives(Collection<? extends OsmPrimitive> changedPrimitives) {
+        Set<OsmPrimitive> affected = new LinkedHashSet<>();
+        Set<OsmPrimitive> visited = new HashSet<>();
+        Deque<OsmPrimitive> queue = new ArrayDeque<>(changedPrimitives);
+
+        while (!queue.isEmpty()) {
+            OsmPrimitive primitive = queue.poll();
+            if (!visited.add(primitive)) {
+                continue;
+            }
+            if (!(primitive instanceof Node)) {
+                affected.add(primitive);
+            }
+            queue.addAll(primitive.getReferrers());
+        }
+        return affected;
+    }
+
+    // the main procedure. dirtyPrimitives are either all primitives of the dataset (full rebuild)
+    // or primitives affected by some change.
+    // Everything that needs the dataset is done here, elements are created later, by completeUpdate().
+    private void prepare(Collection<? extends OsmPrimitive> dirtyPrimitives) {
+        publishPending = true;
 
         //We need to do very interesting thing.
         // we need to collect both buildings and building parts.
         //building parts are rendered all
         // buildings -- only if they do not contain building parts.
 
-        for (OsmPrimitive primitive : dataSet.allPrimitives()) {
-            if (primitive instanceof Node || !isPrimitiveComplete(primitive)) {
+        // primitives whose renderable elements should be recreated
+        Set<OsmPrimitive> primitivesToRender = new LinkedHashSet<>();
+        // building parts whose parent building should be determined (again)
+        Set<OsmPrimitive> partsToClassify = new LinkedHashSet<>();
+        // old and new footprints of changed buildings. Parts inside them can change their parent.
+        List<BBox> changedBuildingBBoxes = new ArrayList<>();
+
+        // 1. Forget everything we knew about dirty primitives.
+        for (OsmPrimitive primitive : dirtyPrimitives) {
+            if (primitive instanceof Node) {
                 continue;
             }
-
-            if (primitive.hasKey("building:part") && ! primitive.get("building:part").equals("no") ) {
-                buildingParts.add(primitive);
-                // Create and cache the contour for the building part.
-                primitiveContours.put(primitive, new Contour(primitive, null));
+            if (buildings.contains(primitive)) {
+                changedBuildingBBoxes.add(primitiveBBoxes.get(primitive));
+                partsToClassify.addAll(parentParts.getOrDefault(primitive, Collections.emptySet()));
+            }
+            OsmPrimitive oldParent = partParents.get(primitive);
+            if (oldParent != null) {
+                //parent can become visible, if it was the last part.
+                primitivesToRender.add(oldParent);
             }
+            forget(primitive);
+            primitivesToRender.add(primitive);
         }
 
-        for (OsmPrimitive primitive : dataSet.allPrimitives()) {
-            if (primitive instanceof  Node || !isPrimitiveComplete(primitive)) {
+        // 2. (Re-)register dirty primitives that are buildings or building parts.
+        for (OsmPrimitive primitive : dirtyPrimitives) {
+            if (primitive instanceof Node || !isPrimitiveComplete(primitive) || !isInStreamingArea(primitive)) {
                 continue;
             }
 
-            if (primitive.hasKey("building") && ! primitive.get("building").equals("no") && !  getTagStr("building:part", primitive, null).equals("base") ) {
-                boolean include_element = true;
+            if (isBuildingPart(primitive)) {
+                buildingParts.add(primitive);
+                partsToClassify.add(primitive);
+                // Create and cache the contour for the building part.
+                register(primitive);
+                partIndex.add(primitive, primitiveBBoxes.get(primitive));
+            }
+
+            if (isBuilding(primitive)) {
+                buildings.add(primitive);
                 // Create and cache the contour for the building, if not already present.
-                if (!primitiveContours.containsKey(primitive)) {
-                    primitiveContours.put(primitive, new Contour(primitive, null )); //primitive.getBBox().getCenter()
+                register(primitive);
+                buildingIndex.add(primitive, primitiveBBoxes.get(primitive));
+                changedBuildingBBoxes.add(primitiveBBoxes.get(primitive));
+            }
+        }
+
+        // parts which were inside old footprint of a changed building, or which are inside the new one.
+        if (partsToClassify.size() < buildingParts.size()) {
+            for (BBox buildingBBox : changedBuildingBBoxes) {
+                if (buildingBBox == null) {
+                    continue;
                 }
-                Contour buildingContour = primitiveContours.get(primitive);
-
-                for (OsmPrimitive part: buildingParts ){
-                    // First, a quick BBox check. It is much cheaper and will filter out most of the candidates.
-                    if (primitive.getBBox().bounds(part.getBBox())) {
-                        // If BBoxes intersect, then perform a more expensive contour check.
-                        Contour partContour = primitiveContours.get(part);
-                        //TODO: bug: proper spatial check requires original contour, before simplification.
-                        if (buildingContour.contains(partContour)) {
-                            //there is a building part for this building. goodbye!
-                            partParents.put(part, primitive);
-                        }
+                for (OsmPrimitive part : partIndex.search(buildingBBox)) {
+                    if (buildingBBox.bounds(primitiveBBoxes.get(part))) {
+                        partsToClassify.add(part);
                     }
                 }
-                buildings.add(primitive);
             }
         }
-        ArrayList<OsmPrimitive> allCandidates = new ArrayList<>();
-        allCandidates.addAll(buildings);
-        allCandidates.addAll(buildingParts);
 
-        for (OsmPrimitive primitive : allCandidates) {
-
-            String source_key="";
-            if (primitive.hasKey("building")) {
-                source_key = "building";
-            } else if (primitive.hasKey("building:part")  ) {
-                source_key="building:part";
-            } else {
-                //UrbanEye3dPlugin.debugMsg("Primitive "+ primitive.getPrimitiveId() + " is neither building nor building part");
-                continue;
+        // 3. Find parent buildings for building parts
+        for (OsmPrimitive part : partsToClassify) {
+            OsmPrimitive oldParent = unlinkPart(part);
+            if (oldParent != null) {
+                primitivesToRender.add(oldParent);
             }
 
-            if (primitive instanceof Way) {
-                if (((Way) primitive).getNodesCount() < 3) continue;
+            OsmPrimitive parent = findParent(part);
+            if (parent != null) {
+                partParents.put(part, parent);
+                parentParts.computeIfAbsent(parent, k -> new LinkedHashSet<>()).add(part);
+                primitivesToRender.add(parent);
             }
-            OsmPrimitive parent = partParents.get(primitive);
+            primitivesToRender.add(part);
+        }
 
-            Double height =  getTagD("height", primitive, parent);
-            if ( height==null ) {
-                height = getTagD("building:height", primitive, parent);
+        // 4. Recreate renderable elements. Buildings go first, since parts can inherit their heights.
+        // Tags and heights are resolved here, sequentially. Elements themselves are created later.
+        LinkedHashMap<OsmPrimitive, ElementJob> elementJobs = new LinkedHashMap<>();
+        for (OsmPrimitive primitive : primitivesToRender) {
+            primitiveElements.remove(primitive);
+            pendingJobs.remove(primitive);
+        }
+        for (OsmPrimitive primitive : primitivesToRender) {
+            if (buildings.contains(primitive)) {
+                createElements(primitive, "building", elementJobs);
             }
-            Double levels = getTagD("building:levels", primitive, parent);
-            Double minHeight = getTagD("min_height", primitive, parent);
-            Double minLevel = getTagD("building:min_level", primitive, parent);
-            Double roofHeight = getTagD("roof:height", primitive, parent);
-            Double roofLevels =  getTagD("roof:levels", primitive, parent);
-            String roofShape = getTagStr("roof:shape", primitive, parent);
-            if (roofShape.isEmpty()){
-                roofShape="flat";
+        }
+        for (OsmPrimitive primitive : primitivesToRender) {
+            if (buildingParts.contains(primitive)) {
+                createElements(primitive, "building:part", elementJobs);
             }
+        }
 
-            final double DEFAULT_LEVELS_NUMBER=2;
-            final double DEFAULT_LEVEL_HEIGHT=3;
+        // points are not needed anymore, and nodes can be moved before the next update.
+        nodePoints.clear();
 
-            //default values for minHeight. Tags order: min_height, minLevel
-            if (minHeight ==null){
-                if (minLevel!=null) {
-                    minHeight = minLevel * DEFAULT_LEVEL_HEIGHT;
-                }else{
-                    minHeight=0.0;
-                }
+        // 5. Elements of primitives whose data has not changed since they were created are taken from the cache.
+        // Others are meshed by completeUpdate(), after the dataset lock is released.
+        for (Map.Entry<OsmPrimitive, ElementJob> job : elementJobs.entrySet()) {
+            ElementJob elementJob = job.getValue();
+            List<RenderableBuildingElement> cachedElements = elementCache.get(elementJob.primitiveId, elementJob.fingerprint.get());
+            if (cachedElements != null) {
+                primitiveElements.put(job.getKey(), cachedElements);
+            } else {
+                pendingJobs.put(job.getKey(), elementJob);
             }
+        }
+    }
 
-            //default value for roof:height
-            if (roofHeight == null ) {
-                if (roofLevels != null) {
-                    roofHeight = roofLevels * DEFAULT_LEVEL_HEIGHT;
-                } else {
-                    if (roofShape.equals("flat")) {
-                        roofHeight = 0.;
-                    } else {
-                        roofHeight = 1.0 * DEFAULT_LEVEL_HEIGHT;
-                    }
-                }
-            }
-            //default values for height. Tags order: height, building:levels+roof:levels, default height or parent height
-            if (height==null) {
-                if (source_key.equals("building") && levels == null) {
-                    levels = DEFAULT_LEVELS_NUMBER;
-                }
-                if (levels != null) {
-                    height = levels * DEFAULT_LEVEL_HEIGHT;
-                    height += roofHeight; //roof:levels are not included into levels, so we can do this increment
-                }else{
-                    //This is a very controversial feature. There are a lot of building parts without height,
-                    //which are not rendered in any 3D renderer. So they can look strange.
-                    height = buildingHeights.get(parent);
-                    if (height==null){
-                        //this situation is possible in 2 cases:
-                        // * Building part is orphan
-                        // * Spatial containment check failed
-                        height=0.0;
-                        //System.out.println("Height could not be determined for "+ primitive.getPrimitiveId()+ " (" + source_key+")");
-                    }
-                }
-            }
+    private boolean isBuilding(OsmPrimitive primitive) {
+        return primitive.hasKey("building") && ! primitive.get("building").equals("no") && ! "base".equals(primitive.get("building:part"));
+    }
 
-            if(height<minHeight){
-                // this it not a defined behaviour, so we can do anything.
-                // disappearing buildings are not nice, so let's limit height.
-                height=minHeight;
-            }
+    private boolean isBuildingPart(OsmPrimitive primitive) {
+        return primitive.hasKey("building:part") && ! primitive.get("building:part").equals("no");
+    }
 
-            buildingHeights.put(primitive, height);
+    private void register(OsmPrimitive primitive) {
+        if (!primitiveContours.containsKey(primitive)) {
+            primitiveContours.put(primitive, new Contour(primitive, null, nodePoints)); //primitive.getBBox().getCenter()
+            primitiveBBoxes.put(primitive, primitive.getBBox());
+            primitiveTags.put(primitive, new BuildingTags(primitive));
+        }
+    }
 
-            // this is a dirty hack.
-            // since we do not have proper support for building:part=roof,
-            // we just set zero height for walls. It's better than nothing obviously.
-            //TODO: for gabled and profiled building:part=roof requires completely different mesher:
-            //walls and bottom are not created, but roof polygons are extruded downwards slightly!
-            if (primitive.get(source_key).equals("roof")){
-                minHeight = height - roofHeight;
+    private void forget(OsmPrimitive primitive) {
+        unlinkPart(primitive);
+        Set<OsmPrimitive> parts = parentParts.remove(primitive);
+        if (parts != null) {
+            for (OsmPrimitive part : parts) {
+                partParents.remove(part);
             }
+        }
+        buildings.remove(primitive);
+        buildingParts.remove(primitive);
+        primitiveContours.remove(primitive);
+        primitiveBBoxes.remove(primitive);
+        primitiveTags.remove(primitive);
+        buildingHeights.remove(primitive);
+        buildingIndex.remove(primitive);
+        partIndex.remove(primitive);
+        primitiveElements.remove(primitive);
+        pendingJobs.remove(primitive);
+    }
 
-            if (partParents.containsValue(primitive)){
-                continue; //we just skip building if it is a parent for some building parts.
+    private OsmPrimitive unlinkPart(OsmPrimitive part) {
+        OsmPrimitive parent = partParents.remove(part);
+        if (parent != null) {
+            Set<OsmPrimitive> siblings = parentParts.get(parent);
+            siblings.remove(part);
+            if (siblings.isEmpty()) {
+                parentParts.remove(parent);
             }
+        }
+        return parent;
+    }
 
-            if (height > 0) {
-                String color = getTagStr("building:colour", primitive, parent);
-                String roofColor = getTagStr("roof:colour", primitive, parent);
+    private OsmPrimitive findParent(OsmPrimitive part) {
+        OsmPrimitive parent = null;
+        double parentArea = Double.MAX_VALUE;
+        BBox partBBox = primitiveBBoxes.get(part);
+        Contour partContour = primitiveContours.get(part);
+        // Spatial index returns only buildings near the part, not all of them.
+        for (OsmPrimitive building : buildingIndex.search(partBBox)) {
+            BBox buildingBBox = primitiveBBoxes.get(building);
+            // First, a quick BBox check. It is much cheaper and will filter out most of the candidates.
+            if (buildingBBox.bounds(partBBox)) {
+                // If BBoxes intersect, then perform a more expensive contour check, on the original (not simplified) rings.
+                Contour buildingContour = primitiveContours.get(building);
+                if (buildingContour.contains(partContour)) {
+                    //there is a building part for this building. goodbye!
+                    //In case of nested buildings, the innermost one is the parent.
+                    double area = bboxArea(buildingBBox);
+                    if (area < parentArea) {
+                        parent = building;
+                        parentArea = area;
+                    }
+                }
+            }
+        }
+        return parent;
+    }
 
-                String roofDirection = getTagStr("roof:direction", primitive, parent);
-                String roofOrientation = getTagStr("roof:orientation", primitive, parent);
+    private static double bboxArea(BBox bbox) {
+        return (bbox.getBottomRightLon() - bbox.getTopLeftLon()) * (bbox.getTopLeftLat() - bbox.getBottomRightLat());
+    }
+
+    private void createElements(OsmPrimitive primitive, String source_key,
+                                Map<OsmPrimitive, ElementJob> elementJobs) {
+
+        if (primitive instanceof Way) {
+            if (((Way) primitive).getNodesCount() < 3) return;
+        }
+        OsmPrimitive parent = partParents.get(primitive);
+        BuildingTags tags = primitiveTags.get(primitive);
+        BuildingTags parentTags = parent == null ? null : primitiveTags.get(parent);
+        boolean asBuilding = source_key.equals("building");
+
+        Double parentHeight = parent == null ? null : buildingHeights.get(parent);
+        BuildingTags.Heights heights = tags.resolveHeights(asBuilding, parentHeight == null ? Double.NaN : parentHeight);
+        double height = heights.height;
+        double minHeight = heights.minHeight;
+        double roofHeight = heights.roofHeight;
+        String roofShape = heights.roofShape;
+
+        buildingHeights.put(primitive, height);
+
+        // this is a dirty hack.
+        // since we do not have proper support for building:part=roof,
+        // we just set zero height for walls. It's better than nothing obviously.
+        //TODO: for gabled and profiled building:part=roof requires completely different mesher:
+        //walls and bottom are not created, but roof polygons are extruded downwards slightly!
+        if ("roof".equals(tags.getSourceValue(asBuilding))){
+            minHeight = height - roofHeight;
+        }
 
-                LatLon primitiveOrigin = primitive.getBBox().getCenter();
-                Contour mainContour = primitiveContours.get(primitive);
+        if (parentParts.containsKey(primitive)){
+            return; //we just skip building if it is a parent for some building parts.
+        }
 
-                if (mainContour != null && !mainContour.outerRings.isEmpty()) {
-                    if (primitive instanceof Relation && mainContour.outerRings.size() > 1 && mainContour.innerRings.isEmpty()) {
-                        // Split multipolygon with multiple outer rings and no inner rings
-                        for (ArrayList<Point2D> outerRing : mainContour.outerRings) {
+        if (height > 0) {
+            // values captured by element factories
+            final double elementHeight = height;
+            final double elementMinHeight = minHeight;
+            final double elementRoofHeight = roofHeight;
+            final String elementRoofShape = roofShape;
+            final DirectStorage storage = elementStorage;
+            String color = inheritTag(tags.colour, parentTags == null ? null : parentTags.colour);
+            String roofColor = inheritTag(tags.roofColour, parentTags == null ? null : parentTags.roofColour);
+
+            String roofDirection = inheritTag(tags.roofDirection, null);
+            String roofOrientation = inheritTag(tags.roofOrientation, null);
+
+            LatLon primitiveOrigin = primitive.getBBox().getCenter();
+            Contour cachedContour = primitiveContours.get(primitive);
+
+            if (cachedContour != null && !cachedContour.outerRings.isEmpty()) {
+                PrimitiveId primitiveId = primitive.getPrimitiveId();
+                ElementJob job = new ElementJob(primitiveId);
+                // everything that affects element geometry and colours.
+                job.fingerprint.add(primitiveOrigin.lat()).add(primitiveOrigin.lon())
+                        .add(cachedContour.outerRings).add(cachedContour.innerRings)
+                        .add(elementHeight).add(elementMinHeight).add(elementRoofHeight).add(elementRoofShape)
+                        .add(color).add(roofColor).add(roofDirection).add(roofOrientation);
+
+                // cached contour is in lat/lon, and it is still needed for containment checks of subsequent updates,
+                // so elements are created from copies.
+                if (primitive instanceof Relation && cachedContour.outerRings.size() > 1 && cachedContour.innerRings.isEmpty()) {
+                    // Split multipolygon with multiple outer rings and no inner rings
+                    for (ArrayList<Point2D> outerRing : cachedContour.outerRings) {
+                        job.factories.add(() -> {
                             //TODO: this is not exactly correct. primitiveOrigin should be adjusted also (like blender ORIGIN_TO_GEOMETRY)
-                            Contour partContour = new Contour(outerRing);
-                            partContour.toLocalCoords(primitiveOrigin); //TODO: recalculate origin
-                            renderableElements.add(new RenderableBuildingElement(primitive.getPrimitiveId(),  primitiveOrigin, partContour, height, minHeight, roofHeight, color, roofColor, roofShape, roofDirection, roofOrientation));
-                        }
-                    } else {
-                        // Single outer ring, or multiple outer rings with inner rings, or a Way
-                        mainContour.toLocalCoords(primitiveOrigin);
-                        renderableElements.add(new RenderableBuildingElement(primitive.getPrimitiveId(), primitiveOrigin, mainContour, height, minHeight, roofHeight, color, roofColor, roofShape, roofDirection, roofOrientation));
+                            Contour partContour = new Contour(Contour.toLocalCoords(outerRing, primitiveOrigin)); //TODO: recalculate origin
+                            return new RenderableBuildingElement(primitiveId, primitiveOrigin, partContour, elementHeight, elementMinHeight, elementRoofHeight, color, roofColor, elementRoofShape, roofDirection, roofOrientation, storage);
+                        });
                     }
+                } else {
+                    // Single outer ring, or multiple outer rings with inner rings, or a Way
+                    job.factories.add(() -> {
+                        Contour mainContour = new Contour(cachedContour, primitiveOrigin);
+                        return new RenderableBuildingElement(primitiveId, primitiveOrigin, mainContour, elementHeight, elementMinHeight, elementRoofHeight, color, roofColor, elementRoofShape, roofDirection, roofOrientation, storage);
+                    });
                 }
+                elementJobs.put(primitive, job);
             }
         }
     }
 
     private boolean isPrimitiveComplete(OsmPrimitive primitive) {
+        if (primitive.getDataSet() != dataSet) {
+            //primitive was removed from the dataset
+            return false;
+        }
         boolean isComplete=true;
         if (primitive instanceof Relation){
             Relation rel = (Relation)primitive;
@@ -228,36 +761,11 @@ public class Scene {
         return isComplete;
     }
 
-    private @NotNull String getTagStr(String key, OsmPrimitive primitive, OsmPrimitive parent ){
-
-        String value=primitive.get(key);
-        if ((value==null) && parent!=null && inheritableKeys.contains(key)){
-            value=parent.get(key);
-        }
-
-        if (value==null){
-            value="";
-        }
-        return value;
-    }
-
-    //we need to get a floating point value from an osm tag
-    // if tag is missing or cannot be parsed, the return value is null,
-    // to let it possible to fallback to defaults.
-    private Double getTagD(String key, OsmPrimitive primitive, OsmPrimitive parent ){
-        Double result;
-        String tag_str = getTagStr(key, primitive, parent);
-
-        if (tag_str.isEmpty()){
-            return null;
+    // tag value, or the value of the parent for inheritable tags (building:colour, roof:colour), or empty string.
+    private static @NotNull String inheritTag(String value, String parentValue) {
+        if (value == null) {
+            value = parentValue;
         }
-
-        try {
-            result = Double.parseDouble(tag_str.split(" ")[0]);
-        } catch (NumberFormatException e) {
-            result = null;
-        }
-        return result;
-
+        return value == null ? "" : value;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,354 @@
+package ru.zkir.urbaneye3d;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vertex buffer objects of the scene elements (retained mode rendering).
+ * Geometry of an element (all its levels of detail) is uploaded once, when the element appears in the scene snapshot.
+ * After that it is drawn by a single glDrawElements call per frame.
+ * Buffers of elements which are not in the snapshot anymore are deleted.
+ * Must be used in GL thread only.
+ *
+ * Only vertex attributes needed by the current pipeline are uploaded:
+ * position + lit colour for the fixed function pipeline,
+ * position + normal + base colour for the shader, which computes lighting itself.
+ * Geometries in direct storage mode are uploaded right from the storage, no copy: the attributes of either pipeline
+ * are a single range there (see ElementGeometry.DIRECT_NORMAL_BLOCK), so they are bound by blocks, not interleaved.
+ */
+class SceneBuffers {
+    private static final int FIXED_VERTEX_SIZE = 6;
+    private static final int SHADER_VERTEX_SIZE = 9;
+
+    private static class ElementBuffers {
+        final int vertexBuffer;
+        final int indexBuffer;
+        final int triangleIndexCount;
+        final int lineIndexCount;
+        final int blockSize; // direct storage layout: bytes of an attribute block. 0 if vertices are interleaved.
+
+        ElementBuffers(int vertexBuffer, int indexBuffer, int triangleIndexCount, int lineIndexCount, int blockSize) {
+            this.vertexBuffer = vertexBuffer;
+            this.indexBuffer = indexBuffer;
+            this.triangleIndexCount = triangleIndexCount;
+            this.lineIndexCount = lineIndexCount;
+            this.blockSize = blockSize;
+        }
+    }
+
+    // geometries are immutable and reused between snapshots, so they are identified by reference.
+    private final IdentityHashMap<ElementGeometry, ElementBuffers> buffers = new IdentityHashMap<>();
+    private List<RenderableBuildingElement> syncedSnapshot;
+    private boolean shaderLayout;
+
+    // Compact store mode: the arenas of the store are kept in one vertex and one index buffer, of the arena capacity.
+    // Arenas are uploaded as a whole only when they are reallocated, otherwise only ranges written since the last sync.
+    private CompactSceneStore syncedStore;
+    private ElementBuffers storeBuffers;
+    private float[] syncedVertices;
+    private int[] syncedIndices;
+    private int syncedGeneration;
+    private int syncedWrites;
+    private FloatBuffer stagingVertices; // reused by uploads, glBufferData copies the data before it returns
+    private IntBuffer stagingIndices;
+    private final int[] names = new int[2]; // buffer names, for glGenBuffers and glDeleteBuffers
+
+    /**
+     * Uploads buffers for the new elements of the snapshot, and deletes buffers of elements which are gone.
+     * Does nothing if the snapshot and the layout are the same as last time.
+     *
+     * @param shaderLayout true if buffers are going to be drawn with LightingShader.
+     */
+    void sync(GL2 gl, List<RenderableBuildingElement> snapshot, boolean shaderLayout) {
+        if (shaderLayout != this.shaderLayout) {
+            // pipeline has been switched, everything should be uploaded again.
+            dispose(gl);
+            this.shaderLayout = shaderLayout;
+        }
+        if (snapshot == syncedSnapshot) {
+            return;
+        }
+        deleteStoreBuffers(gl);
+
+        // levels of detail can share the same geometry, so it's a set.
+        Set<ElementGeometry> alive = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (RenderableBuildingElement element : snapshot) {
+            for (int lod = RenderableBuildingElement.LOD_FULL; lod <= RenderableBuildingElement.LOD_BOX; lod++) {
+                ElementGeometry geometry = element.getGeometry(lod);
+                // null in compact store mode, geometry is in the store then.
+                if (geometry != null) {
+                    alive.add(geometry);
+                }
+            }
+        }
+        Iterator<Map.Entry<ElementGeometry, ElementBuffers>> it = buffers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ElementGeometry, ElementBuffers> entry = it.next();
+            if (!alive.contains(entry.getKey())) {
+                delete(gl, entry.getValue());
+                it.remove();
+            }
+        }
+
+        for (ElementGeometry geometry : alive) {
+            if (!buffers.containsKey(geometry)) {
+                buffers.put(geometry, upload(gl, geometry));
+            }
+        }
+        syncedSnapshot = snapshot;
+    }
+
+    /**
+     * Compact store mode: uploads geometries written to the store since the last sync. Element buffers are deleted.
+     * Store arrays can be written by the scene thread meanwhile, but only ranges the store does not refer to,
+     * and they are in its write log then, so they will be uploaded by the next sync.
+     */
+    void syncStore(GL2 gl, CompactSceneStore store, boolean shaderLayout) {
+        if (shaderLayout != this.shaderLayout) {
+            dispose(gl);
+            this.shaderLayout = shaderLayout;
+        }
+        if (store == syncedStore) {
+            return;
+        }
+        for (ElementBuffers elementBuffers : buffers.values()) {
+            delete(gl, elementBuffers);
+        }
+        buffers.clear();
+        syncedSnapshot = null;
+
+        if (storeBuffers == null || store.vertices != syncedVertices || store.indices != syncedIndices
+                || store.logGeneration != syncedGeneration || store.writeCount < syncedWrites) {
+            // arenas have been reallocated, or the write log restarted
+            deleteStoreBuffers(gl);
+            FloatBuffer vertices = Buffers.newDirectFloatBuffer(store.getVertexCount() * vertexSize());
+            packVertices(store.vertices, 0, store.getVertexCount(), vertices);
+            vertices.rewind();
+            storeBuffers = upload(gl, vertices, Buffers.newDirectIntBuffer(store.indices), store.indices.length, 0, 0);
+        } else {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, storeBuffers.vertexBuffer);
+            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, storeBuffers.indexBuffer);
+            for (int i = syncedWrites; i < store.writeCount; i++) {
+                int firstVertex = store.writeLog[4 * i];
+                int vertexCount = store.writeLog[4 * i + 1];
+                int firstIndex = store.writeLog[4 * i + 2];
+                int indexCount = store.writeLog[4 * i + 3];
+                ensureStaging(vertexCount * vertexSize(), indexCount);
+                packVertices(store.vertices, firstVertex, vertexCount, stagingVertices);
+                stagingVertices.flip();
+                gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long) firstVertex * vertexSize() * Buffers.SIZEOF_FLOAT,
+                                   (long) vertexCount * vertexSize() * Buffers.SIZEOF_FLOAT, stagingVertices);
+                stagingIndices.put(store.indices, firstIndex, indexCount);
+                stagingIndices.flip();
+                gl.glBufferSubData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) firstIndex * Buffers.SIZEOF_INT,
+                                   (long) indexCount * Buffers.SIZEOF_INT, stagingIndices);
+            }
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        }
+        syncedStore = store;
+        syncedVertices = store.vertices;
+        syncedIndices = store.indices;
+        syncedGeneration = store.logGeneration;
+        syncedWrites = store.writeCount;
+    }
+
+    void beginDraw(GL2 gl) {
+        if (shaderLayout) {
+            gl.glEnableVertexAttribArray(LightingShader.POSITION_ATTRIBUTE);
+            gl.glEnableVertexAttribArray(LightingShader.NORMAL_ATTRIBUTE);
+            gl.glEnableVertexAttribArray(LightingShader.BASE_COLOR_ATTRIBUTE);
+        } else {
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+        }
+    }
+
+    void draw(GL2 gl, ElementGeometry geometry, boolean wireframe) {
+        ElementBuffers elementBuffers = buffers.get(geometry);
+        if (elementBuffers == null) {
+            return;
+        }
+        bind(gl, elementBuffers);
+        if (wireframe) {
+            // line indices are stored right after triangle indices
+            gl.glDrawElements(GL.GL_LINES, elementBuffers.lineIndexCount, GL.GL_UNSIGNED_INT,
+                              (long) elementBuffers.triangleIndexCount * Buffers.SIZEOF_INT);
+        } else {
+            gl.glDrawElements(GL.GL_TRIANGLES, elementBuffers.triangleIndexCount, GL.GL_UNSIGNED_INT, 0);
+        }
+    }
+
+    // compact store mode: draws a geometry of the synced store. Indices in the store are absolute, so it's just a range.
+    void drawStoreGeometry(GL2 gl, int geometry, boolean wireframe) {
+        if (storeBuffers == null) {
+            return;
+        }
+        bind(gl, storeBuffers);
+        if (wireframe) {
+            gl.glDrawElements(GL.GL_LINES, syncedStore.lineIndexCounts[geometry], GL.GL_UNSIGNED_INT,
+                              (long) syncedStore.lineStarts[geometry] * Buffers.SIZEOF_INT);
+        } else {
+            gl.glDrawElements(GL.GL_TRIANGLES, syncedStore.triangleIndexCounts[geometry], GL.GL_UNSIGNED_INT,
+                              (long) syncedStore.triangleStarts[geometry] * Buffers.SIZEOF_INT);
+        }
+    }
+
+    private void bind(GL2 gl, ElementBuffers elementBuffers) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, elementBuffers.vertexBuffer);
+        long block = elementBuffers.blockSize;
+        if (block > 0) {
+            // direct storage layout. The fixed pipeline range starts at the position block.
+            int stride = 3 * Buffers.SIZEOF_FLOAT;
+            if (shaderLayout) {
+                gl.glVertexAttribPointer(LightingShader.POSITION_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride,
+                                         ElementGeometry.DIRECT_POSITION_BLOCK * block);
+                gl.glVertexAttribPointer(LightingShader.NORMAL_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride,
+                                         ElementGeometry.DIRECT_NORMAL_BLOCK * block);
+                gl.glVertexAttribPointer(LightingShader.BASE_COLOR_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride,
+                                         ElementGeometry.DIRECT_BASE_COLOR_BLOCK * block);
+            } else {
+                gl.glVertexPointer(3, GL.GL_FLOAT, stride, 0);
+                gl.glColorPointer(3, GL.GL_FLOAT, stride,
+                                  (ElementGeometry.DIRECT_LIT_COLOR_BLOCK - ElementGeometry.DIRECT_POSITION_BLOCK) * block);
+            }
+        } else if (shaderLayout) {
+            int stride = SHADER_VERTEX_SIZE * Buffers.SIZEOF_FLOAT;
+            gl.glVertexAttribPointer(LightingShader.POSITION_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride, 0);
+            gl.glVertexAttribPointer(LightingShader.NORMAL_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride, 3 * Buffers.SIZEOF_FLOAT);
+            gl.glVertexAttribPointer(LightingShader.BASE_COLOR_ATTRIBUTE, 3, GL.GL_FLOAT, false, stride, 6 * Buffers.SIZEOF_FLOAT);
+        } else {
+            int stride = FIXED_VERTEX_SIZE * Buffers.SIZEOF_FLOAT;
+            gl.glVertexPointer(3, GL.GL_FLOAT, stride, 0);
+            gl.glColorPointer(3, GL.GL_FLOAT, stride, 3 * Buffers.SIZEOF_FLOAT);
+        }
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, elementBuffers.indexBuffer);
+    }
+
+    void endDraw(GL2 gl) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        if (shaderLayout) {
+            gl.glDisableVertexAttribArray(LightingShader.POSITION_ATTRIBUTE);
+            gl.glDisableVertexAttribArray(LightingShader.NORMAL_ATTRIBUTE);
+            gl.glDisableVertexAttribArray(LightingShader.BASE_COLOR_ATTRIBUTE);
+        } else {
+            gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+            gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        }
+    }
+
+    /**
+     * Deletes all buffers. Should be called when GL context is disposed.
+     */
+    void dispose(GL2 gl) {
+        for (ElementBuffers elementBuffers : buffers.values()) {
+            delete(gl, elementBuffers);
+        }
+        deleteStoreBuffers(gl);
+        reset();
+    }
+
+    /**
+     * Forgets all buffers without deleting them, e.g. when GL context has been recreated and old buffer names are invalid.
+     */
+    void reset() {
+        buffers.clear();
+        syncedSnapshot = null;
+        storeBuffers = null;
+        syncedStore = null;
+        syncedVertices = null;
+        syncedIndices = null;
+    }
+
+    private void deleteStoreBuffers(GL2 gl) {
+        if (storeBuffers != null) {
+            delete(gl, storeBuffers);
+            storeBuffers = null;
+        }
+        syncedStore = null;
+        syncedVertices = null;
+        syncedIndices = null;
+    }
+
+    private ElementBuffers upload(GL2 gl, ElementGeometry geometry) {
+        if (geometry.isDirect()) {
+            // the range of the pipeline attributes, in place
+            int block = 3 * geometry.getVertexCount();
+            FloatBuffer vertices = geometry.getVertexData().duplicate();
+            if (shaderLayout) {
+                vertices.position(ElementGeometry.DIRECT_NORMAL_BLOCK * block).limit(ElementGeometry.DIRECT_POSITION_BLOCK * block + block);
+            } else {
+                vertices.position(ElementGeometry.DIRECT_POSITION_BLOCK * block).limit(ElementGeometry.DIRECT_LIT_COLOR_BLOCK * block + block);
+            }
+            return upload(gl, vertices, geometry.getIndexData().duplicate(), geometry.getTriangleIndexCount(),
+                          geometry.getLineIndexCount(), block * Buffers.SIZEOF_FLOAT);
+        }
+        ensureStaging(geometry.getVertexCount() * vertexSize(), geometry.triangles.length + geometry.lines.length);
+        packVertices(geometry.vertices, 0, geometry.getVertexCount(), stagingVertices);
+        stagingVertices.flip();
+        stagingIndices.put(geometry.triangles).put(geometry.lines).flip();
+        return upload(gl, stagingVertices, stagingIndices, geometry.triangles.length, geometry.lines.length, 0);
+    }
+
+    // cleared staging buffers of at least this size
+    private void ensureStaging(int vertexFloats, int indexCount) {
+        if (stagingVertices == null || stagingVertices.capacity() < vertexFloats) {
+            stagingVertices = Buffers.newDirectFloatBuffer(Math.max(4096, Integer.highestOneBit(vertexFloats) * 2));
+        }
+        if (stagingIndices == null || stagingIndices.capacity() < indexCount) {
+            stagingIndices = Buffers.newDirectIntBuffer(Math.max(4096, Integer.highestOneBit(indexCount) * 2));
+        }
+        stagingVertices.clear();
+        stagingIndices.clear();
+    }
+
+    private ElementBuffers upload(GL2 gl, FloatBuffer vertices, IntBuffer indices, int triangleIndexCount, int lineIndexCount,
+                                  int blockSize) {
+        gl.glGenBuffers(2, names, 0);
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, names[0]);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) vertices.remaining() * Buffers.SIZEOF_FLOAT, vertices, GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, names[1]);
+        gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) indices.remaining() * Buffers.SIZEOF_INT, indices, GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+        return new ElementBuffers(names[0], names[1], triangleIndexCount, lineIndexCount, blockSize);
+    }
+
+    private int vertexSize() {
+        return shaderLayout ? SHADER_VERTEX_SIZE : FIXED_VERTEX_SIZE;
+    }
+
+    // vertex attributes needed by the current pipeline, from VERTEX_SIZE floats per vertex. Written at the target position.
+    private void packVertices(float[] source, int firstVertex, int vertexCount, FloatBuffer target) {
+        for (int i = firstVertex; i < firstVertex + vertexCount; i++) {
+            int from = i * ElementGeometry.VERTEX_SIZE;
+            target.put(source, from + ElementGeometry.POSITION_OFFSET, 3);
+            if (shaderLayout) {
+                target.put(source, from + ElementGeometry.NORMAL_OFFSET, 3);
+                target.put(source, from + ElementGeometry.BASE_COLOR_OFFSET, 3);
+            } else {
+                target.put(source, from + ElementGeometry.LIT_COLOR_OFFSET, 3);
+            }
+        }
+    }
+
+    private void delete(GL2 gl, ElementBuffers elementBuffers) {
+        names[0] = elementBuffers.vertexBuffer;
+        names[1] = elementBuffers.indexBuffer;
+        gl.glDeleteBuffers(2, names, 0);
+    }
+}
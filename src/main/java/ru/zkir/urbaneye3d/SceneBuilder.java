@@ -0,0 +1,222 @@
+package ru.zkir.urbaneye3d;
+
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Builds the scene in a background thread, so that large rebuilds do not block JOSM UI.
+ * When an update is complete, the new scene snapshot is published (see {@link Scene#getSnapshot()})
+ * and onSceneUpdated callback is called, so the renderer can be repainted.
+ *
+ * Dataset events come in storms: dragging a node fires dozens of nodeMoved events per second,
+ * paste or bulk tag edit fires thousands of events at once. So events are not processed one by one,
+ * they are collected into a dirty set, and a single scene update is executed at most once per latency window.
+ */
+public class SceneBuilder {
+    // how long we wait for more events before the scene is updated, ms.
+    static final String LATENCY_PREF_KEY = "urbaneye3d.update.latency";
+    static final int DEFAULT_LATENCY = 50;
+
+    private final Scene scene;
+    private final Runnable onSceneUpdated;
+    // single thread: Scene itself is not thread-safe, and the order of updates matters.
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "UrbanEye3D scene builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // pending changes, guarded by this
+    private DataSet pendingDataSet;
+    private boolean pendingRebuild;
+    private final Set<OsmPrimitive> pendingPrimitives = new LinkedHashSet<>();
+    private boolean flushScheduled;
+    private BBox pendingArea;
+    private boolean pendingAreaChanged;
+    private boolean shutdown;
+
+    // statistics
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong updatesExecuted = new AtomicLong();
+
+    public SceneBuilder(Scene scene, Runnable onSceneUpdated) {
+        this.scene = scene;
+        this.onSceneUpdated = onSceneUpdated;
+    }
+
+    /**
+     * Requests a full rebuild of the scene from the given dataset.
+     */
+    public synchronized void rebuild(DataSet dataSet) {
+        eventsReceived.incrementAndGet();
+        pendingRebuild = true;
+        pendingDataSet = dataSet;
+        pendingPrimitives.clear(); //full rebuild covers them anyway
+        scheduleFlush();
+    }
+
+    /**
+     * Requests an incremental update of the scene, see {@link Scene#updatePrimitives}
+     */
+    public synchronized void update(DataSet dataSet, Collection<? extends OsmPrimitive> changedPrimitives) {
+        eventsReceived.incrementAndGet();
+        if (dataSet != pendingDataSet && (pendingRebuild || !pendingPrimitives.isEmpty())) {
+            //dataset has been switched while changes of the old one are still pending.
+            pendingRebuild = true;
+            pendingPrimitives.clear();
+        }
+        pendingDataSet = dataSet;
+        if (!pendingRebuild) {
+            pendingPrimitives.addAll(changedPrimitives);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Requests to move the streaming area of the scene, see {@link Scene#moveStreamingArea}.
+     * Buildings which came into the area are loaded in background, buildings which left it are evicted.
+     *
+     * @param area new area, or null to build the whole dataset.
+     */
+    public synchronized void setStreamingArea(DataSet dataSet, BBox area) {
+        eventsReceived.incrementAndGet();
+        if (dataSet != pendingDataSet && (pendingRebuild || !pendingPrimitives.isEmpty())) {
+            pendingRebuild = true;
+            pendingPrimitives.clear();
+        }
+        pendingDataSet = dataSet;
+        pendingArea = area;
+        pendingAreaChanged = true;
+        scheduleFlush();
+    }
+
+    /**
+     * @return number of rebuild/update requests received
+     */
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    /**
+     * @return number of scene updates actually executed
+     */
+    public long getUpdatesExecuted() {
+        return updatesExecuted.get();
+    }
+
+    /**
+     * Stops the builder. Pending updates are dropped, the scene is disposed in the builder thread,
+     * after the update which is running now, if any.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        try {
+            executor.execute(scene::dispose);
+        } catch (RejectedExecutionException e) {
+            //already shut down
+        }
+        executor.shutdown();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        int latency = Math.max(0, Config.getPref().getInt(LATENCY_PREF_KEY, DEFAULT_LATENCY));
+        try {
+            executor.schedule(this::flush, latency, TimeUnit.MILLISECONDS);
+            flushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            //builder has been shut down, dialog is being destroyed.
+        }
+    }
+
+    private void flush() {
+        DataSet dataSet;
+        boolean rebuild;
+        List<OsmPrimitive> primitives;
+        BBox area;
+        boolean areaChanged;
+        synchronized (this) {
+            dataSet = pendingDataSet;
+            rebuild = pendingRebuild;
+            primitives = new ArrayList<>(pendingPrimitives);
+            pendingRebuild = false;
+            pendingPrimitives.clear();
+            area = pendingArea;
+            areaChanged = pendingAreaChanged;
+            pendingAreaChanged = false;
+            flushScheduled = false;
+            if (shutdown) {
+                return;
+            }
+        }
+
+        // dataset can be edited in the EDT at the same time, so we read it under the read lock.
+        // Only inputs of the elements (contours, tags, parents) are collected under the lock, meshing is done
+        // after it's released, so that edits in the EDT are not blocked by a long rebuild.
+        Lock lock = dataSet != null ? dataSet.getReadLock() : null;
+        try {
+            if (lock != null) {
+                lock.lock();
+            }
+            try {
+                if (rebuild) {
+                    if (areaChanged) {
+                        scene.setStreamingArea(area);
+                    }
+                    scene.prepareData(dataSet);
+                } else {
+                    if (areaChanged) {
+                        scene.prepareStreamingArea(dataSet, area);
+                    }
+                    scene.preparePrimitives(dataSet, primitives);
+                }
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+            }
+            scene.completeUpdate();
+        } catch (RuntimeException e) {
+            // the previous snapshot is still there, so renderer just continues to show it.
+            UrbanEye3dPlugin.debugMsg("Scene update failed: " + e);
+            Logging.error(e);
+            // scene can be half updated, and the changes are lost. So it's rebuilt from scratch.
+            scene.discardUpdate();
+            synchronized (this) {
+                if (areaChanged && !pendingAreaChanged) {
+                    pendingArea = area;
+                    pendingAreaChanged = true;
+                }
+                if (!rebuild) {
+                    pendingRebuild = true;
+                    pendingPrimitives.clear();
+                    scheduleFlush();
+                }
+                // a failed rebuild is not retried at once, it would most likely fail again.
+                // The next event rebuilds the scene, see Scene.discardUpdate().
+            }
+            return;
+        }
+        updatesExecuted.incrementAndGet();
+        onSceneUpdated.run();
+    }
+}
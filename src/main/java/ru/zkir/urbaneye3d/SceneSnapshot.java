@@ -0,0 +1,53 @@
+package ru.zkir.urbaneye3d;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable list of scene elements, published by Scene for the renderer,
+ * together with the bounding volume hierarchy used for frustum culling.
+ * BVH is built by the thread which builds the scene, so the renderer does not spend any time on it.
+ * In compact store mode the snapshot also has the store, which the renderer reads geometry from.
+ */
+public class SceneSnapshot extends AbstractList<RenderableBuildingElement> implements RandomAccess {
+    static final SceneSnapshot EMPTY = new SceneSnapshot(Collections.emptyList());
+
+    private final List<RenderableBuildingElement> elements;
+    final ElementBVH bvh;
+    // compact store mode: geometry of the elements is in the store, not in the elements. null otherwise.
+    final CompactSceneStore store;
+    // renderers drawing this snapshot, see Scene.acquireSnapshot()
+    final AtomicInteger readers = new AtomicInteger();
+
+    SceneSnapshot(List<RenderableBuildingElement> elements) {
+        this(elements, null, null);
+    }
+
+    // previous: snapshot this one replaces, its BVH is refitted for the new elements. Can be null.
+    SceneSnapshot(List<RenderableBuildingElement> elements, CompactSceneStore store, SceneSnapshot previous) {
+        this.elements = new ArrayList<>(elements);
+        this.store = store;
+        this.bvh = new ElementBVH(this.elements, store, previous == null ? null : previous.bvh);
+    }
+
+    /**
+     * Ends the use of a snapshot taken by {@link Scene#acquireSnapshot()}.
+     */
+    public void release() {
+        readers.decrementAndGet();
+    }
+
+    @Override
+    public RenderableBuildingElement get(int index) {
+        return elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+}
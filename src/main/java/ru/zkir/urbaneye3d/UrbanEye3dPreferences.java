@@ -18,6 +18,8 @@ import javax.swing.ImageIcon;
 public class UrbanEye3dPreferences implements TabPreferenceSetting {
 
     private JCheckBox wireframeCheckBox;
+    private JCheckBox shadersCheckBox;
+    private JCheckBox streamingCheckBox;
 
     @Override
     public void addGui(PreferenceTabbedPane gui) {
@@ -35,8 +37,20 @@ public class UrbanEye3dPreferences implements TabPreferenceSetting {
         wireframeCheckBox.setToolTipText(tr("If checked, buildings will be rendered as outlines instead of solid polygons."));
         panel.add(wireframeCheckBox, gbc);
 
+        gbc.gridy = 2;
+        shadersCheckBox = new JCheckBox(tr("Use shaders for lighting (experimental)"));
+        shadersCheckBox.setSelected(Config.getPref().getBoolean("urbaneye3d.shaders.enabled", false));
+        shadersCheckBox.setToolTipText(tr("If checked, lighting is computed by GPU. Requires OpenGL 2.0."));
+        panel.add(shadersCheckBox, gbc);
+
+        gbc.gridy = 3;
+        streamingCheckBox = new JCheckBox(tr("Build only buildings near the map center"));
+        streamingCheckBox.setSelected(Config.getPref().getBoolean("urbaneye3d.streaming.enabled", false));
+        streamingCheckBox.setToolTipText(tr("If checked, buildings are loaded and unloaded as the map is panned. Useful for large datasets."));
+        panel.add(streamingCheckBox, gbc);
+
         // Add vertical glue to push content to the top
-        gbc.gridy = 2; // Next row
+        gbc.gridy = 4; // Next row
         gbc.weighty = 1.0; // This component takes all remaining vertical space
         gbc.fill = GridBagConstraints.BOTH; // Fill both horizontally and vertically
         panel.add(new JPanel(), gbc); // Add an empty JPanel as glue
@@ -47,6 +61,12 @@ public class UrbanEye3dPreferences implements TabPreferenceSetting {
         if (wireframeCheckBox != null) {
             Config.getPref().putBoolean("urbaneye3d.wireframe.enabled", wireframeCheckBox.isSelected());
         }
+        if (shadersCheckBox != null) {
+            Config.getPref().putBoolean("urbaneye3d.shaders.enabled", shadersCheckBox.isSelected());
+        }
+        if (streamingCheckBox != null) {
+            Config.getPref().putBoolean("urbaneye3d.streaming.enabled", streamingCheckBox.isSelected());
+        }
         return false; // No restart required
     }
 
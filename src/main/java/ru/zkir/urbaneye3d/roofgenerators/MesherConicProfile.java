@@ -2,6 +2,7 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
 import ru.zkir.urbaneye3d.utils.Point3D;
 
@@ -39,6 +40,16 @@ public class MesherConicProfile extends RoofGenerator{
         return profile;
     }
 
+    // Coarse onion: the bulge and the spire only.
+    private static List<Point2D> coarseOnionProfile(){
+        List<Point2D> profile = new ArrayList<>();
+        profile.add(new Point2D(1.0000, 0.0000));
+        profile.add(new Point2D(1.2971, 0.2462));
+        profile.add(new Point2D(0.6219, 0.4785));
+        profile.add(new Point2D(0.0000, 1.0000));
+        return profile;
+    }
+
     // Generatrix for a pyramidal roof
     // Just 2 points indeed.
     private static List<Point2D> pyramidalProfile(){
@@ -48,8 +59,23 @@ public class MesherConicProfile extends RoofGenerator{
         return profile;
     }
 
+    // Profiles are pre-built once, meshers pick one by the tessellation budget.
+    // Tables are shared, they must not be modified.
+    private static final int MAX_DOME_ROWS = 16;
+    private static final List<List<Point2D>> DOME_PROFILES = new ArrayList<>(); // index = rows - 1
+    static {
+        for (int rows = 1; rows <= MAX_DOME_ROWS; rows++) {
+            DOME_PROFILES.add(domeProfile(rows));
+        }
+    }
+    private static final List<Point2D> ONION_PROFILE = onionProfile();
+    private static final List<Point2D> COARSE_ONION_PROFILE = coarseOnionProfile();
+    // chord error of the coarse onion, for the onion of unit size
+    private static final double COARSE_ONION_ERROR = profileDeviation(ONION_PROFILE, COARSE_ONION_PROFILE);
+    private static final List<Point2D> PYRAMIDAL_PROFILE = pyramidalProfile();
 
-    String profile;
+
+    private final String profile;
     public MesherConicProfile(String profile) {
         super();
         this.profile=profile;
@@ -57,6 +83,46 @@ public class MesherConicProfile extends RoofGenerator{
 
     @Override
     public Mesh generate(RenderableBuildingElement building) {
+        return generate(building, FULL_CHORD_ERROR);
+    }
+
+    /**
+     * @param maxChordError tessellation budget, m. See RoofGenerator.FULL_CHORD_ERROR
+     */
+    public Mesh generate(RenderableBuildingElement building, double maxChordError) {
+        return generate(building, selectProfile(building, maxChordError));
+    }
+
+    @Override
+    public Mesh generateSimplified(RenderableBuildingElement building) {
+        List<Point2D> profile = selectProfile(building, SIMPLIFIED_CHORD_ERROR);
+        if (profile == selectProfile(building, FULL_CHORD_ERROR)) {
+            // small roof, it's already as simple as it can be
+            return null;
+        }
+        return generate(building, profile);
+    }
+
+    private static List<Point2D> selectProfile(RenderableBuildingElement building, double maxChordError) {
+        RoofShapes roofShape = building.roofShape;
+        if (roofShape == RoofShapes.PYRAMIDAL) {
+            return PYRAMIDAL_PROFILE;
+        }
+
+        // dome is an ellipse in general, its chord error is not larger than one of a circle with the larger semi-axis.
+        double extent = maxExtent(building.getContour());
+        double radius = (roofShape == RoofShapes.HALF_DOME) ? extent : extent / 2;
+        double size = Math.max(building.roofHeight, radius);
+        if ((roofShape == RoofShapes.DOME) || (roofShape == RoofShapes.HALF_DOME)) {
+            int rows = segmentsForChordError(size, PI / 2, maxChordError);
+            return DOME_PROFILES.get(Math.min(rows, MAX_DOME_ROWS) - 1);
+        } else if (roofShape == RoofShapes.ONION) {
+            return (COARSE_ONION_ERROR * size <= maxChordError) ? COARSE_ONION_PROFILE : ONION_PROFILE;
+        }
+        throw new IllegalArgumentException("Unknown roof type: " + roofShape);
+    }
+
+    private Mesh generate(RenderableBuildingElement building, List<Point2D> profile) {
 
         List<Point2D> basePoints = building.getContour() ;
         double height= building.height;
@@ -64,21 +130,9 @@ public class MesherConicProfile extends RoofGenerator{
         double wallHeight = building.height - building.roofHeight;
         RoofShapes roofShape = building.roofShape;
 
-        Mesh mesh = new Mesh();
-        List<Point3D> verts = new ArrayList<>();
+        MeshBuilder mesh = new MeshBuilder();
         for (Point2D p:basePoints){
-            verts.add(new Point3D(p.x, p.y, minHeight));
-        }
-
-        List<Point2D> profile;
-        if ((roofShape==RoofShapes.DOME) || (roofShape == RoofShapes.HALF_DOME)) {
-            profile = domeProfile(7);
-        } else if (roofShape == RoofShapes.PYRAMIDAL){
-            profile = pyramidalProfile();
-        } else if (roofShape == RoofShapes.ONION) {
-            profile = onionProfile();
-        } else {
-            throw new IllegalArgumentException("Unknown roof type: " + roofShape);
+            mesh.addVertex(p, minHeight);
         }
 
         int n = basePoints.size();
@@ -95,13 +149,13 @@ public class MesherConicProfile extends RoofGenerator{
         // Create walls
         if (minHeight < wallHeight) { // Only create walls if there's a height difference
             for (int i = 0; i < n; i++) {
-                verts.add(new Point3D(basePoints.get(i).x, basePoints.get(i).y, z1));
+                mesh.addVertex(basePoints.get(i), z1);
             }
             int indexOffset = n;
             for (int i = 0; i < n - 1; i++) {
-                mesh.wallFaces.add(new int[]{i, i + 1, i + n + 1, i + n});
+                mesh.addWallFace(i, i + 1, i + n + 1, i + n);
             }
-            mesh.wallFaces.add(new int[]{n - 1, 0, n, 2 * n - 1});
+            mesh.addWallFace(n - 1, 0, n, 2 * n - 1);
         }
 
         // Create roof mesh vertices
@@ -111,57 +165,43 @@ public class MesherConicProfile extends RoofGenerator{
                 double xi = basePoints.get(i).x + (1 - profile.get(j).x) * (center.x - basePoints.get(i).x);
                 double yi = basePoints.get(i).y + (1 - profile.get(j).x) * (center.y - basePoints.get(i).y);
                 double zi = wallHeight + (height - wallHeight) * profile.get(j).y;
-                verts.add(new Point3D(xi, yi, zi));
+                mesh.addVertex(xi, yi, zi);
             }
         }
 
         // Add the top vertex (apex)
-        verts.add(new Point3D(center.x, center.y, z2));
-        int centreIdx = verts.size() - 1;
+        int centreIdx = mesh.addVertex(center.x, center.y, z2);
 
         // Create roof faces
         int indexOffset = (minHeight < wallHeight) ? n : 0; // Adjust offset if walls were created
 
         for (int j = 0; j < rows - 1; j++) {
             for (int i = 0; i < n - 1; i++) {
-                mesh.roofFaces.add(new int[]{
-                        indexOffset + j * n + i,
+                mesh.addRoofFace(indexOffset + j * n + i,
                         indexOffset + j * n + i + 1,
                         indexOffset + j * n + i + 1 + n,
-                        indexOffset + j * n + i + n
-                });
+                        indexOffset + j * n + i + n);
             }
-            mesh.roofFaces.add(new int[]{
-                    indexOffset + j * n + n - 1,
+            mesh.addRoofFace(indexOffset + j * n + n - 1,
                     indexOffset + j * n + 0,
                     indexOffset + j * n + n,
-                    indexOffset + j * n + 2 * n - 1
-            });
+                    indexOffset + j * n + 2 * n - 1);
         }
 
         // Faces in the last loop are triangles (connecting to the apex)
         for (int i = 0; i < n - 1; i++) {
-            mesh.roofFaces.add(new int[]{
-                    indexOffset + (rows - 1) * n + i,
+            mesh.addRoofFace(indexOffset + (rows - 1) * n + i,
                     indexOffset + (rows - 1) * n + i + 1,
-                    centreIdx
-            });
+                    centreIdx);
         }
-        mesh.roofFaces.add(new int[]{
-                indexOffset + (rows - 1) * n + n - 1,
+        mesh.addRoofFace(indexOffset + (rows - 1) * n + n - 1,
                 indexOffset + (rows - 1) * n + 0,
-                centreIdx
-        });
+                centreIdx);
 
-        // Create bottom face
-        int[] bottomFace = new int[n];
-        for (int i = 0; i < n; i++) {
-            bottomFace[i] = n - 1 - i; // Reverse order for correct normal
-        }
-        mesh.bottomFaces.add(bottomFace);
+        // Create bottom face, reverse order for correct normal
+        mesh.addRingFace(Mesh.BOTTOM, 0, n, true);
 
-        mesh.verts = verts;
-        return mesh;
+        return mesh.build();
     }
 
 
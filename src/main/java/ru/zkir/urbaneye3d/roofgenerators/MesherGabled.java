@@ -2,10 +2,9 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
-import ru.zkir.urbaneye3d.utils.Point3D;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class MesherGabled extends RoofGenerator{
@@ -19,13 +18,12 @@ public class MesherGabled extends RoofGenerator{
         double wallHeight = building.wallHeight;
 
         String roofOrientation = building.roofOrientation;
-        Mesh mesh = new Mesh();
         if (basePoints.size() != 4) {
-            // Fallback to flat roof for non-quadrilaterals
-            return null;
+            // Other footprints get the roof built on the straight skeleton (null, i.e. flat roof, if it's not possible)
+            return generateSkeletonRoof(building, GABLED_ENDS);
         }
 
-        List<Point3D> verts = new ArrayList<>();
+        MeshBuilder mesh = new MeshBuilder();
         int n = basePoints.size();
 
         // --- Find the two edges which will form the gables ---
@@ -43,17 +41,17 @@ public class MesherGabled extends RoofGenerator{
 
         // --- Create Vertices ---
         // 1. Base vertices (at the bottom of the walls)
-        int baseIdx = verts.size();
+        int baseIdx = mesh.getVertexCount();
         for (Point2D p : basePoints) {
-            verts.add(new Point3D(p.x, p.y, minHeight));
+            mesh.addVertex(p, minHeight);
         }
 
         // 2. Wall top vertices (at the height of the eaves)
         int wallIdx;
         if (wallHeight > minHeight) {
-            wallIdx = verts.size();
+            wallIdx = mesh.getVertexCount();
             for (Point2D p : basePoints) {
-                verts.add(new Point3D(p.x, p.y, wallHeight));
+                mesh.addVertex(p, wallHeight);
             }
         } else {
             wallIdx = baseIdx; // Reuse base vertices if no walls
@@ -66,12 +64,8 @@ public class MesherGabled extends RoofGenerator{
         Point2D g2_p1 = basePoints.get(g2_idx1);
         Point2D mid1 = new Point2D((g1_p0.x + g1_p1.x) / 2, (g1_p0.y + g1_p1.y) / 2);
         Point2D mid2 = new Point2D((g2_p0.x + g2_p1.x) / 2, (g2_p0.y + g2_p1.y) / 2);
-        int ridge1Idx = verts.size();
-        verts.add(new Point3D(mid1.x, mid1.y, height));
-        int ridge2Idx = verts.size();
-        verts.add(new Point3D(mid2.x, mid2.y, height));
-
-        mesh.verts = verts;
+        int ridge1Idx = mesh.addVertex(mid1, height);
+        int ridge2Idx = mesh.addVertex(mid2, height);
 
         // --- Create Faces ---
         // Find the indices of the vertices that form the eave walls
@@ -83,29 +77,25 @@ public class MesherGabled extends RoofGenerator{
         // Create Walls only if they have height
         if (wallHeight > minHeight) {
             // Create Eave Walls (Quads)
-            mesh.wallFaces.add(new int[]{baseIdx + eave1_idx0, baseIdx + eave1_idx1, wallIdx + eave1_idx1, wallIdx + eave1_idx0});
-            mesh.wallFaces.add(new int[]{baseIdx + eave2_idx0, baseIdx + eave2_idx1, wallIdx + eave2_idx1, wallIdx + eave2_idx0});
+            mesh.addWallFace(baseIdx + eave1_idx0, baseIdx + eave1_idx1, wallIdx + eave1_idx1, wallIdx + eave1_idx0);
+            mesh.addWallFace(baseIdx + eave2_idx0, baseIdx + eave2_idx1, wallIdx + eave2_idx1, wallIdx + eave2_idx0);
 
             // Create Gable Walls (Pentagons)
-            mesh.wallFaces.add(new int[]{baseIdx + g1_idx0, baseIdx + g1_idx1, wallIdx + g1_idx1, ridge1Idx, wallIdx + g1_idx0});
-            mesh.wallFaces.add(new int[]{baseIdx + g2_idx0, baseIdx + g2_idx1, wallIdx + g2_idx1, ridge2Idx, wallIdx + g2_idx0});
+            mesh.addWallFace(baseIdx + g1_idx0, baseIdx + g1_idx1, wallIdx + g1_idx1, ridge1Idx, wallIdx + g1_idx0);
+            mesh.addWallFace(baseIdx + g2_idx0, baseIdx + g2_idx1, wallIdx + g2_idx1, ridge2Idx, wallIdx + g2_idx0);
         } else {
             // If there are no walls, the gables are triangles, added to the wall faces
-            mesh.wallFaces.add(new int[]{wallIdx + g1_idx0, wallIdx + g1_idx1, ridge1Idx});
-            mesh.wallFaces.add(new int[]{wallIdx + g2_idx0, wallIdx + g2_idx1, ridge2Idx});
+            mesh.addWallFace(wallIdx + g1_idx0, wallIdx + g1_idx1, ridge1Idx);
+            mesh.addWallFace(wallIdx + g2_idx0, wallIdx + g2_idx1, ridge2Idx);
         }
 
         // Create Roof Planes (Quads)
-        mesh.roofFaces.add(new int[]{wallIdx + eave1_idx0, wallIdx + eave1_idx1, ridge2Idx, ridge1Idx});
-        mesh.roofFaces.add(new int[]{wallIdx + eave2_idx0, wallIdx + eave2_idx1, ridge1Idx, ridge2Idx});
+        mesh.addRoofFace(wallIdx + eave1_idx0, wallIdx + eave1_idx1, ridge2Idx, ridge1Idx);
+        mesh.addRoofFace(wallIdx + eave2_idx0, wallIdx + eave2_idx1, ridge1Idx, ridge2Idx);
 
-        // Create bottom face
-        int[] bottomFace = new int[n];
-        for (int i = 0; i < n; i++) {
-            bottomFace[i] = baseIdx + n - 1 - i; // Reverse order for correct normal
-        }
-        mesh.bottomFaces.add(bottomFace);
+        // Create bottom face, reverse order for correct normal
+        mesh.addRingFace(Mesh.BOTTOM, baseIdx, n, true);
 
-        return mesh;
+        return mesh.build();
     }
 }
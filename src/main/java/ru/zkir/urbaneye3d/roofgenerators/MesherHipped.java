@@ -2,10 +2,9 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
-import ru.zkir.urbaneye3d.utils.Point3D;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class MesherHipped extends RoofGenerator {
@@ -18,13 +17,12 @@ public class MesherHipped extends RoofGenerator {
         double height = building.height;
         String roofOrientation = building.roofOrientation;
 
-        Mesh mesh = new Mesh();
         if (basePoints.size() != 4) {
-            // Fallback to flat roof for non-quadrilaterals
-            return null;
+            // Other footprints get the roof built on the straight skeleton (null, i.e. flat roof, if it's not possible)
+            return generateSkeletonRoof(building, HIPPED_ENDS);
         }
 
-        List<Point3D> verts = new ArrayList<>();
+        MeshBuilder mesh = new MeshBuilder();
         int n = basePoints.size();
 
         // --- Find the two edges which will form the gables ---
@@ -42,17 +40,17 @@ public class MesherHipped extends RoofGenerator {
 
         // --- Create Vertices ---
         // 1. Base vertices (at the bottom of the walls)
-        int baseIdx = verts.size();
+        int baseIdx = mesh.getVertexCount();
         for (Point2D p : basePoints) {
-            verts.add(new Point3D(p.x, p.y, minHeight));
+            mesh.addVertex(p, minHeight);
         }
 
         // 2. Wall top vertices (at the height of the eaves)
         int wallIdx;
         if (wallHeight > minHeight) {
-            wallIdx = verts.size();
+            wallIdx = mesh.getVertexCount();
             for (Point2D p : basePoints) {
-                verts.add(new Point3D(p.x, p.y, wallHeight));
+                mesh.addVertex(p, wallHeight);
             }
         } else {
             wallIdx = baseIdx; // Reuse base vertices if no walls
@@ -85,12 +83,8 @@ public class MesherHipped extends RoofGenerator {
 
 
         Point2D[] shortened_ridge = shortenSegment(mid1, mid2,ridge_length/a);
-        int ridge1Idx = verts.size();
-        verts.add(new Point3D(shortened_ridge[0].x, shortened_ridge[0].y, height));
-        int ridge2Idx = verts.size();
-        verts.add(new Point3D(shortened_ridge[1].x, shortened_ridge[1].y, height));
-
-        mesh.verts = verts;
+        int ridge1Idx = mesh.addVertex(shortened_ridge[0], height);
+        int ridge2Idx = mesh.addVertex(shortened_ridge[1], height);
 
         // --- Create Faces ---
         // Find the indices of the vertices that form the eave walls
@@ -102,31 +96,27 @@ public class MesherHipped extends RoofGenerator {
         // Create Walls only if they have height
         if (wallHeight > minHeight) {
             // Create Eave Walls (Quads)
-            mesh.wallFaces.add(new int[]{baseIdx + eave1_idx0, baseIdx + eave1_idx1, wallIdx + eave1_idx1, wallIdx + eave1_idx0});
-            mesh.wallFaces.add(new int[]{baseIdx + eave2_idx0, baseIdx + eave2_idx1, wallIdx + eave2_idx1, wallIdx + eave2_idx0});
+            mesh.addWallFace(baseIdx + eave1_idx0, baseIdx + eave1_idx1, wallIdx + eave1_idx1, wallIdx + eave1_idx0);
+            mesh.addWallFace(baseIdx + eave2_idx0, baseIdx + eave2_idx1, wallIdx + eave2_idx1, wallIdx + eave2_idx0);
 
             // Create Gable Walls (also Quads for hipped)
-            mesh.wallFaces.add(new int[]{baseIdx + g1_idx0, baseIdx + g1_idx1, wallIdx + g1_idx1,  wallIdx + g1_idx0});
-            mesh.wallFaces.add(new int[]{baseIdx + g2_idx0, baseIdx + g2_idx1, wallIdx + g2_idx1,  wallIdx + g2_idx0});
+            mesh.addWallFace(baseIdx + g1_idx0, baseIdx + g1_idx1, wallIdx + g1_idx1,  wallIdx + g1_idx0);
+            mesh.addWallFace(baseIdx + g2_idx0, baseIdx + g2_idx1, wallIdx + g2_idx1,  wallIdx + g2_idx0);
         }
 
         //Create Roof Planes (Triangles)
-        mesh.roofFaces.add(new int[]{ wallIdx + g1_idx1, ridge1Idx, wallIdx + g1_idx0});
-        mesh.roofFaces.add(new int[]{ wallIdx + g2_idx1, ridge2Idx, wallIdx + g2_idx0});
+        mesh.addRoofFace(wallIdx + g1_idx1, ridge1Idx, wallIdx + g1_idx0);
+        mesh.addRoofFace(wallIdx + g2_idx1, ridge2Idx, wallIdx + g2_idx0);
 
 
         // Create Roof Planes (Quads)
-        mesh.roofFaces.add(new int[]{wallIdx + eave1_idx0, wallIdx + eave1_idx1, ridge2Idx, ridge1Idx});
-        mesh.roofFaces.add(new int[]{wallIdx + eave2_idx0, wallIdx + eave2_idx1, ridge1Idx, ridge2Idx});
+        mesh.addRoofFace(wallIdx + eave1_idx0, wallIdx + eave1_idx1, ridge2Idx, ridge1Idx);
+        mesh.addRoofFace(wallIdx + eave2_idx0, wallIdx + eave2_idx1, ridge1Idx, ridge2Idx);
 
-        // Create bottom face
-        int[] bottomFace = new int[n];
-        for (int i = 0; i < n; i++) {
-            bottomFace[i] = baseIdx + n - 1 - i; // Reverse order for correct normal
-        }
-        mesh.bottomFaces.add(bottomFace);
+        // Create bottom face, reverse order for correct normal
+        mesh.addRingFace(Mesh.BOTTOM, baseIdx, n, true);
 
-        return mesh;
+        return mesh.build();
     }
 
 }
@@ -2,8 +2,8 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
-import ru.zkir.urbaneye3d.utils.Point3D;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -75,6 +75,27 @@ public class MesherLinearProfile extends  RoofGenerator {
         }
     }
 
+    // Round profile with the given number of segments. 8 segments give exactly LinerProfiles.ROUND, 2 -- just a ridge.
+    private static List<Point2D> roundProfile(int segments) {
+        List<Point2D> profile = new ArrayList<>();
+        for (int j = 0; j <= segments; j++) {
+            double angle = (double) j / segments * Math.PI;
+            profile.add(new Point2D((1 - Math.cos(angle)) / 2, Math.sin(angle)));
+        }
+        return profile;
+    }
+
+    // Round profiles are pre-built once, mesher picks one by the tessellation budget.
+    // Tables are shared, they must not be modified.
+    private static final int MIN_ROUND_SEGMENTS = 2;
+    private static final int MAX_ROUND_SEGMENTS = 16;
+    private static final List<List<Point2D>> ROUND_PROFILES = new ArrayList<>(); // index = segments - MIN_ROUND_SEGMENTS
+    static {
+        for (int segments = MIN_ROUND_SEGMENTS; segments <= MAX_ROUND_SEGMENTS; segments++) {
+            ROUND_PROFILES.add(roundProfile(segments));
+        }
+    }
+
     private final LinerProfiles profile;
     MesherLinearProfile(LinerProfiles profile){
         this.profile = profile;
@@ -82,6 +103,38 @@ public class MesherLinearProfile extends  RoofGenerator {
 
     @Override
     public Mesh generate(RenderableBuildingElement building) {
+        return generate(building, FULL_CHORD_ERROR);
+    }
+
+    /**
+     * @param maxChordError tessellation budget, m. Only round roofs are curved, other profiles are used as is.
+     */
+    public Mesh generate(RenderableBuildingElement building, double maxChordError) {
+        return generate(building, selectProfile(building, maxChordError));
+    }
+
+    @Override
+    public Mesh generateSimplified(RenderableBuildingElement building) {
+        List<Point2D> profile = selectProfile(building, SIMPLIFIED_CHORD_ERROR);
+        if (profile == selectProfile(building, FULL_CHORD_ERROR)) {
+            // other profiles have just a few rows, small round roofs are already simple.
+            return null;
+        }
+        return generate(building, profile);
+    }
+
+    private List<Point2D> selectProfile(RenderableBuildingElement building, double maxChordError) {
+        if (this.profile != LinerProfiles.ROUND) {
+            return this.profile.getProfile();
+        }
+        // half of the roof width is not known before the ridge direction is chosen, bbox size is the upper bound.
+        double size = Math.max(building.roofHeight, maxExtent(building.getContour()) / 2);
+        int segments = segmentsForChordError(size, Math.PI, maxChordError);
+        segments = Math.max(MIN_ROUND_SEGMENTS, Math.min(MAX_ROUND_SEGMENTS, segments));
+        return ROUND_PROFILES.get(segments - MIN_ROUND_SEGMENTS);
+    }
+
+    private Mesh generate(RenderableBuildingElement building, List<Point2D> profile) {
         List<Point2D> basePoints = building.getContour();
         double height = building.height;
         double minHeight = building.minHeight;
@@ -134,8 +187,7 @@ public class MesherLinearProfile extends  RoofGenerator {
         Point2D vecAD = new Point2D(D.x - A.x, D.y - A.y);
         Point2D vecBC = new Point2D(C.x - B.x, C.y - B.y);
 
-        Mesh mesh = new Mesh();
-        List<Point2D> profile = this.profile.getProfile();
+        MeshBuilder mesh = new MeshBuilder();
         int profileSize = profile.size();
 
         // 5. Создать вершины для фронтонов
@@ -144,7 +196,7 @@ public class MesherLinearProfile extends  RoofGenerator {
             double x = A.x + p.x * vecAD.x;
             double y = A.y + p.x * vecAD.y;
             double z = wallHeight + p.y * roofHeight;
-            mesh.verts.add(new Point3D(x, y, z));
+            mesh.addVertex(x, y, z);
         }
 
         // Фронтон 2 (конечный)
@@ -152,7 +204,7 @@ public class MesherLinearProfile extends  RoofGenerator {
             double x = B.x + p.x * vecBC.x;
             double y = B.y + p.x * vecBC.y;
             double z = wallHeight + p.y * roofHeight;
-            mesh.verts.add(new Point3D(x, y, z));
+            mesh.addVertex(x, y, z);
         }
 
         int front1Start = 0;
@@ -167,20 +219,10 @@ public class MesherLinearProfile extends  RoofGenerator {
         int idxDg;
 
         if (!nowalls) {
-            Point3D Ag = new Point3D(A.x, A.y, minHeight);
-            Point3D Bg = new Point3D(B.x, B.y, minHeight);
-            Point3D Cg = new Point3D(C.x, C.y, minHeight);
-            Point3D Dg = new Point3D(D.x, D.y, minHeight);
-
-            mesh.verts.add(Ag);
-            mesh.verts.add(Bg);
-            mesh.verts.add(Cg);
-            mesh.verts.add(Dg);
-
-            idxAg = front2End + 1;
-            idxBg = front2End + 2;
-            idxCg = front2End + 3;
-            idxDg = front2End + 4;
+            idxAg = mesh.addVertex(A, minHeight);
+            idxBg = mesh.addVertex(B, minHeight);
+            idxCg = mesh.addVertex(C, minHeight);
+            idxDg = mesh.addVertex(D, minHeight);
         } else
         {   //roof corners will be used instead
             idxAg = front1Start;
@@ -191,18 +233,10 @@ public class MesherLinearProfile extends  RoofGenerator {
 
         // 7. Создать грани крыши
         // Фронтон 1
-        int[] front1Face = new int[profileSize];
-        for (int i = 0; i < profileSize; i++) {
-            front1Face[i] = front1Start + i;
-        }
-        mesh.wallFaces.add(front1Face);
+        mesh.addRingFace(Mesh.WALL, front1Start, profileSize, false);
 
         // Фронтон 2 (в обратном порядке)
-        int[] front2Face = new int[profileSize];
-        for (int i = 0; i < profileSize; i++) {
-            front2Face[i] = front2End - i;
-        }
-        mesh.wallFaces.add(front2Face);
+        mesh.addRingFace(Mesh.WALL, front2Start, profileSize, true);
 
         // Скаты между фронтонами
         for (int i = 0; i < profileSize - 1; i++) {
@@ -211,26 +245,25 @@ public class MesherLinearProfile extends  RoofGenerator {
             int v3 = front2Start + i + 1;   // Следующая точка на втором фронтоне
             int v4 = front2Start + i;       // Точка на втором фронтоне
 
-            int[] quadFace = {v1, v4, v3, v2};
-            mesh.roofFaces.add(quadFace);
+            mesh.addRoofFace(v1, v4, v3, v2);
         }
 
         // 8. Создать стены
         if (!nowalls) {
             // Стена AB
-            mesh.wallFaces.add(new int[]{idxBg, front2Start, front1Start, idxAg});
+            mesh.addWallFace(idxBg, front2Start, front1Start, idxAg);
             // Стена BC
-            mesh.wallFaces.add(new int[]{idxCg, front2End, front2Start, idxBg});
+            mesh.addWallFace(idxCg, front2End, front2Start, idxBg);
             // Стена CD
-            mesh.wallFaces.add(new int[]{idxDg, front1End, front2End, idxCg});
+            mesh.addWallFace(idxDg, front1End, front2End, idxCg);
             // Стена DA
-            mesh.wallFaces.add(new int[]{idxAg, front1Start, front1End, idxDg});
+            mesh.addWallFace(idxAg, front1Start, front1End, idxDg);
         }
 
         // 9. Создать нижнюю грань (пол)
-        mesh.bottomFaces.add(new int[]{idxAg, idxDg, idxCg, idxBg});
+        mesh.addBottomFace(idxAg, idxDg, idxCg, idxBg);
 
-        return mesh;
+        return mesh.build();
 
     }
 
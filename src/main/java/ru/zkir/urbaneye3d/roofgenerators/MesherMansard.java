@@ -2,8 +2,8 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
-import ru.zkir.urbaneye3d.utils.Point3D;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,23 +21,22 @@ public class MesherMansard extends RoofGenerator {
         double height = building.height;
         double roofHeight = building.roofHeight;
 
-        Mesh mesh = new Mesh();
-        List<Point3D> verts = mesh.verts;
+        MeshBuilder mesh = new MeshBuilder();
         int n = basePoints.size();
 
         // --- Create Vertices ---
         // 1. Base vertices
-        int baseIdx = verts.size();
+        int baseIdx = mesh.getVertexCount();
         for (Point2D p : basePoints) {
-            verts.add(new Point3D(p.x, p.y, minHeight));
+            mesh.addVertex(p, minHeight);
         }
 
         // 2. Wall top vertices
         int wallIdx;
         if (wallHeight > minHeight) {
-            wallIdx = verts.size();
+            wallIdx = mesh.getVertexCount();
             for (Point2D p : basePoints) {
-                verts.add(new Point3D(p.x, p.y, wallHeight));
+                mesh.addVertex(p, wallHeight);
             }
         } else {
             wallIdx = baseIdx;
@@ -46,16 +45,16 @@ public class MesherMansard extends RoofGenerator {
         // 3. Inset vertices for the lower part of the roof
         double insetSize = 2.0; // This might need to be configurable later
         List<Point2D> insetPoints = insetPolygon(basePoints, insetSize);
-        int insetIdx = verts.size();
+        int insetIdx = mesh.getVertexCount();
         double lowerRoofHeight = wallHeight + roofHeight / 2.0;
         for (Point2D p : insetPoints) {
-            verts.add(new Point3D(p.x, p.y, lowerRoofHeight));
+            mesh.addVertex(p, lowerRoofHeight);
         }
 
         // --- Create Lower Roof Faces (Trapezoids) ---
         for (int i = 0; i < n; i++) {
             int next = (i + 1) % n;
-            mesh.roofFaces.add(new int[]{wallIdx + i, wallIdx + next, insetIdx + next, insetIdx + i});
+            mesh.addRoofFace(wallIdx + i, wallIdx + next, insetIdx + next, insetIdx + i);
         }
 
         // --- Generate Upper (Hipped) Roof Part ---
@@ -87,10 +86,8 @@ public class MesherMansard extends RoofGenerator {
         if (ridge_length < 0.1) ridge_length = 0.1;
 
         Point2D[] shortened_ridge = shortenSegment(mid1, mid2, ridge_length / a);
-        int ridge1Idx = verts.size();
-        verts.add(new Point3D(shortened_ridge[0].x, shortened_ridge[0].y, height));
-        int ridge2Idx = verts.size();
-        verts.add(new Point3D(shortened_ridge[1].x, shortened_ridge[1].y, height));
+        int ridge1Idx = mesh.addVertex(shortened_ridge[0], height);
+        int ridge2Idx = mesh.addVertex(shortened_ridge[1], height);
 
         // Create Upper Roof Faces
         int eave1_idx0 = g1_idx1;
@@ -98,26 +95,22 @@ public class MesherMansard extends RoofGenerator {
         int eave2_idx0 = g2_idx1;
         int eave2_idx1 = g1_idx0;
 
-        mesh.roofFaces.add(new int[]{insetIdx + eave1_idx0, insetIdx + eave1_idx1, ridge2Idx, ridge1Idx});
-        mesh.roofFaces.add(new int[]{insetIdx + eave2_idx0, insetIdx + eave2_idx1, ridge1Idx, ridge2Idx});
-        mesh.roofFaces.add(new int[]{insetIdx + g1_idx1, ridge1Idx, insetIdx + g1_idx0});
-        mesh.roofFaces.add(new int[]{insetIdx + g2_idx1, ridge2Idx, insetIdx + g2_idx0});
+        mesh.addRoofFace(insetIdx + eave1_idx0, insetIdx + eave1_idx1, ridge2Idx, ridge1Idx);
+        mesh.addRoofFace(insetIdx + eave2_idx0, insetIdx + eave2_idx1, ridge1Idx, ridge2Idx);
+        mesh.addRoofFace(insetIdx + g1_idx1, ridge1Idx, insetIdx + g1_idx0);
+        mesh.addRoofFace(insetIdx + g2_idx1, ridge2Idx, insetIdx + g2_idx0);
 
         // --- Create Walls and Bottom ---
         if (wallHeight > minHeight) {
             for (int i = 0; i < n; i++) {
                 int next = (i + 1) % n;
-                mesh.wallFaces.add(new int[]{baseIdx + i, baseIdx + next, wallIdx + next, wallIdx + i});
+                mesh.addWallFace(baseIdx + i, baseIdx + next, wallIdx + next, wallIdx + i);
             }
         }
 
-        int[] bottomFace = new int[n];
-        for (int i = 0; i < n; i++) {
-            bottomFace[i] = baseIdx + n - 1 - i;
-        }
-        mesh.bottomFaces.add(bottomFace);
+        mesh.addRingFace(Mesh.BOTTOM, baseIdx, n, true);
 
-        return mesh;
+        return mesh.build();
     }
 
     private List<Point2D> insetPolygon(List<Point2D> polygon, double inset) {
@@ -2,17 +2,271 @@ package ru.zkir.urbaneye3d.roofgenerators;
 
 import ru.zkir.urbaneye3d.RenderableBuildingElement;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
 import ru.zkir.urbaneye3d.utils.Point2D;
 import ru.zkir.urbaneye3d.utils.Point3D;
+import ru.zkir.urbaneye3d.utils.Triangulator;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.IntBinaryOperator;
 
 public abstract class RoofGenerator {
 
+    // Tessellation budget of curved roofs: maximal distance between the true surface and the mesh (chord error), m.
+    // Number of profile rows is derived from it, so a kiosk dome gets a few rows, and a cathedral dome gets many.
+    public static final double FULL_CHORD_ERROR = 0.05;
+    public static final double SIMPLIFIED_CHORD_ERROR = 0.5;
+
     // main method for mesh creation
     public abstract Mesh generate(RenderableBuildingElement building);
 
+    // simplified mesh for distant views: fewer profile rows, ridge only etc.
+    // null means there is nothing to simplify, the full mesh is good enough.
+    public Mesh generateSimplified(RenderableBuildingElement building) {
+        return null;
+    }
+
     //auxiliary functions, used by descendants are implemented here.
+
+    // Number of segments needed to approximate an arc of the given radius and angle (rad)
+    // so that the chord error does not exceed maxChordError.
+    public static int segmentsForChordError(double radius, double arcAngle, double maxChordError) {
+        if (radius <= maxChordError) {
+            return 1;
+        }
+        double segmentAngle = 2 * Math.acos(1 - maxChordError / radius);
+        return Math.max(1, (int) Math.ceil(arcAngle / segmentAngle - 1e-9));
+    }
+
+    // Maximal distance from the points of a fine profile to the polyline of a coarse one.
+    static double profileDeviation(List<Point2D> fine, List<Point2D> coarse) {
+        double result = 0;
+        for (Point2D p : fine) {
+            double minDistance = Double.MAX_VALUE;
+            for (int i = 0; i < coarse.size() - 1; i++) {
+                minDistance = Math.min(minDistance, distanceToSegment(p, coarse.get(i), coarse.get(i + 1)));
+            }
+            result = Math.max(result, minDistance);
+        }
+        return result;
+    }
+
+    static double distanceToSegment(Point2D p, Point2D a, Point2D b) {
+        double dx = b.x - a.x;
+        double dy = b.y - a.y;
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq > 0 ? ((p.x - a.x) * dx + (p.y - a.y) * dy) / lengthSq : 0;
+        t = Math.max(0, Math.min(1, t));
+        double x = a.x + t * dx - p.x;
+        double y = a.y + t * dy - p.y;
+        return Math.sqrt(x * x + y * y);
+    }
+
+    // larger side of the bbox of the points
+    static double maxExtent(List<Point2D> points) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point2D p : points) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        return Math.max(maxX - minX, maxY - minY);
+    }
+
+    // Triangulates a horizontal (or planar, e.g. skillion) polygon with holes: outer contour first, then inner ones.
+    // vertexIndex maps (contour, vertex of the contour) to the mesh vertex. Triangles are added to the face group;
+    // they have the orientation of the outer contour, or the opposite one if reverse is set (e.g. for the bottom).
+    static void addTriangulatedPolygon(List<List<Point2D>> contours, IntBinaryOperator vertexIndex,
+                                       MeshBuilder mesh, int group, boolean reverse) {
+        int[] contourStarts = new int[contours.size() + 1];
+        for (int c = 0; c < contours.size(); c++) {
+            contourStarts[c + 1] = contourStarts[c] + contours.get(c).size();
+        }
+        int[] triangles = Triangulator.triangulate(contours);
+        for (int t = 0; t < triangles.length; t += 3) {
+            int a = toMeshIndex(triangles[t], contourStarts, vertexIndex);
+            int b = toMeshIndex(triangles[t + 1], contourStarts, vertexIndex);
+            int c = toMeshIndex(triangles[t + 2], contourStarts, vertexIndex);
+            if (reverse) {
+                mesh.addFace(group, a, c, b);
+            } else {
+                mesh.addFace(group, a, b, c);
+            }
+        }
+    }
+
+    private static int toMeshIndex(int index, int[] contourStarts, IntBinaryOperator vertexIndex) {
+        int c = 0;
+        while (index >= contourStarts[c + 1]) {
+            c++;
+        }
+        return vertexIndex.applyAsInt(c, index - contourStarts[c]);
+    }
+
+    // Ends of the ridges of a roof built on the straight skeleton
+    static final int HIPPED_ENDS = 0;
+    static final int GABLED_ENDS = 1;
+    static final int HALF_HIPPED_ENDS = 2;
+
+    // Roof for an arbitrary simple footprint (L, T, U shaped buildings etc.), built on the straight skeleton of the outline:
+    // each outline edge gets its own roof plane, all planes have the same pitch.
+    // Triangular planes at the ends of the ridges are turned into gables or half-hips, depending on ends.
+    // Returns null if there are holes, or the skeleton cannot be built.
+    static Mesh generateSkeletonRoof(RenderableBuildingElement building, int ends) {
+        if (building.hasComplexContour()) {
+            return null;
+        }
+        List<Point2D> basePoints = new ArrayList<>(building.getContour());
+        if (calculateSignedArea(basePoints) < 0) {
+            Collections.reverse(basePoints);
+        }
+        StraightSkeleton skeleton = StraightSkeleton.compute(basePoints);
+        if (skeleton == null) {
+            return null;
+        }
+
+        double minHeight = building.minHeight;
+        double wallHeight = building.wallHeight;
+        double height = building.height;
+        int n = basePoints.size();
+
+        MeshBuilder mesh = new MeshBuilder();
+        int baseIdx = mesh.getVertexCount();
+        for (Point2D p : basePoints) {
+            mesh.addVertex(p, minHeight);
+        }
+        int wallIdx = baseIdx; // Reuse base vertices if no walls
+        if (wallHeight > minHeight) {
+            wallIdx = mesh.getVertexCount();
+            for (Point2D p : basePoints) {
+                mesh.addVertex(p, wallHeight);
+            }
+        }
+
+        // skeleton nodes: height is proportional to the distance from the outline.
+        // Vertices are created for the nodes used by faces only, merged duplicates are skipped.
+        int[] nodeVertex = new int[skeleton.getNodeCount()];
+        for (int node = 0; node < nodeVertex.length; node++) {
+            nodeVertex[node] = node < n ? wallIdx + node : -1;
+        }
+
+        List<List<Integer>> planes = new ArrayList<>();
+        int[] apexUsage = new int[nodeVertex.length];
+        for (int i = 0; i < n; i++) {
+            int[] face = skeleton.getFace(i);
+            List<Integer> plane = new ArrayList<>();
+            for (int node : face) {
+                if (nodeVertex[node] < 0) {
+                    double z = wallHeight + (height - wallHeight) * skeleton.getTime(node) / skeleton.getMaxTime();
+                    nodeVertex[node] = mesh.addVertex(skeleton.getX(node), skeleton.getY(node), z);
+                }
+                plane.add(nodeVertex[node]);
+            }
+            planes.add(plane);
+            if (face.length == 3) {
+                apexUsage[face[2]]++;
+            }
+        }
+
+        boolean[] special = new boolean[n];
+        for (int i = 0; i < n && ends != HIPPED_ENDS; i++) {
+            int[] face = skeleton.getFace(i);
+            // triangle at the end of a ridge. If several triangles meet at the apex, it's rather a pyramid, kept as is.
+            if (face.length != 3 || apexUsage[face[2]] != 1) {
+                continue;
+            }
+            int next = (i + 1) % n;
+            int apexIdx = nodeVertex[face[2]];
+            double apexX = mesh.getX(apexIdx);
+            double apexY = mesh.getY(apexIdx);
+            double apexZ = mesh.getZ(apexIdx);
+            Point2D p0 = basePoints.get(i);
+            Point2D p1 = basePoints.get(next);
+            Point2D edge = p1.subtract(p0);
+            double edgeLength = edge.length();
+            double dx = edge.x / edgeLength;
+            double dy = edge.y / edgeLength;
+
+            if (ends == GABLED_ENDS) {
+                // apex is moved onto the outline, the plane becomes a vertical gable
+                double s = (apexX - p0.x) * dx + (apexY - p0.y) * dy;
+                mesh.setVertex(apexIdx, p0.x + dx * s, p0.y + dy * s, apexZ);
+                if (wallHeight > minHeight) {
+                    mesh.addWallFace(baseIdx + i, baseIdx + next, wallIdx + next, apexIdx, wallIdx + i);
+                } else {
+                    mesh.addWallFace(wallIdx + i, wallIdx + next, apexIdx);
+                }
+                special[i] = true;
+            } else {
+                // half-hip: vertical gable up to the half of the roof, small hip above.
+                // Gable corners are on the neighbour planes, where they are at half of the apex height.
+                double halfTime = skeleton.getTime(face[2]) / 2;
+                Point2D prevEdge = p0.subtract(basePoints.get((i + n - 1) % n));
+                Point2D nextEdge = basePoints.get((next + 1) % n).subtract(p1);
+                // sines of the corner angles, i.e. how fast the distance to the neighbour edge grows along this edge
+                double sin0 = (prevEdge.x * dy - prevEdge.y * dx) / prevEdge.length();
+                double sin1 = (dx * nextEdge.y - dy * nextEdge.x) / nextEdge.length();
+                if (sin0 < 0.1 || sin1 < 0.1 || halfTime / sin0 + halfTime / sin1 > edgeLength) {
+                    continue;
+                }
+                double s0 = halfTime / sin0;
+                double s1 = edgeLength - halfTime / sin1;
+                double z = wallHeight + (apexZ - wallHeight) / 2;
+                int q0 = mesh.addVertex(p0.x + dx * s0, p0.y + dy * s0, z);
+                int q1 = mesh.addVertex(p0.x + dx * s1, p0.y + dy * s1, z);
+
+                if (wallHeight > minHeight) {
+                    mesh.addWallFace(baseIdx + i, baseIdx + next, wallIdx + next, wallIdx + i);
+                }
+                mesh.addWallFace(wallIdx + i, wallIdx + next, q1, q0);
+                mesh.addRoofFace(q0, q1, apexIdx);
+                insertBetween(planes.get((i + n - 1) % n), wallIdx + i, apexIdx, q0);
+                insertBetween(planes.get(next), apexIdx, wallIdx + next, q1);
+                special[i] = true;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (special[i]) {
+                continue;
+            }
+            int next = (i + 1) % n;
+            if (wallHeight > minHeight) {
+                mesh.addWallFace(baseIdx + i, baseIdx + next, wallIdx + next, wallIdx + i);
+            }
+            mesh.addRoofFace(planes.get(i).stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        // Create bottom face, reverse order for correct normal
+        mesh.addRingFace(Mesh.BOTTOM, baseIdx, n, true);
+
+        return mesh.build();
+    }
+
+    // inserts vertex between two consecutive vertices a and b of a closed polygon
+    private static void insertBetween(List<Integer> polygon, int a, int b, int vertex) {
+        for (int k = 0; k < polygon.size(); k++) {
+            if (polygon.get(k) == a && polygon.get((k + 1) % polygon.size()) == b) {
+                polygon.add(k + 1, vertex);
+                return;
+            }
+        }
+    }
+
+    static double calculateSignedArea(List<Point2D> points) {
+        double signedArea = 0.0;
+        for (int i = 0; i < points.size(); i++) {
+            Point2D p1 = points.get(i);
+            Point2D p2 = points.get((i + 1) % points.size());
+            signedArea += (p1.x * p2.y) - (p2.x * p1.y);
+        }
+        return signedArea / 2;
+    }
+
     public static Point3D calculateCentroid(List<Point2D> points) {
         double signedArea = 0.0;
         double cx = 0.0;
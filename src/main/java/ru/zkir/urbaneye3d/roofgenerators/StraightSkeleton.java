@@ -0,0 +1,571 @@
+package ru.zkir.urbaneye3d.roofgenerators;
+
+import ru.zkir.urbaneye3d.utils.Point2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Straight skeleton of a simple polygon without holes (Felkel and Obdrzalek, wavefront propagation).
+ *
+ * Polygon edges move inwards with unit speed, polygon vertices move along the bisectors of their edges.
+ * Two kinds of events change the wavefront: an edge shrinks to zero (edge event),
+ * and a reflex vertex hits an opposite edge, splitting the wavefront in two (split event).
+ * Events are taken from a priority queue in time order. They are not removed when the wavefront changes,
+ * instead each event is validated when it is polled, so the queue is the only bookkeeping needed.
+ *
+ * The result is a face for each polygon edge: the part of the polygon which the edge sweeps.
+ * Time of a node is its distance to the edges of its faces, so if height is proportional to time,
+ * each face is a plane of the same pitch, which is a hipped roof.
+ */
+public class StraightSkeleton {
+    private static final int NO_EDGE = -1;
+
+    // nodes: polygon vertices first (time 0), then skeleton nodes
+    private double[] nodeX;
+    private double[] nodeY;
+    private double[] nodeTime;
+    private int nodeCount;
+
+    // skeleton arcs, each separates faces of two edges
+    private int[] arcFrom = new int[16];
+    private int[] arcTo = new int[16];
+    private int[] arcLeftFace = new int[16];
+    private int[] arcRightFace = new int[16];
+    private int arcCount;
+
+    // polygon edges: start point, unit direction, inward normal
+    private final double[] edgeX, edgeY;
+    private final double[] edgeDx, edgeDy;
+    private final double[] edgeNx, edgeNy;
+
+    private final double eps;
+    private final double positionEps;
+    private final PriorityQueue<Event> queue = new PriorityQueue<>(EVENT_ORDER);
+    private final List<Vertex> vertices = new ArrayList<>();
+    private double now;
+
+    private int[][] faces;
+    private double maxTime;
+
+    // vertex of the wavefront (LAV, list of active vertices, in terms of Felkel)
+    private static class Vertex {
+        // position at the moment of creation, and velocity
+        final double x0, y0, t0;
+        final double vx, vy;
+        final int left, right; // incoming and outgoing edges
+        final int node;
+        final boolean reflex;
+        Vertex prev, next;
+        boolean valid = true;
+
+        Vertex(double x0, double y0, double t0, double vx, double vy, int left, int right, int node, boolean reflex) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.t0 = t0;
+            this.vx = vx;
+            this.vy = vy;
+            this.left = left;
+            this.right = right;
+            this.node = node;
+            this.reflex = reflex;
+        }
+
+        double x(double t) {
+            return x0 + vx * (t - t0);
+        }
+
+        double y(double t) {
+            return y0 + vy * (t - t0);
+        }
+    }
+
+    private static class Event {
+        final double time, x, y;
+        // edge event: a and its next vertex b. Split event: reflex vertex a hits edge.
+        final Vertex a, b;
+        final int edge;
+
+        Event(double time, double x, double y, Vertex a, Vertex b, int edge) {
+            this.time = time;
+            this.x = x;
+            this.y = y;
+            this.a = a;
+            this.b = b;
+            this.edge = edge;
+        }
+    }
+
+    // simultaneous events are frequent for rectangular buildings. Split events go first then:
+    // an edge event of a collapsed strip (antiparallel edges) would consume the edge which a reflex vertex hits at the same moment.
+    private static final Comparator<Event> EVENT_ORDER = (e1, e2) -> {
+        int result = Double.compare(e1.time, e2.time);
+        return result != 0 ? result : Boolean.compare(e1.edge == NO_EDGE, e2.edge == NO_EDGE);
+    };
+
+    private StraightSkeleton(List<Point2D> polygon) {
+        int n = polygon.size();
+        nodeX = new double[3 * n];
+        nodeY = new double[3 * n];
+        nodeTime = new double[3 * n];
+        edgeX = new double[n];
+        edgeY = new double[n];
+        edgeDx = new double[n];
+        edgeDy = new double[n];
+        edgeNx = new double[n];
+        edgeNy = new double[n];
+        double extent = 0;
+        for (Point2D p : polygon) {
+            extent = Math.max(extent, Math.max(Math.abs(p.x - polygon.get(0).x), Math.abs(p.y - polygon.get(0).y)));
+        }
+        eps = 1e-7 * Math.max(extent, 1);
+        positionEps = 1e-5 * Math.max(extent, 1);
+    }
+
+    /**
+     * @param polygon simple polygon, counterclockwise, not closed (the first point is not repeated).
+     * @return skeleton, or null if it cannot be built (degenerate polygon).
+     */
+    public static StraightSkeleton compute(List<Point2D> polygon) {
+        if (polygon.size() < 3) {
+            return null;
+        }
+        StraightSkeleton skeleton = new StraightSkeleton(polygon);
+        return skeleton.run(polygon) ? skeleton : null;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public double getX(int node) {
+        return nodeX[node];
+    }
+
+    public double getY(int node) {
+        return nodeY[node];
+    }
+
+    // distance from the node to the edges of its faces. 0 for polygon vertices.
+    public double getTime(int node) {
+        return nodeTime[node];
+    }
+
+    public double getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * @return face of the i-th edge: node indices, counterclockwise, starting with nodes i and i+1 (edge ends).
+     */
+    public int[] getFace(int edge) {
+        return faces[edge];
+    }
+
+    private boolean run(List<Point2D> polygon) {
+        int n = polygon.size();
+        for (int i = 0; i < n; i++) {
+            Point2D p = polygon.get(i);
+            Point2D q = polygon.get((i + 1) % n);
+            double length = Math.hypot(q.x - p.x, q.y - p.y);
+            if (length < eps) {
+                return false;
+            }
+            edgeX[i] = p.x;
+            edgeY[i] = p.y;
+            edgeDx[i] = (q.x - p.x) / length;
+            edgeDy[i] = (q.y - p.y) / length;
+            edgeNx[i] = -edgeDy[i];
+            edgeNy[i] = edgeDx[i];
+            newNode(p.x, p.y, 0);
+        }
+
+        Vertex first = null;
+        Vertex last = null;
+        for (int i = 0; i < n; i++) {
+            Vertex v = newVertex(edgeX[i], edgeY[i], 0, (i + n - 1) % n, i, i);
+            if (first == null) {
+                first = v;
+            } else {
+                link(last, v);
+            }
+            last = v;
+        }
+        link(last, first);
+        for (Vertex v : vertices) {
+            addEdgeEvent(v, v.next);
+            if (v.reflex) {
+                addSplitEvents(v);
+            }
+        }
+
+        // each event removes a vertex or splits the wavefront, so their number is linear.
+        // The limit protects from endless loops on degenerate input.
+        int eventLimit = 10 * n + 10;
+        Event event;
+        while ((event = queue.poll()) != null) {
+            boolean handled = event.edge == NO_EDGE ? handleEdgeEvent(event) : handleSplitEvent(event);
+            if (handled && --eventLimit < 0) {
+                return false;
+            }
+        }
+        for (Vertex v : vertices) {
+            if (v.valid) {
+                // wavefront did not collapse, e.g. self-intersecting polygon
+                return false;
+            }
+        }
+
+        mergeCoincidentNodes();
+        return buildFaces(n);
+    }
+
+    private Vertex newVertex(double x, double y, double t, int left, int right, int node) {
+        double nlx = edgeNx[left], nly = edgeNy[left];
+        double nrx = edgeNx[right], nry = edgeNy[right];
+        double denominator = 1 + nlx * nrx + nly * nry;
+        double vx = 0, vy = 0;
+        // antiparallel edges: the strip between them has just collapsed, the vertex does not move anymore
+        if (denominator > 1e-9) {
+            vx = (nlx + nrx) / denominator;
+            vy = (nly + nry) / denominator;
+        }
+        boolean reflex = edgeDx[left] * edgeDy[right] - edgeDy[left] * edgeDx[right] < -1e-9;
+        Vertex v = new Vertex(x, y, t, vx, vy, left, right, node, reflex);
+        vertices.add(v);
+        return v;
+    }
+
+    private static void link(Vertex a, Vertex b) {
+        a.next = b;
+        b.prev = a;
+    }
+
+    // time and place where edge between a and b shrinks to zero
+    private void addEdgeEvent(Vertex a, Vertex b) {
+        int edge = a.right;
+        double t, x, y;
+        double[] solution = equidistantPoint(a.left, edge, b.right);
+        if (solution != null) {
+            x = solution[0];
+            y = solution[1];
+            t = solution[2];
+        } else {
+            // collinear edges, ends of the edge are tracked by their velocities along the edge
+            double dx = edgeDx[edge], dy = edgeDy[edge];
+            double shrinkSpeed = (b.vx - a.vx) * dx + (b.vy - a.vy) * dy;
+            if (shrinkSpeed > -1e-12) {
+                return;
+            }
+            double length0 = ((b.x0 - b.vx * b.t0) - (a.x0 - a.vx * a.t0)) * dx
+                           + ((b.y0 - b.vy * b.t0) - (a.y0 - a.vy * a.t0)) * dy;
+            t = -length0 / shrinkSpeed;
+            x = a.x(t);
+            y = a.y(t);
+        }
+        if (t < Math.max(now, Math.max(a.t0, b.t0)) - eps) {
+            return;
+        }
+        // lines of the edges can meet at a point where vertices are not, if the vertex of a collapsed strip is involved
+        if (!isAt(a, t, x, y) || !isAt(b, t, x, y)) {
+            return;
+        }
+        queue.add(new Event(t, x, y, a, b, NO_EDGE));
+    }
+
+    private boolean isAt(Vertex v, double t, double x, double y) {
+        return Math.abs(v.x(t) - x) < positionEps && Math.abs(v.y(t) - y) < positionEps;
+    }
+
+    // point which is at the same distance t from the lines of three edges (and t itself), or null if lines are degenerate
+    private double[] equidistantPoint(int e1, int e2, int e3) {
+        // n.x * x + n.y * y - t = n . p for each edge
+        double a1 = edgeNx[e1], b1 = edgeNy[e1], c1 = a1 * edgeX[e1] + b1 * edgeY[e1];
+        double a2 = edgeNx[e2], b2 = edgeNy[e2], c2 = a2 * edgeX[e2] + b2 * edgeY[e2];
+        double a3 = edgeNx[e3], b3 = edgeNy[e3], c3 = a3 * edgeX[e3] + b3 * edgeY[e3];
+        double det = a1 * (b3 - b2) - b1 * (a3 - a2) - (a2 * b3 - a3 * b2);
+        if (Math.abs(det) < 1e-9) {
+            return null;
+        }
+        double x = (c1 * (b3 - b2) - b1 * (c3 - c2) - (c2 * b3 - c3 * b2)) / det;
+        double y = (a1 * (c3 - c2) - c1 * (a3 - a2) - (a2 * c3 - a3 * c2)) / det;
+        double t = a1 * x + b1 * y - c1;
+        return new double[]{x, y, t};
+    }
+
+    // reflex vertex can hit any edge; whether the edge is still there at that moment is checked when the event is polled.
+    private void addSplitEvents(Vertex v) {
+        for (int e = 0; e < edgeX.length; e++) {
+            if (e == v.left || e == v.right) {
+                continue;
+            }
+            double approachSpeed = 1 - (v.vx * edgeNx[e] + v.vy * edgeNy[e]);
+            if (approachSpeed <= 1e-9) {
+                continue;
+            }
+            // distance to the edge line at time t is equal to t
+            double distance0 = (v.x0 - edgeX[e]) * edgeNx[e] + (v.y0 - edgeY[e]) * edgeNy[e];
+            double t = v.t0 + (distance0 - v.t0) / approachSpeed;
+            if (t < Math.max(now, v.t0) - eps) {
+                continue;
+            }
+            queue.add(new Event(t, v.x(t), v.y(t), v, null, e));
+        }
+    }
+
+    // returns false if the event is outdated
+    private boolean handleEdgeEvent(Event event) {
+        Vertex a = event.a;
+        Vertex b = event.b;
+        if (!a.valid || !b.valid || a.next != b) {
+            return false;
+        }
+        now = Math.max(now, event.time);
+        int node = nodeFor(event, a, b);
+        addArc(a.node, node, a.left, a.right);
+        addArc(b.node, node, b.left, b.right);
+        a.valid = false;
+        b.valid = false;
+
+        if (a.prev == b.next) {
+            // triangle collapses into a point
+            Vertex c = a.prev;
+            addArc(c.node, node, c.left, c.right);
+            c.valid = false;
+            return true;
+        }
+        Vertex v = newVertex(event.x, event.y, event.time, a.left, b.right, node);
+        link(a.prev, v);
+        link(v, b.next);
+        scheduleEvents(v);
+        return true;
+    }
+
+    private boolean handleSplitEvent(Event event) {
+        Vertex v = event.a;
+        if (!v.valid) {
+            return false;
+        }
+        double t = event.time;
+        int edge = event.edge;
+
+        // find the part of the edge, which is hit, in the same wavefront
+        Vertex segmentStart = null;
+        for (Vertex w = v.next; w.next != v; w = w.next) {
+            if (w.right != edge) {
+                continue;
+            }
+            double wx = w.x(t), wy = w.y(t);
+            double position = (event.x - wx) * edgeDx[edge] + (event.y - wy) * edgeDy[edge];
+            double length = (w.next.x(t) - wx) * edgeDx[edge] + (w.next.y(t) - wy) * edgeDy[edge];
+            if (position >= -eps && position <= length + eps) {
+                segmentStart = w;
+                break;
+            }
+        }
+        if (segmentStart == null) {
+            return false;
+        }
+        now = Math.max(now, t);
+        int node = nodeFor(event, v, v);
+        addArc(v.node, node, v.left, v.right);
+        v.valid = false;
+
+        Vertex segmentEnd = segmentStart.next;
+        Vertex v1 = newVertex(event.x, event.y, t, v.left, edge, node);
+        Vertex v2 = newVertex(event.x, event.y, t, edge, v.right, node);
+        Vertex prev = v.prev;
+        Vertex next = v.next;
+        link(prev, v1);
+        link(v1, segmentEnd);
+        link(segmentStart, v2);
+        link(v2, next);
+        scheduleEvents(v1);
+        scheduleEvents(v2);
+        return true;
+    }
+
+    private void scheduleEvents(Vertex v) {
+        if (v.next == v) {
+            v.valid = false;
+            return;
+        }
+        if (v.next.next == v) {
+            // two vertices left, they are connected by the last arc
+            Vertex w = v.next;
+            addArc(v.node, w.node, v.left, v.right);
+            v.valid = false;
+            w.valid = false;
+            return;
+        }
+        addEdgeEvent(v.prev, v);
+        addEdgeEvent(v, v.next);
+        if (v.reflex) {
+            addSplitEvents(v);
+        }
+    }
+
+    // simultaneous events often happen at the same point, the node is shared then
+    private int nodeFor(Event event, Vertex a, Vertex b) {
+        for (Vertex v : new Vertex[]{a, b}) {
+            if (Math.abs(nodeX[v.node] - event.x) < eps && Math.abs(nodeY[v.node] - event.y) < eps) {
+                return v.node;
+            }
+        }
+        return newNode(event.x, event.y, event.time);
+    }
+
+    private int newNode(double x, double y, double time) {
+        if (nodeCount == nodeX.length) {
+            nodeX = Arrays.copyOf(nodeX, nodeCount * 2);
+            nodeY = Arrays.copyOf(nodeY, nodeCount * 2);
+            nodeTime = Arrays.copyOf(nodeTime, nodeCount * 2);
+        }
+        nodeX[nodeCount] = x;
+        nodeY[nodeCount] = y;
+        nodeTime[nodeCount] = time;
+        return nodeCount++;
+    }
+
+    private void addArc(int from, int to, int leftFace, int rightFace) {
+        if (from == to) {
+            return;
+        }
+        if (arcCount == arcFrom.length) {
+            int capacity = arcCount * 2;
+            arcFrom = Arrays.copyOf(arcFrom, capacity);
+            arcTo = Arrays.copyOf(arcTo, capacity);
+            arcLeftFace = Arrays.copyOf(arcLeftFace, capacity);
+            arcRightFace = Arrays.copyOf(arcRightFace, capacity);
+        }
+        arcFrom[arcCount] = from;
+        arcTo[arcCount] = to;
+        arcLeftFace[arcCount] = leftFace;
+        arcRightFace[arcCount] = rightFace;
+        arcCount++;
+    }
+
+    // nodes created by different branches of the wavefront at the same point are merged (sweep along x)
+    private void mergeCoincidentNodes() {
+        Integer[] order = new Integer[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> nodeX[i]));
+        int[] target = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            target[i] = i;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int a = order[i];
+            if (target[a] != a) {
+                continue;
+            }
+            for (int j = i + 1; j < nodeCount && nodeX[order[j]] - nodeX[a] < eps; j++) {
+                int b = order[j];
+                if (target[b] == b && Math.abs(nodeY[b] - nodeY[a]) < eps) {
+                    // polygon vertices are kept, they are referenced by faces directly
+                    if (b < a) {
+                        target[a] = b;
+                        a = b;
+                    } else {
+                        target[b] = a;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int root = i;
+            while (target[root] != root) {
+                root = target[root];
+            }
+            target[i] = root;
+        }
+        for (int i = 0; i < arcCount; i++) {
+            arcFrom[i] = target[arcFrom[i]];
+            arcTo[i] = target[arcTo[i]];
+        }
+    }
+
+    // each face is a path of arcs from the end of its edge back to the start
+    private boolean buildFaces(int n) {
+        int[] faceArcCount = new int[n];
+        for (int i = 0; i < arcCount; i++) {
+            faceArcCount[arcLeftFace[i]]++;
+            faceArcCount[arcRightFace[i]]++;
+        }
+        int[][] faceArcs = new int[n][];
+        for (int f = 0; f < n; f++) {
+            faceArcs[f] = new int[faceArcCount[f]];
+            faceArcCount[f] = 0;
+        }
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < arcCount; i++) {
+            int from = arcFrom[i], to = arcTo[i];
+            if (from == to) {
+                continue;
+            }
+            int f1 = Math.min(arcLeftFace[i], arcRightFace[i]);
+            int f2 = Math.max(arcLeftFace[i], arcRightFace[i]);
+            long key = (((long) Math.min(from, to) * nodeCount + Math.max(from, to)) * n + f1) * n + f2;
+            if (!seen.add(key)) {
+                continue;
+            }
+            faceArcs[f1][faceArcCount[f1]++] = i;
+            faceArcs[f2][faceArcCount[f2]++] = i;
+        }
+
+        faces = new int[n][];
+        boolean[] used = new boolean[arcCount];
+        int[] path = new int[nodeCount + 2];
+        for (int f = 0; f < n; f++) {
+            int start = (f + 1) % n;
+            int end = f;
+            int length = 0;
+            path[length++] = f;
+            path[length++] = start;
+            int current = start;
+            while (true) {
+                int nextNode = -1;
+                for (int k = 0; k < faceArcCount[f]; k++) {
+                    int arc = faceArcs[f][k];
+                    if (used[arc]) {
+                        continue;
+                    }
+                    if (arcFrom[arc] == current) {
+                        nextNode = arcTo[arc];
+                    } else if (arcTo[arc] == current) {
+                        nextNode = arcFrom[arc];
+                    } else {
+                        continue;
+                    }
+                    used[arc] = true;
+                    break;
+                }
+                if (nextNode < 0 || length == path.length) {
+                    return false;
+                }
+                if (nextNode == end) {
+                    break;
+                }
+                path[length++] = nextNode;
+                current = nextNode;
+            }
+            // arcs are shared by two faces
+            for (int k = 0; k < faceArcCount[f]; k++) {
+                used[faceArcs[f][k]] = false;
+            }
+            faces[f] = Arrays.copyOf(path, length);
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            maxTime = Math.max(maxTime, nodeTime[i]);
+        }
+        return maxTime > eps;
+    }
+}
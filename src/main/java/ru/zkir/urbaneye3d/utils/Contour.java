@@ -6,17 +6,31 @@ import ru.zkir.urbaneye3d.RenderableBuildingElement;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Contour {
+    // length of one degree of latitude (and of longitude on the equator), metres
+    public static final double METERS_PER_DEGREE = 111320.0;
+
     // Define a tolerance for the tangent of the angle. For example, 0.08 corresponds to ~175.5 degrees.
     // This allows for slight deviations in manually placed points.
     static final double STRAIGHT_ANGLE_TAN_TOLERANCE = 0.08;
     private String mode = "XY";
     public List<ArrayList<Point2D>> outerRings;
     public List<ArrayList<Point2D>> innerRings;
+    // original (not simplified) rings, for containment checks. Only contours read from OSM data have it.
+    private PreparedContour prepared;
 
     public Contour(OsmPrimitive primitive, LatLon center) {
+        this(primitive, center, null);
+    }
+
+    /**
+     * @param points points of nodes shared with other contours read during the same update, can be null.
+     */
+    public Contour(OsmPrimitive primitive, LatLon center, NodePoints points) {
         if (center == null) {
             this.mode = "LatLon";
         } else {
@@ -32,9 +46,10 @@ public class Contour {
                 if ("XY".equals(this.mode)) {
                     tempContour.add(getNodeLocalCoords(node, center));
                 } else {
-                    tempContour.add(new Point2D(node.lon(), node.lat()));
+                    tempContour.add(nodePoint(node, points));
                 }
             }
+            this.prepared = new PreparedContour(Collections.singletonList(tempContour), Collections.emptyList());
             this.outerRings.add(simplifyContour(tempContour));
         } else { //relation
             Relation relation = (Relation) primitive;
@@ -54,6 +69,9 @@ public class Contour {
                 }
             }
 
+            List<ArrayList<Point2D>> originalOuterRings = new ArrayList<>();
+            List<ArrayList<Point2D>> originalInnerRings = new ArrayList<>();
+
             List<List<Node>> outerNodeRings = assembleRings(outerWays);
             for (List<Node> nodeRing : outerNodeRings) {
                 ArrayList<Point2D> pointRing = new ArrayList<>();
@@ -61,10 +79,11 @@ public class Contour {
                     if ("XY".equals(this.mode)) {
                         pointRing.add(getNodeLocalCoords(node, center));
                     } else {
-                        pointRing.add(new Point2D(node.lon(), node.lat()));
+                        pointRing.add(nodePoint(node, points));
                     }
 
                 }
+                originalOuterRings.add(pointRing);
                 this.outerRings.add(simplifyContour(pointRing));
             }
 
@@ -75,11 +94,13 @@ public class Contour {
                     if ("XY".equals(this.mode)) {
                         pointRing.add(getNodeLocalCoords(node, center));
                     } else {
-                        pointRing.add(new Point2D(node.lon(), node.lat()));
+                        pointRing.add(nodePoint(node, points));
                     }
                 }
+                originalInnerRings.add(pointRing);
                 this.innerRings.add(simplifyContour(pointRing));
             }
+            this.prepared = new PreparedContour(originalOuterRings, originalInnerRings);
         }
     }
 
@@ -89,145 +110,102 @@ public class Contour {
         this.innerRings = new ArrayList<>();
     }
 
-    public boolean contains(Contour other) {
-        // 'this' is the potential container (building), 'other' is the content (part).
-
-        // A building must have an outer ring to contain anything.
-        if (this.outerRings.isEmpty()) {
-            return false;
+    // copy of the contour in local coordinates (metres) relative to the origin. The original stays as it is.
+    public Contour(Contour other, LatLon origin) {
+        this.mode = "XY";
+        this.outerRings = new ArrayList<>(other.outerRings.size());
+        for (ArrayList<Point2D> ring : other.outerRings) {
+            this.outerRings.add(toLocalCoords(ring, origin));
         }
-        // A part must have an outer ring to be contained.
-        if (other.outerRings.isEmpty()) {
-            return false;
+        this.innerRings = new ArrayList<>(other.innerRings.size());
+        for (ArrayList<Point2D> ring : other.innerRings) {
+            this.innerRings.add(toLocalCoords(ring, origin));
         }
+    }
 
-        // For simplicity, we assume a building is defined by its first outer ring for containment checks.
-        // This is a reasonable simplification for most OSM data.
-        List<Point2D> buildingOuterRing = this.outerRings.get(0);
-
-        // Check every outer ring of the part.
-        for (ArrayList<Point2D> partOuterRing : other.outerRings) {
-            // Check every point of the part's outer ring.
-            for (Point2D point : partOuterRing) {
-                // 1. All points of the part must be inside the building's outer ring.
-                if (!isPointInside(buildingOuterRing, point)) {
-                    return false; // Part is not fully inside the building's boundary.
-                }
+    public boolean contains(Contour other) {
+        // 'this' is the potential container (building), 'other' is the content (part).
+        return getPrepared().contains(other.getPrepared());
+    }
 
-                // 2. All points of the part must be outside all of the building's inner rings (holes).
-                for (ArrayList<Point2D> buildingInnerRing : this.innerRings) {
-                    if (isPointInside(buildingInnerRing, point)) {
-                        return false; // Part is inside a hole of the building.
-                    }
-                }
-            }
+    // Contour prepared for containment checks. For contours read from OSM data it's made of the original rings,
+    // before simplification, otherwise of the current ones.
+    public PreparedContour getPrepared() {
+        if (prepared == null) {
+            prepared = new PreparedContour(outerRings, innerRings);
         }
-
-        // If all checks pass, the part is considered to be inside the building.
-        return true;
+        return prepared;
     }
 
-    private boolean isPointInside(List<Point2D> polygon, Point2D point) {
-        if (isPointOnBorder(polygon, point)) {
-            return true; // for our purposes we consider borders as part of a polygon
+    // Joins member ways into rings. Ways are found by their end nodes in a hash map, so it's linear in the number of ways.
+    // The result does not depend on luck: a ring starts with the first unused way in the member order,
+    // and if several ways continue the ring at the same node, the first one in the member order is taken.
+    // Broken rings are extended in both directions as far as possible and closed with a straight segment,
+    // chains shorter than 3 nodes are dropped.
+    private static List<List<Node>> assembleRings(List<Way> ways) {
+        // end node -> ways which start or end there, in the member order
+        Map<Node, List<Integer>> waysByEndNode = new HashMap<>();
+        for (int i = 0; i < ways.size(); i++) {
+            Way way = ways.get(i);
+            if (way.getNodesCount() < 2) continue;
+            waysByEndNode.computeIfAbsent(way.firstNode(), node -> new ArrayList<>(2)).add(i);
+            if (!way.lastNode().equals(way.firstNode())) {
+                waysByEndNode.computeIfAbsent(way.lastNode(), node -> new ArrayList<>(2)).add(i);
+            }
         }
 
-        int intersections = 0;
-        for (int i = 0; i < polygon.size(); i++) {
-            Point2D p1 = polygon.get(i);
-            Point2D p2 = polygon.get((i + 1) % polygon.size());
-            if (p1.y == p2.y) continue;
-            if (point.y < Math.min(p1.y, p2.y) || point.y >= Math.max(p1.y, p2.y)) continue;
-            double x = (point.y - p1.y) * (p2.x - p1.x) / (p2.y - p1.y) + p1.x;
-            if (x > point.x) {
-                intersections++;
+        List<List<Node>> rings = new ArrayList<>();
+        boolean[] used = new boolean[ways.size()];
+        for (int i = 0; i < ways.size(); i++) {
+            if (used[i] || ways.get(i).getNodesCount() < 2) continue;
+            used[i] = true;
+            List<Node> ring = ways.get(i).getNodes();
+            if (!extendChain(ring, ring.get(0), ways, waysByEndNode, used)) {
+                // broken ring: it's extended backwards from the first node too, then closed.
+                List<Node> head = new ArrayList<>();
+                head.add(ring.get(0));
+                extendChain(head, null, ways, waysByEndNode, used);
+                Collections.reverse(head);
+                head.addAll(ring.subList(1, ring.size()));
+                ring = head;
+                if (ring.size() < 3) continue;
+                ring.add(ring.get(0));
             }
+            rings.add(ring);
         }
-        return (intersections % 2) == 1;
+        return rings;
     }
 
-    // Проверка, лежит ли точка на границе полигона
-    private boolean isPointOnBorder(List<Point2D> polygon, Point2D point) {
-        final double EPS = 1e-10;
-        for (int i = 0; i < polygon.size(); i++) {
-            Point2D p1 = polygon.get(i);
-            Point2D p2 = polygon.get((i + 1) % polygon.size());
-
-            // Проверка принадлежности точки ребру (p1, p2)
-            if (pointOnSegment(p1, p2, point, EPS)) {
+    // Appends unused ways to the last node of the chain, until the chain comes to the stop node or there is no continuation.
+    // Returns true if the stop node has been reached.
+    private static boolean extendChain(List<Node> chain, Node stop, List<Way> ways, Map<Node, List<Integer>> waysByEndNode,
+                                       boolean[] used) {
+        while (true) {
+            Node end = chain.get(chain.size() - 1);
+            if (chain.size() > 1 && end.equals(stop)) {
                 return true;
             }
-        }
-        return false;
-    }
-
-    // Проверка, лежит ли точка на отрезке
-    private boolean pointOnSegment(Point2D p1, Point2D p2, Point2D point, double eps) {
-        // Расстояние от точки до концов отрезка
-        double distToP1 = Math.hypot(point.x - p1.x, point.y - p1.y);
-        double distToP2 = Math.hypot(point.x - p2.x, point.y - p2.y);
-        double segLength = Math.hypot(p2.x - p1.x, p2.y - p1.y);
-
-        // Если точка совпадает с вершиной
-        if (distToP1 < eps || distToP2 < eps) return true;
-
-        // Коллинеарность и нахождение на отрезке
-        double cross = (point.x - p1.x) * (p2.y - p1.y) - (point.y - p1.y) * (p2.x - p1.x);
-        boolean withinBoundingBox = point.x >= Math.min(p1.x, p2.x) - eps &&
-                point.x <= Math.max(p1.x, p2.x) + eps &&
-                point.y >= Math.min(p1.y, p2.y) - eps &&
-                point.y <= Math.max(p1.y, p2.y) + eps;
-
-        return Math.abs(cross) < eps && withinBoundingBox;
-    }
-
-
-    private List<List<Node>> assembleRings(List<Way> ways) {
-        List<List<Node>> rings = new ArrayList<>();
-        List<Way> remainingWays = new ArrayList<>(ways);
-
-        while (!remainingWays.isEmpty()) {
-            List<Node> currentRing = new ArrayList<>(remainingWays.get(0).getNodes());
-            remainingWays.remove(0);
-
-            boolean ringClosed = false;
-            while (!ringClosed && !remainingWays.isEmpty()) {
-                Node firstNode = currentRing.get(0);
-                Node lastNode = currentRing.get(currentRing.size() - 1);
-
-                if (firstNode.equals(lastNode)) {
-                    ringClosed = true;
-                    continue;
-                }
-
-                boolean foundNext = false;
-                for (int i = 0; i < remainingWays.size(); i++) {
-                    Way nextWay = remainingWays.get(i);
-                    if (nextWay.getNodesCount() < 2) continue;
-
-                    if (nextWay.firstNode().equals(lastNode)) {
-                        currentRing.addAll(nextWay.getNodes().subList(1, nextWay.getNodesCount()));
-                        remainingWays.remove(i);
-                        foundNext = true;
-                        break;
-                    } else if (nextWay.lastNode().equals(lastNode)) {
-                        List<Node> reversedNodes = new ArrayList<>(nextWay.getNodes());
-                        Collections.reverse(reversedNodes);
-                        currentRing.addAll(reversedNodes.subList(1, reversedNodes.size()));
-                        remainingWays.remove(i);
-                        foundNext = true;
-                        break;
-                    }
-                }
-
-                if (!foundNext) {
-                    // Could not find a way to close the ring, break to avoid infinite loop
+            int next = -1;
+            for (int candidate : waysByEndNode.getOrDefault(end, Collections.emptyList())) {
+                if (!used[candidate]) {
+                    next = candidate;
                     break;
                 }
             }
-            rings.add(currentRing);
+            if (next < 0) {
+                return false;
+            }
+            used[next] = true;
+            List<Node> nodes = ways.get(next).getNodes();
+            if (!nodes.get(0).equals(end)) {
+                Collections.reverse(nodes);
+            }
+            chain.addAll(nodes.subList(1, nodes.size()));
         }
-        return rings;
+    }
+
+    private static Point2D nodePoint(Node node, NodePoints points) {
+        return points != null ? points.get(node) : new Point2D(node.lon(), node.lat());
     }
 
     static Point2D getNodeLocalCoords(Node node, LatLon center) {
@@ -237,8 +215,8 @@ public class Contour {
     static Point2D getLocalCoords(Point2D point, LatLon center) {
         double dx = point.x - center.lon();
         double dy = point.y - center.lat();
-        return new Point2D(dx * Math.cos(Math.toRadians(center.lat())) * 111320.0,
-                dy * 111320.0);
+        return new Point2D(dx * Math.cos(Math.toRadians(center.lat())) * METERS_PER_DEGREE,
+                dy * METERS_PER_DEGREE);
     }
 
 
@@ -336,18 +314,17 @@ public class Contour {
         return isAntiCollinear;
     }
 
-    public void toLocalCoords(LatLon origin) {
-        this.mode = "XY";
-        for (ArrayList<Point2D> ring : outerRings) {
-            for (int i = 0; i < ring.size(); i++) {
-                ring.set(i, getLocalCoords(ring.get(i), origin));
-            }
-
-        }
-        for (ArrayList<Point2D> ring : innerRings) {
-            for (int i = 0; i < ring.size(); i++) {
-                ring.set(i, getLocalCoords(ring.get(i), origin));
-            }
+    // Ring in local coordinates, new points are created. Same as getLocalCoords() for every point,
+    // but the cosine is calculated once per ring.
+    public static ArrayList<Point2D> toLocalCoords(List<Point2D> ring, LatLon origin) {
+        double originLon = origin.lon();
+        double originLat = origin.lat();
+        double cosLat = Math.cos(Math.toRadians(originLat));
+        ArrayList<Point2D> result = new ArrayList<>(ring.size());
+        for (Point2D point : ring) {
+            result.add(new Point2D((point.x - originLon) * cosLat * METERS_PER_DEGREE,
+                    (point.y - originLat) * METERS_PER_DEGREE));
         }
+        return result;
     }
 }
@@ -0,0 +1,54 @@
+package ru.zkir.urbaneye3d.utils;
+
+import java.util.List;
+
+/**
+ * 64-bit hash of a sequence of values.
+ * It's used to check whether the input data of some expensive computation (e.g. mesh generation) has changed.
+ * Collisions are possible in theory, but with 64 bits they are extremely unlikely.
+ */
+public class Fingerprint {
+    private long hash = 0xcbf29ce484222325L; // FNV offset basis
+
+    public Fingerprint add(long value) {
+        // splitmix64 finalizer, so that every bit of the value affects the whole hash
+        value ^= value >>> 30;
+        value *= 0xbf58476d1ce4e5b9L;
+        value ^= value >>> 27;
+        value *= 0x94d049bb133111ebL;
+        value ^= value >>> 31;
+        hash = (Long.rotateLeft(hash, 23) ^ value) * 0x100000001b3L;
+        return this;
+    }
+
+    public Fingerprint add(double value) {
+        return add(Double.doubleToLongBits(value));
+    }
+
+    public Fingerprint add(String value) {
+        if (value == null) {
+            return add(-1L);
+        }
+        add(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            add(value.charAt(i));
+        }
+        return this;
+    }
+
+    public Fingerprint add(List<? extends List<Point2D>> rings) {
+        add(rings.size());
+        for (List<Point2D> ring : rings) {
+            add(ring.size());
+            for (Point2D point : ring) {
+                add(point.x);
+                add(point.y);
+            }
+        }
+        return this;
+    }
+
+    public long get() {
+        return hash;
+    }
+}
@@ -0,0 +1,89 @@
+package ru.zkir.urbaneye3d.utils;
+
+/**
+ * View frustum, as 6 planes extracted from projection and modelview matrices (Gribb-Hartmann method).
+ * Planes are in the coordinate system of the modelview matrix input, and their normals point inside.
+ */
+public class Frustum {
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTS = 1;
+    public static final int INSIDE = 2;
+
+    // a, b, c, d for each plane: a*x + b*y + c*z + d >= 0 inside
+    private final double[] planes = new double[6 * 4];
+    private final double[] clip = new double[16];
+
+    /**
+     * Frustum with no planes set yet, see {@link #set}. Renderer keeps one and updates it each frame.
+     */
+    public Frustum() {
+    }
+
+    /**
+     * @param projection projection matrix, column-major (as returned by glGetFloatv)
+     * @param modelview modelview matrix, column-major
+     */
+    public Frustum(float[] projection, float[] modelview) {
+        set(projection, modelview);
+    }
+
+    /**
+     * Extracts the planes from the matrices, replacing the previous ones.
+     */
+    public void set(float[] projection, float[] modelview) {
+        // clip = projection * modelview
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                double sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += projection[k * 4 + row] * modelview[col * 4 + k];
+                }
+                clip[col * 4 + row] = sum;
+            }
+        }
+
+        // left, right, bottom, top, near, far
+        for (int i = 0; i < 6; i++) {
+            int row = i / 2;
+            double sign = (i % 2 == 0) ? 1 : -1;
+            double a = clip[3] + sign * clip[row];
+            double b = clip[7] + sign * clip[4 + row];
+            double c = clip[11] + sign * clip[8 + row];
+            double d = clip[15] + sign * clip[12 + row];
+            double length = Math.sqrt(a * a + b * b + c * c);
+            if (length > 0) {
+                a /= length;
+                b /= length;
+                c /= length;
+                d /= length;
+            }
+            planes[i * 4] = a;
+            planes[i * 4 + 1] = b;
+            planes[i * 4 + 2] = c;
+            planes[i * 4 + 3] = d;
+        }
+    }
+
+    /**
+     * @return OUTSIDE, if the box is completely outside the frustum, INSIDE if it is completely inside, INTERSECTS otherwise.
+     */
+    public int testBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        int result = INSIDE;
+        for (int i = 0; i < 6; i++) {
+            double a = planes[i * 4];
+            double b = planes[i * 4 + 1];
+            double c = planes[i * 4 + 2];
+            double d = planes[i * 4 + 3];
+            // the corner which is the farthest along the plane normal, and the nearest one
+            double far = a * (a > 0 ? maxX : minX) + b * (b > 0 ? maxY : minY) + c * (c > 0 ? maxZ : minZ) + d;
+            if (far < 0) {
+                return OUTSIDE;
+            }
+            double near = a * (a > 0 ? minX : maxX) + b * (b > 0 ? minY : maxY) + c * (c > 0 ? minZ : maxZ) + d;
+            if (near < 0) {
+                result = INTERSECTS;
+            }
+        }
+        return result;
+    }
+}
@@ -1,11 +1,152 @@
 package ru.zkir.urbaneye3d.utils;
 
-import java.util.ArrayList;
-import java.util.List;
-
-public class Mesh {
-    public List<Point3D> verts = new ArrayList<>();
-    public List<int[]> roofFaces = new ArrayList<>();
-    public List<int[]> wallFaces = new ArrayList<>();
-    public List<int[]> bottomFaces = new ArrayList<>();
+import java.util.Arrays;
+
+/**
+ * Compact immutable mesh: coordinates, face indices and triangles are stored in flat primitive arrays,
+ * so a building costs a handful of objects rather than one per vertex and per face.
+ * Meshes are created by MeshBuilder, triangulate() returns a new mesh rather than changing this one.
+ *
+ * Faces of the same group (walls, roof, bottom) are contiguous, group g occupies faces [getGroupStart(g), getGroupEnd(g)).
+ */
+public final class Mesh {
+    public static final int WALL = 0;
+    public static final int ROOF = 1;
+    public static final int BOTTOM = 2;
+    static final int GROUP_COUNT = 3;
+
+    final double[] coords;      // x, y, z per vertex
+    final int[] indices;        // vertex indices of all faces, one after another
+    final int[] faceOffsets;    // face i is indices[faceOffsets[i], faceOffsets[i + 1])
+    final int[] groupOffsets;   // group g is faces [groupOffsets[g], groupOffsets[g + 1])
+
+    // Triangulation of the faces, triangulate() creates it once, so renderer does not need to tessellate anything.
+    // Triangles (3 vertex indices each) of face i are triangles[triangleOffsets[i], triangleOffsets[i + 1]).
+    // Original polygon faces are kept, e.g. for wireframe mode. null if the mesh is not triangulated.
+    private final int[] triangles;
+    private final int[] triangleOffsets;
+
+    Mesh(double[] coords, int[] indices, int[] faceOffsets, int[] groupOffsets) {
+        this(coords, indices, faceOffsets, groupOffsets, null, null);
+    }
+
+    private Mesh(double[] coords, int[] indices, int[] faceOffsets, int[] groupOffsets, int[] triangles, int[] triangleOffsets) {
+        this.coords = coords;
+        this.indices = indices;
+        this.faceOffsets = faceOffsets;
+        this.groupOffsets = groupOffsets;
+        this.triangles = triangles;
+        this.triangleOffsets = triangleOffsets;
+    }
+
+    public int getVertexCount() {
+        return coords.length / 3;
+    }
+
+    public double getX(int vertex) {
+        return coords[3 * vertex];
+    }
+
+    public double getY(int vertex) {
+        return coords[3 * vertex + 1];
+    }
+
+    public double getZ(int vertex) {
+        return coords[3 * vertex + 2];
+    }
+
+    // creates a new object, use getX/getY/getZ in loops.
+    public Point3D getVertex(int vertex) {
+        return new Point3D(getX(vertex), getY(vertex), getZ(vertex));
+    }
+
+    public int getFaceCount() {
+        return faceOffsets.length - 1;
+    }
+
+    public int getGroupStart(int group) {
+        return groupOffsets[group];
+    }
+
+    public int getGroupEnd(int group) {
+        return groupOffsets[group + 1];
+    }
+
+    public int getFaceSize(int face) {
+        return faceOffsets[face + 1] - faceOffsets[face];
+    }
+
+    // k-th vertex of the face
+    public int getFaceVertex(int face, int k) {
+        return indices[faceOffsets[face] + k];
+    }
+
+    // copy of the face vertex indices
+    public int[] getFace(int face) {
+        int[] result = new int[getFaceSize(face)];
+        System.arraycopy(indices, faceOffsets[face], result, 0, result.length);
+        return result;
+    }
+
+    public boolean isTriangulated() {
+        return triangles != null;
+    }
+
+    // number of triangle vertex indices of the face, i.e. 3 * number of triangles
+    public int getTriangleIndexCount(int face) {
+        return triangleOffsets[face + 1] - triangleOffsets[face];
+    }
+
+    public int getTriangleVertex(int face, int k) {
+        return triangles[triangleOffsets[face] + k];
+    }
+
+    // returns the triangulated mesh, it shares vertices and faces with this one
+    public Mesh triangulate() {
+        if (isTriangulated()) {
+            return this;
+        }
+        int faceCount = getFaceCount();
+        int[] offsets = new int[faceCount + 1];
+        // a polygon without holes has (n - 2) triangles
+        int capacity = 0;
+        for (int face = 0; face < faceCount; face++) {
+            capacity += 3 * Math.max(0, getFaceSize(face) - 2);
+        }
+        int[] result = new int[capacity];
+        int count = 0;
+        for (int face = 0; face < faceCount; face++) {
+            count = triangulateFace(face, result, count);
+            offsets[face + 1] = count;
+        }
+        return new Mesh(coords, indices, faceOffsets, groupOffsets,
+                        count == result.length ? result : Arrays.copyOf(result, count), offsets);
+    }
+
+    private int triangulateFace(int face, int[] result, int count) {
+        int start = faceOffsets[face];
+        int size = getFaceSize(face);
+        if (size < 3) {
+            return count;
+        }
+        if (size == 3) {
+            System.arraycopy(indices, start, result, count, 3);
+            return count + 3;
+        }
+        if (size == 4) {
+            // quads are assumed to be convex, as GL_QUADS did.
+            result[count++] = indices[start];
+            result[count++] = indices[start + 1];
+            result[count++] = indices[start + 2];
+            result[count++] = indices[start];
+            result[count++] = indices[start + 2];
+            result[count++] = indices[start + 3];
+            return count;
+        }
+
+        // Use triangulator for other polygons to handle non-convex cases correctly.
+        int[] faceTriangles = Triangulator.triangulateFace(coords, indices, start, size);
+        System.arraycopy(faceTriangles, 0, result, count, faceTriangles.length);
+        return count + faceTriangles.length;
+    }
 }
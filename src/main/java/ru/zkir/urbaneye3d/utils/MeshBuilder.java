@@ -0,0 +1,126 @@
+package ru.zkir.urbaneye3d.utils;
+
+import java.util.Arrays;
+
+/**
+ * Collects vertices and faces in growable primitive arrays, roof generators write into it directly.
+ * Faces are collected per group, so they can be added in any order and still come out as contiguous ranges of the Mesh.
+ */
+public final class MeshBuilder {
+    private double[] coords = new double[3 * 64];
+    private int vertexCount;
+
+    private final int[][] indices = new int[Mesh.GROUP_COUNT][];
+    private final int[] indexCounts = new int[Mesh.GROUP_COUNT];
+    private final int[][] faceSizes = new int[Mesh.GROUP_COUNT][];
+    private final int[] faceCounts = new int[Mesh.GROUP_COUNT];
+
+    public MeshBuilder() {
+        for (int group = 0; group < Mesh.GROUP_COUNT; group++) {
+            indices[group] = new int[64];
+            faceSizes[group] = new int[16];
+        }
+    }
+
+    // returns index of the new vertex
+    public int addVertex(double x, double y, double z) {
+        if (coords.length < 3 * (vertexCount + 1)) {
+            coords = Arrays.copyOf(coords, coords.length * 2);
+        }
+        coords[3 * vertexCount] = x;
+        coords[3 * vertexCount + 1] = y;
+        coords[3 * vertexCount + 2] = z;
+        return vertexCount++;
+    }
+
+    public int addVertex(Point2D p, double z) {
+        return addVertex(p.x, p.y, z);
+    }
+
+    public void setVertex(int vertex, double x, double y, double z) {
+        coords[3 * vertex] = x;
+        coords[3 * vertex + 1] = y;
+        coords[3 * vertex + 2] = z;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public double getX(int vertex) {
+        return coords[3 * vertex];
+    }
+
+    public double getY(int vertex) {
+        return coords[3 * vertex + 1];
+    }
+
+    public double getZ(int vertex) {
+        return coords[3 * vertex + 2];
+    }
+
+    public void addWallFace(int... face) {
+        addFace(Mesh.WALL, face);
+    }
+
+    public void addRoofFace(int... face) {
+        addFace(Mesh.ROOF, face);
+    }
+
+    public void addBottomFace(int... face) {
+        addFace(Mesh.BOTTOM, face);
+    }
+
+    public void addFace(int group, int... face) {
+        int offset = reserveFace(group, face.length);
+        System.arraycopy(face, 0, indices[group], offset, face.length);
+    }
+
+    // Face made of count consecutive vertices starting from first, e.g. a footprint at some height.
+    // reverse gives the opposite winding, e.g. for the bottom.
+    public void addRingFace(int group, int first, int count, boolean reverse) {
+        int offset = reserveFace(group, count);
+        int[] groupIndices = indices[group];
+        for (int i = 0; i < count; i++) {
+            groupIndices[offset + i] = reverse ? first + count - 1 - i : first + i;
+        }
+    }
+
+    // grows buffers of the group for a new face, returns offset of the face indices
+    private int reserveFace(int group, int size) {
+        if (indices[group].length < indexCounts[group] + size) {
+            indices[group] = Arrays.copyOf(indices[group], Math.max(indices[group].length * 2, indexCounts[group] + size));
+        }
+        if (faceSizes[group].length == faceCounts[group]) {
+            faceSizes[group] = Arrays.copyOf(faceSizes[group], faceSizes[group].length * 2);
+        }
+        faceSizes[group][faceCounts[group]++] = size;
+        int offset = indexCounts[group];
+        indexCounts[group] += size;
+        return offset;
+    }
+
+    public Mesh build() {
+        int faceCount = 0;
+        int indexCount = 0;
+        for (int group = 0; group < Mesh.GROUP_COUNT; group++) {
+            faceCount += faceCounts[group];
+            indexCount += indexCounts[group];
+        }
+
+        int[] meshIndices = new int[indexCount];
+        int[] faceOffsets = new int[faceCount + 1];
+        int[] groupOffsets = new int[Mesh.GROUP_COUNT + 1];
+        int face = 0;
+        int offset = 0;
+        for (int group = 0; group < Mesh.GROUP_COUNT; group++) {
+            System.arraycopy(indices[group], 0, meshIndices, offset, indexCounts[group]);
+            for (int i = 0; i < faceCounts[group]; i++) {
+                offset += faceSizes[group][i];
+                faceOffsets[++face] = offset;
+            }
+            groupOffsets[group + 1] = face;
+        }
+        return new Mesh(Arrays.copyOf(coords, 3 * vertexCount), meshIndices, faceOffsets, groupOffsets);
+    }
+}
@@ -0,0 +1,171 @@
+package ru.zkir.urbaneye3d.utils;
+
+import java.util.Arrays;
+
+/**
+ * Post-processing of generated meshes: coincident vertices are welded, degenerate faces are removed.
+ *
+ * Meshers create vertices ring by ring and row by row, so a vertex can be repeated, e.g. when the roof height is 0
+ * or the footprint has a duplicated node. Faces which collapse after welding (fewer than 3 distinct vertices,
+ * or zero area) are dropped, vertices not used by any face are dropped too.
+ *
+ * Coincident vertices are found with a spatial hash: the space is split into cells of the tolerance size,
+ * a vertex is compared with the vertices of its own and the 26 neighbour cells only.
+ */
+public final class MeshWelder {
+    // 1 mm. OSM coordinates have 7 decimal digits, ~1 cm, so distinct nodes are never welded.
+    public static final double DEFAULT_TOLERANCE = 1e-3;
+
+    private MeshWelder() {
+    }
+
+    public static Mesh weld(Mesh mesh) {
+        return weld(mesh, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @return welded mesh, or the same mesh if there is nothing to weld or remove.
+     */
+    public static Mesh weld(Mesh mesh, double tolerance) {
+        int vertexCount = mesh.getVertexCount();
+        int[] representative = findRepresentatives(mesh.coords, vertexCount, tolerance);
+
+        int faceCount = mesh.getFaceCount();
+        int[] indices = new int[mesh.indices.length];
+        int[] faceOffsets = new int[faceCount + 1];
+        int[] groupOffsets = new int[Mesh.GROUP_COUNT + 1];
+        boolean[] used = new boolean[vertexCount];
+        int indexCount = 0;
+        int keptFaces = 0;
+        boolean changed = false;
+        for (int group = 0; group < Mesh.GROUP_COUNT; group++) {
+            for (int face = mesh.getGroupStart(group); face < mesh.getGroupEnd(group); face++) {
+                int size = 0;
+                for (int k = 0; k < mesh.getFaceSize(face); k++) {
+                    int vertex = representative[mesh.getFaceVertex(face, k)];
+                    if (size == 0 || indices[indexCount + size - 1] != vertex) {
+                        indices[indexCount + size++] = vertex;
+                    }
+                }
+                // face is closed, the last vertex can be the same as the first one
+                while (size > 1 && indices[indexCount + size - 1] == indices[indexCount]) {
+                    size--;
+                }
+                if (size != mesh.getFaceSize(face)) {
+                    changed = true;
+                }
+                if (size < 3 || area(mesh.coords, indices, indexCount, size) < tolerance * tolerance) {
+                    changed = true;
+                    continue;
+                }
+                for (int k = 0; k < size; k++) {
+                    used[indices[indexCount + k]] = true;
+                }
+                indexCount += size;
+                faceOffsets[++keptFaces] = indexCount;
+            }
+            groupOffsets[group + 1] = keptFaces;
+        }
+
+        // renumber vertices which are used, keeping their order
+        int[] newIndex = new int[vertexCount];
+        int newVertexCount = 0;
+        for (int i = 0; i < vertexCount; i++) {
+            newIndex[i] = used[i] ? newVertexCount++ : -1;
+        }
+        if (!changed && newVertexCount == vertexCount) {
+            return mesh;
+        }
+
+        double[] coords = new double[3 * newVertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            if (used[i]) {
+                System.arraycopy(mesh.coords, 3 * i, coords, 3 * newIndex[i], 3);
+            }
+        }
+        for (int k = 0; k < indexCount; k++) {
+            indices[k] = newIndex[indices[k]];
+        }
+        return new Mesh(coords, Arrays.copyOf(indices, indexCount), Arrays.copyOf(faceOffsets, keptFaces + 1), groupOffsets);
+    }
+
+    // for each vertex: index of the first vertex within the tolerance (possibly itself)
+    private static int[] findRepresentatives(double[] coords, int vertexCount, double tolerance) {
+        int[] representative = new int[vertexCount];
+        // open addressing hash: cell key -> first representative in the cell, others are chained via next.
+        int capacity = Integer.highestOneBit(Math.max(4, vertexCount) * 2) * 2;
+        long[] keys = new long[capacity];
+        int[] heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        int[] next = new int[vertexCount];
+        double toleranceSq = tolerance * tolerance;
+
+        for (int i = 0; i < vertexCount; i++) {
+            long cx = (long) Math.floor(coords[3 * i] / tolerance);
+            long cy = (long) Math.floor(coords[3 * i + 1] / tolerance);
+            long cz = (long) Math.floor(coords[3 * i + 2] / tolerance);
+            representative[i] = -1;
+            for (long dx = -1; dx <= 1 && representative[i] < 0; dx++) {
+                for (long dy = -1; dy <= 1 && representative[i] < 0; dy++) {
+                    for (long dz = -1; dz <= 1 && representative[i] < 0; dz++) {
+                        int slot = findSlot(keys, heads, cellKey(cx + dx, cy + dy, cz + dz));
+                        for (int j = heads[slot]; j >= 0; j = next[j]) {
+                            if (distanceSq(coords, i, j) <= toleranceSq) {
+                                representative[i] = j;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (representative[i] < 0) {
+                representative[i] = i;
+                int slot = findSlot(keys, heads, cellKey(cx, cy, cz));
+                keys[slot] = cellKey(cx, cy, cz);
+                next[i] = heads[slot];
+                heads[slot] = i;
+            }
+        }
+        return representative;
+    }
+
+    // slot of the key, or the empty slot where it should be inserted. There are at most vertexCount keys, so there is always one.
+    private static int findSlot(long[] keys, int[] heads, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (heads[slot] >= 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // 21 bits per axis. Far cells can get the same key, it's harmless: distances are checked anyway.
+    private static long cellKey(long cx, long cy, long cz) {
+        return ((cx & 0x1FFFFF) << 42) | ((cy & 0x1FFFFF) << 21) | (cz & 0x1FFFFF);
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 32);
+    }
+
+    private static double distanceSq(double[] coords, int a, int b) {
+        double dx = coords[3 * a] - coords[3 * b];
+        double dy = coords[3 * a + 1] - coords[3 * b + 1];
+        double dz = coords[3 * a + 2] - coords[3 * b + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // area of a planar polygon (Newell's method)
+    private static double area(double[] coords, int[] indices, int start, int size) {
+        double nx = 0, ny = 0, nz = 0;
+        for (int k = 0; k < size; k++) {
+            int a = 3 * indices[start + k];
+            int b = 3 * indices[start + (k + 1) % size];
+            nx += (coords[a + 1] - coords[b + 1]) * (coords[a + 2] + coords[b + 2]);
+            ny += (coords[a + 2] - coords[b + 2]) * (coords[a] + coords[b]);
+            nz += (coords[a] - coords[b]) * (coords[a + 1] + coords[b + 1]);
+        }
+        return Math.sqrt(nx * nx + ny * ny + nz * nz) / 2;
+    }
+}
@@ -0,0 +1,81 @@
+package ru.zkir.urbaneye3d.utils;
+
+import org.openstreetmap.josm.data.osm.Node;
+
+import java.util.Arrays;
+
+/**
+ * Points (lon, lat) of nodes, shared by the contours read during one scene update.
+ * Adjacent buildings, and buildings and their parts, have common nodes: each node is converted once,
+ * and the contours keep the same point object. So these points must not be modified.
+ *
+ * Open addressing by node id, with linear probing, so ids are not boxed.
+ * Should be cleared after the update, node coordinates can change before the next one.
+ */
+public class NodePoints {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private Point2D[] points = new Point2D[INITIAL_CAPACITY]; // null: empty slot
+    private int size;
+
+    public Point2D get(Node node) {
+        long id = node.getUniqueId();
+        int mask = ids.length - 1;
+        int slot = hash(id) & mask;
+        while (points[slot] != null) {
+            if (ids[slot] == id) {
+                return points[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        Point2D point = new Point2D(node.lon(), node.lat());
+        ids[slot] = id;
+        points[slot] = point;
+        if (++size * 2 > ids.length) {
+            grow();
+        }
+        return point;
+    }
+
+    public void clear() {
+        if (ids.length > INITIAL_CAPACITY) {
+            // arrays of a full rebuild are not kept until the next one
+            ids = new long[INITIAL_CAPACITY];
+            points = new Point2D[INITIAL_CAPACITY];
+        } else {
+            Arrays.fill(points, null);
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldIds = ids;
+        Point2D[] oldPoints = points;
+        ids = new long[oldIds.length * 2];
+        points = new Point2D[oldIds.length * 2];
+        int mask = ids.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldPoints[i] != null) {
+                int slot = hash(oldIds[i]) & mask;
+                while (points[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                ids[slot] = oldIds[i];
+                points[slot] = oldPoints[i];
+            }
+        }
+    }
+
+    // ids are sequential, so they are mixed (MurmurHash3 finalizer step) before masking
+    private static int hash(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return (int) id;
+    }
+}
@@ -0,0 +1,182 @@
+package ru.zkir.urbaneye3d.utils;
+
+import java.util.List;
+
+/**
+ * Contour prepared for containment tests (is building:part inside building).
+ *
+ * Edges of each ring are put into buckets by Y (horizontal slabs of equal height, about one edge per slab),
+ * so a point is tested only against the few edges of its slab rather than against all edges of the ring.
+ * The index is built on the first point test, contours which are only tested against (parts) do not need it.
+ *
+ * It's created from the original rings, before simplification, so that nodes shared by a building and its part
+ * lie exactly on the building border.
+ */
+public final class PreparedContour {
+    private static final double EPS = 1e-10;
+
+    private final Ring[] outerRings;
+    private final Ring[] innerRings;
+
+    public PreparedContour(List<? extends List<Point2D>> outerRings, List<? extends List<Point2D>> innerRings) {
+        this.outerRings = toRings(outerRings);
+        this.innerRings = toRings(innerRings);
+    }
+
+    private static Ring[] toRings(List<? extends List<Point2D>> rings) {
+        Ring[] result = new Ring[rings.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new Ring(rings.get(i));
+        }
+        return result;
+    }
+
+    public boolean contains(PreparedContour other) {
+        // 'this' is the potential container (building), 'other' is the content (part).
+        if (outerRings.length == 0 || other.outerRings.length == 0) {
+            return false;
+        }
+
+        // For simplicity, we assume a building is defined by its first outer ring for containment checks.
+        Ring buildingOuterRing = outerRings[0];
+        for (Ring partOuterRing : other.outerRings) {
+            for (int i = 0; i < partOuterRing.size; i++) {
+                double x = partOuterRing.xs[i];
+                double y = partOuterRing.ys[i];
+                // All points of the part must be inside the building's outer ring (border counts as inside)...
+                if (!buildingOuterRing.containsPoint(x, y)) {
+                    return false;
+                }
+                // ...and outside all of the building's inner rings (holes).
+                for (Ring buildingInnerRing : innerRings) {
+                    if (buildingInnerRing.containsPoint(x, y)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static final class Ring {
+        // vertices without the closing duplicate, edge i is (i, i + 1 mod size)
+        final double[] xs;
+        final double[] ys;
+        final int size;
+        final double minX, minY, maxX, maxY;
+        private SlabIndex index;
+
+        Ring(List<Point2D> points) {
+            int n = points.size();
+            if (n > 1 && points.get(0).x == points.get(n - 1).x && points.get(0).y == points.get(n - 1).y) {
+                n--;
+            }
+            size = n;
+            xs = new double[n];
+            ys = new double[n];
+            double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                Point2D p = points.get(i);
+                xs[i] = p.x;
+                ys[i] = p.y;
+                x0 = Math.min(x0, p.x);
+                y0 = Math.min(y0, p.y);
+                x1 = Math.max(x1, p.x);
+                y1 = Math.max(y1, p.y);
+            }
+            minX = x0;
+            minY = y0;
+            maxX = x1;
+            maxY = y1;
+        }
+
+        // true if the point is inside the ring or on its border
+        boolean containsPoint(double x, double y) {
+            if (size == 0 || x < minX - EPS || x > maxX + EPS || y < minY - EPS || y > maxY + EPS) {
+                return false;
+            }
+            SlabIndex slabs = index;
+            if (slabs == null) {
+                // benign race: the index is immutable, at worst it's built twice.
+                slabs = new SlabIndex(this);
+                index = slabs;
+            }
+
+            int slab = slabs.slabOf(y);
+            int intersections = 0;
+            for (int k = slabs.slabStarts[slab]; k < slabs.slabStarts[slab + 1]; k++) {
+                int i = slabs.slabEdges[k];
+                int j = i + 1 == size ? 0 : i + 1;
+                double x1 = xs[i], y1 = ys[i], x2 = xs[j], y2 = ys[j];
+                if (isPointOnSegment(x1, y1, x2, y2, x, y)) {
+                    return true; // for our purposes we consider borders as part of a polygon
+                }
+                // ray to +X, lower end included, upper end excluded, so a vertex is not counted twice.
+                if (y1 == y2 || y < Math.min(y1, y2) || y >= Math.max(y1, y2)) continue;
+                if ((y - y1) * (x2 - x1) / (y2 - y1) + x1 > x) {
+                    intersections++;
+                }
+            }
+            return (intersections % 2) == 1;
+        }
+
+        private static boolean isPointOnSegment(double x1, double y1, double x2, double y2, double x, double y) {
+            // coincides with a vertex
+            if (distanceSq(x, y, x1, y1) < EPS * EPS || distanceSq(x, y, x2, y2) < EPS * EPS) {
+                return true;
+            }
+            double cross = (x - x1) * (y2 - y1) - (y - y1) * (x2 - x1);
+            return Math.abs(cross) < EPS
+                    && x >= Math.min(x1, x2) - EPS && x <= Math.max(x1, x2) + EPS
+                    && y >= Math.min(y1, y2) - EPS && y <= Math.max(y1, y2) + EPS;
+        }
+
+        private static double distanceSq(double x1, double y1, double x2, double y2) {
+            return (x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1);
+        }
+    }
+
+    // Edges of a ring grouped by horizontal slabs. An edge is listed in every slab its Y interval (+-EPS) overlaps.
+    private static final class SlabIndex {
+        final double minY;
+        final double slabHeight;
+        final int slabCount;
+        final int[] slabStarts; // edges of slab s are slabEdges[slabStarts[s], slabStarts[s + 1])
+        final int[] slabEdges;
+
+        SlabIndex(Ring ring) {
+            int n = ring.size;
+            minY = ring.minY - EPS;
+            slabCount = Math.max(1, n);
+            double height = (ring.maxY + EPS - minY) / slabCount;
+            slabHeight = height > 0 ? height : 1;
+
+            // counting sort: count edges per slab, then fill
+            int[] counts = new int[slabCount + 1];
+            for (int i = 0; i < n; i++) {
+                int j = i + 1 == n ? 0 : i + 1;
+                int last = slabOf(Math.max(ring.ys[i], ring.ys[j]) + EPS);
+                for (int s = slabOf(Math.min(ring.ys[i], ring.ys[j]) - EPS); s <= last; s++) {
+                    counts[s + 1]++;
+                }
+            }
+            for (int s = 0; s < slabCount; s++) {
+                counts[s + 1] += counts[s];
+            }
+            slabStarts = counts.clone();
+            slabEdges = new int[counts[slabCount]];
+            for (int i = 0; i < n; i++) {
+                int j = i + 1 == n ? 0 : i + 1;
+                int last = slabOf(Math.max(ring.ys[i], ring.ys[j]) + EPS);
+                for (int s = slabOf(Math.min(ring.ys[i], ring.ys[j]) - EPS); s <= last; s++) {
+                    slabEdges[counts[s]++] = i;
+                }
+            }
+        }
+
+        int slabOf(double y) {
+            int slab = (int) ((y - minY) / slabHeight);
+            return Math.max(0, Math.min(slabCount - 1, slab));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ru.zkir.urbaneye3d.utils;
+
+import org.openstreetmap.josm.data.osm.BBox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Uniform grid over lon/lat bboxes.
+ * Each item is registered in all the cells its bbox overlaps, so a search has to look at a few cells
+ * instead of all items. Items can be added and removed one by one, which is needed for incremental scene updates.
+ */
+public class SpatialGrid<T> {
+    // items which would occupy too many cells (e.g. huge multipolygons) are kept in a separate list
+    // and checked on every search.
+    private static final int MAX_CELLS_PER_ITEM = 256;
+
+    private final double cellSize;
+    private final HashMap<Long, List<T>> cells = new HashMap<>();
+    private final HashMap<T, BBox> itemBBoxes = new HashMap<>();
+    private final List<T> oversizedItems = new ArrayList<>();
+
+    /**
+     * @param cellSize size of a grid cell, in degrees
+     */
+    public SpatialGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void add(T item, BBox bbox) {
+        if (bbox == null || !bbox.isValid()) {
+            return;
+        }
+        remove(item);
+        itemBBoxes.put(item, bbox);
+
+        int x0 = cellIndex(bbox.getTopLeftLon());
+        int x1 = cellIndex(bbox.getBottomRightLon());
+        int y0 = cellIndex(bbox.getBottomRightLat());
+        int y1 = cellIndex(bbox.getTopLeftLat());
+        if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_ITEM) {
+            oversizedItems.add(item);
+            return;
+        }
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                cells.computeIfAbsent(cellKey(x, y), k -> new ArrayList<>()).add(item);
+            }
+        }
+    }
+
+    public void remove(T item) {
+        BBox bbox = itemBBoxes.remove(item);
+        if (bbox == null) {
+            return;
+        }
+        if (oversizedItems.remove(item)) {
+            return;
+        }
+        int x0 = cellIndex(bbox.getTopLeftLon());
+        int x1 = cellIndex(bbox.getBottomRightLon());
+        int y0 = cellIndex(bbox.getBottomRightLat());
+        int y1 = cellIndex(bbox.getTopLeftLat());
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                Long key = cellKey(x, y);
+                List<T> cellItems = cells.get(key);
+                if (cellItems != null) {
+                    cellItems.remove(item);
+                    if (cellItems.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        itemBBoxes.clear();
+        oversizedItems.clear();
+    }
+
+    public int size() {
+        return itemBBoxes.size();
+    }
+
+    /**
+     * @return items whose bboxes intersect the given bbox
+     */
+    public List<T> search(BBox bbox) {
+        Set<T> result = new LinkedHashSet<>();
+        if (bbox == null || !bbox.isValid()) {
+            return new ArrayList<>();
+        }
+        int x0 = cellIndex(bbox.getTopLeftLon());
+        int x1 = cellIndex(bbox.getBottomRightLon());
+        int y0 = cellIndex(bbox.getBottomRightLat());
+        int y1 = cellIndex(bbox.getTopLeftLat());
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                List<T> cellItems = cells.get(cellKey(x, y));
+                if (cellItems == null) {
+                    continue;
+                }
+                for (T item : cellItems) {
+                    if (itemBBoxes.get(item).intersects(bbox)) {
+                        result.add(item);
+                    }
+                }
+            }
+        }
+        for (T item : oversizedItems) {
+            if (itemBBoxes.get(item).intersects(bbox)) {
+                result.add(item);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private int cellIndex(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static Long cellKey(int x, int y) {
+        return ((long) x << 32) ^ (y & 0xffffffffL);
+    }
+}
@@ -0,0 +1,741 @@
+package ru.zkir.urbaneye3d.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Polygon triangulation: ear clipping with hole bridging (the algorithm of mapbox earcut).
+ * Polygons with many vertices are processed with z-order hashing, so ear checks do not scan the whole ring.
+ *
+ * Pure Java, no GL context is needed. Each call uses its own state, so it can be used from several threads at once.
+ * The polygon is stored in primitive arrays, a linked list node is just an index, so there are no per-vertex objects.
+ *
+ * Triangles have the same orientation as the outer ring, so a face and its triangles have the same normal.
+ */
+public final class Triangulator {
+    private static final int NONE = -1;
+    // polygons larger than this are indexed by z-order curve
+    private static final int HASHING_THRESHOLD = 80;
+
+    private final double[] coords;
+
+    // linked list nodes
+    private int nodeCount;
+    private int[] vertex;  // vertex index in the input
+    private double[] x;
+    private double[] y;
+    private int[] prev;
+    private int[] next;
+    private int[] z;
+    private int[] prevZ;
+    private int[] nextZ;
+    private boolean[] steiner;
+
+    private int[] triangles;
+    private int triangleIndexCount;
+
+    private double minX, minY, invSize;
+
+    private Triangulator(double[] coords, int holeCount) {
+        this.coords = coords;
+        int vertexCount = coords.length / 2;
+        // each hole bridge adds 2 nodes
+        int capacity = vertexCount + 2 * holeCount + 2;
+        vertex = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        z = new int[capacity];
+        prevZ = new int[capacity];
+        nextZ = new int[capacity];
+        steiner = new boolean[capacity];
+        triangles = new int[Math.max(3, (vertexCount + 2 * holeCount) * 3)];
+    }
+
+    /**
+     * @param coords x and y of the vertices: outer ring, then holes. Rings are not closed (the first vertex is not repeated).
+     * @param holeStarts indices of the first vertex of each hole, ascending. Can be null.
+     * @return vertex indices, 3 per triangle.
+     */
+    public static int[] triangulate(double[] coords, int[] holeStarts) {
+        int holeCount = holeStarts != null ? holeStarts.length : 0;
+        Triangulator triangulator = new Triangulator(coords, holeCount);
+        return triangulator.run(holeStarts);
+    }
+
+    /**
+     * @param rings outer ring, then holes.
+     * @return indices of the vertices of the rings as if they were concatenated, 3 per triangle.
+     */
+    public static int[] triangulate(List<? extends List<Point2D>> rings) {
+        int vertexCount = 0;
+        for (List<Point2D> ring : rings) {
+            vertexCount += ring.size();
+        }
+        double[] coords = new double[vertexCount * 2];
+        int[] holeStarts = new int[rings.size() - 1];
+        int k = 0;
+        for (int r = 0; r < rings.size(); r++) {
+            if (r > 0) {
+                holeStarts[r - 1] = k / 2;
+            }
+            for (Point2D p : rings.get(r)) {
+                coords[k++] = p.x;
+                coords[k++] = p.y;
+            }
+        }
+        return triangulate(coords, holeStarts);
+    }
+
+    /**
+     * Triangulates a planar face of a mesh, which is not necessarily horizontal.
+     *
+     * @param vertexCoords x, y, z of the mesh vertices
+     * @param faceIndices  the face is faceIndices[start, start + size)
+     * @return mesh vertex indices, 3 per triangle.
+     */
+    public static int[] triangulateFace(double[] vertexCoords, int[] faceIndices, int start, int size) {
+        // face normal (Newell's method). The face is projected to the plane where it has the largest area.
+        double nx = 0, ny = 0, nz = 0;
+        for (int i = 0; i < size; i++) {
+            int a = 3 * faceIndices[start + i];
+            int b = 3 * faceIndices[start + (i + 1) % size];
+            nx += (vertexCoords[a + 1] - vertexCoords[b + 1]) * (vertexCoords[a + 2] + vertexCoords[b + 2]);
+            ny += (vertexCoords[a + 2] - vertexCoords[b + 2]) * (vertexCoords[a] + vertexCoords[b]);
+            nz += (vertexCoords[a] - vertexCoords[b]) * (vertexCoords[a + 1] + vertexCoords[b + 1]);
+        }
+        double ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+
+        // cyclic axis order (x,y), (y,z), (z,x) keeps the orientation of the face relative to the normal
+        int axis = (az >= ax && az >= ay) ? 0 : (ax >= ay) ? 1 : 2;
+        double[] coords = new double[size * 2];
+        for (int i = 0; i < size; i++) {
+            int p = 3 * faceIndices[start + i];
+            coords[2 * i] = vertexCoords[p + axis];
+            coords[2 * i + 1] = vertexCoords[p + (axis + 1) % 3];
+        }
+
+        int[] result = triangulate(coords, null);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = faceIndices[start + result[i]];
+        }
+        return result;
+    }
+
+    private int[] run(int[] holeStarts) {
+        int vertexCount = coords.length / 2;
+        int outerLength = (holeStarts != null && holeStarts.length > 0) ? holeStarts[0] : vertexCount;
+        // orientation of the input outer ring. Internally rings are normalized, so the output is flipped back if needed.
+        boolean outerIsClockwise = signedArea(0, outerLength) < 0;
+
+        int outerNode = linkedList(0, outerLength, true);
+        if (outerNode == NONE || next[outerNode] == prev[outerNode]) {
+            return new int[0];
+        }
+        if (holeStarts != null && holeStarts.length > 0) {
+            outerNode = eliminateHoles(holeStarts, outerNode);
+        }
+
+        invSize = 0;
+        if (vertexCount > HASHING_THRESHOLD) {
+            minX = Double.MAX_VALUE;
+            minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE;
+            double maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < outerLength; i++) {
+                minX = Math.min(minX, coords[2 * i]);
+                minY = Math.min(minY, coords[2 * i + 1]);
+                maxX = Math.max(maxX, coords[2 * i]);
+                maxY = Math.max(maxY, coords[2 * i + 1]);
+            }
+            double size = Math.max(maxX - minX, maxY - minY);
+            invSize = size != 0 ? 32767 / size : 0;
+        }
+
+        earcutLinked(outerNode, 0);
+
+        int[] result = Arrays.copyOf(triangles, triangleIndexCount);
+        if (outerIsClockwise) {
+            for (int t = 0; t < result.length; t += 3) {
+                int tmp = result[t + 1];
+                result[t + 1] = result[t + 2];
+                result[t + 2] = tmp;
+            }
+        }
+        return result;
+    }
+
+    // signed area of the ring * 2, positive for counterclockwise rings
+    private double signedArea(int start, int end) {
+        double sum = 0;
+        for (int i = start, j = end - 1; i < end; j = i++) {
+            sum += (coords[2 * j] - coords[2 * i]) * (coords[2 * i + 1] + coords[2 * j + 1]);
+        }
+        return sum;
+    }
+
+    // creates a circular linked list from the ring, counterclockwise for outer ring, clockwise for holes
+    private int linkedList(int start, int end, boolean counterclockwise) {
+        int last = NONE;
+        if (counterclockwise == (signedArea(start, end) > 0)) {
+            for (int i = start; i < end; i++) {
+                last = insertNode(i, last);
+            }
+        } else {
+            for (int i = end - 1; i >= start; i--) {
+                last = insertNode(i, last);
+            }
+        }
+        if (last != NONE && equals(last, next[last])) {
+            removeNode(last);
+            last = next[last];
+        }
+        return last;
+    }
+
+    // eliminates colinear or duplicate points
+    private int filterPoints(int start, int end) {
+        if (start == NONE) {
+            return start;
+        }
+        if (end == NONE) {
+            end = start;
+        }
+        int p = start;
+        boolean again;
+        do {
+            again = false;
+            if (!steiner[p] && (equals(p, next[p]) || area(prev[p], p, next[p]) == 0)) {
+                removeNode(p);
+                p = end = prev[p];
+                if (p == next[p]) {
+                    break;
+                }
+                again = true;
+            } else {
+                p = next[p];
+            }
+        } while (again || p != end);
+        return end;
+    }
+
+    // main ear slicing loop
+    private void earcutLinked(int ear, int pass) {
+        if (ear == NONE) {
+            return;
+        }
+        if (pass == 0 && invSize != 0) {
+            indexCurve(ear);
+        }
+
+        int stop = ear;
+        while (prev[ear] != next[ear]) {
+            int p = prev[ear];
+            int n = next[ear];
+
+            if (invSize != 0 ? isEarHashed(ear) : isEar(ear)) {
+                addTriangle(vertex[p], vertex[ear], vertex[n]);
+                removeNode(ear);
+                // skipping the next vertex leads to less sliver triangles
+                ear = next[n];
+                stop = next[n];
+                continue;
+            }
+
+            ear = n;
+            if (ear == stop) {
+                // no ears found in a whole pass
+                if (pass == 0) {
+                    // try filtering points and slicing again
+                    earcutLinked(filterPoints(ear, NONE), 1);
+                } else if (pass == 1) {
+                    // try to untangle local self-intersections
+                    ear = cureLocalIntersections(filterPoints(ear, NONE));
+                    earcutLinked(ear, 2);
+                } else if (pass == 2) {
+                    // split the polygon in two and handle each part
+                    splitEarcut(ear);
+                }
+                break;
+            }
+        }
+    }
+
+    private boolean isEar(int ear) {
+        int a = prev[ear];
+        int b = ear;
+        int c = next[ear];
+        if (area(a, b, c) >= 0) {
+            return false; // reflex
+        }
+
+        double x0 = Math.min(x[a], Math.min(x[b], x[c]));
+        double y0 = Math.min(y[a], Math.min(y[b], y[c]));
+        double x1 = Math.max(x[a], Math.max(x[b], x[c]));
+        double y1 = Math.max(y[a], Math.max(y[b], y[c]));
+
+        // no other points inside the potential ear
+        int p = next[c];
+        while (p != a) {
+            if (x[p] >= x0 && x[p] <= x1 && y[p] >= y0 && y[p] <= y1
+                    && pointInTriangle(x[a], y[a], x[b], y[b], x[c], y[c], x[p], y[p])
+                    && area(prev[p], p, next[p]) >= 0) {
+                return false;
+            }
+            p = next[p];
+        }
+        return true;
+    }
+
+    private boolean isEarHashed(int ear) {
+        int a = prev[ear];
+        int b = ear;
+        int c = next[ear];
+        if (area(a, b, c) >= 0) {
+            return false;
+        }
+
+        double x0 = Math.min(x[a], Math.min(x[b], x[c]));
+        double y0 = Math.min(y[a], Math.min(y[b], y[c]));
+        double x1 = Math.max(x[a], Math.max(x[b], x[c]));
+        double y1 = Math.max(y[a], Math.max(y[b], y[c]));
+
+        // z-order range for the current triangle bbox
+        int minZ = zOrder(x0, y0);
+        int maxZ = zOrder(x1, y1);
+
+        int p = prevZ[ear];
+        int n = nextZ[ear];
+
+        // look for points inside the triangle in both directions
+        while (p != NONE && z[p] >= minZ && n != NONE && z[n] <= maxZ) {
+            if (isInsideEar(p, a, c, x0, y0, x1, y1)) {
+                return false;
+            }
+            p = prevZ[p];
+            if (isInsideEar(n, a, c, x0, y0, x1, y1)) {
+                return false;
+            }
+            n = nextZ[n];
+        }
+        while (p != NONE && z[p] >= minZ) {
+            if (isInsideEar(p, a, c, x0, y0, x1, y1)) {
+                return false;
+            }
+            p = prevZ[p];
+        }
+        while (n != NONE && z[n] <= maxZ) {
+            if (isInsideEar(n, a, c, x0, y0, x1, y1)) {
+                return false;
+            }
+            n = nextZ[n];
+        }
+        return true;
+    }
+
+    private boolean isInsideEar(int p, int a, int c, double x0, double y0, double x1, double y1) {
+        int b = next[a];
+        return x[p] >= x0 && x[p] <= x1 && y[p] >= y0 && y[p] <= y1 && p != a && p != c
+                && pointInTriangle(x[a], y[a], x[b], y[b], x[c], y[c], x[p], y[p])
+                && area(prev[p], p, next[p]) >= 0;
+    }
+
+    // goes through all polygon nodes and cures small local self-intersections
+    private int cureLocalIntersections(int start) {
+        int p = start;
+        do {
+            int a = prev[p];
+            int b = next[next[p]];
+            if (!equals(a, b) && intersects(a, p, next[p], b) && locallyInside(a, b) && locallyInside(b, a)) {
+                addTriangle(vertex[a], vertex[p], vertex[b]);
+                // remove two nodes involved
+                removeNode(p);
+                removeNode(next[p]);
+                p = start = b;
+            }
+            p = next[p];
+        } while (p != start);
+        return filterPoints(p, NONE);
+    }
+
+    // tries to split the polygon into two and triangulate them independently
+    private void splitEarcut(int start) {
+        int a = start;
+        do {
+            int b = next[next[a]];
+            while (b != prev[a]) {
+                if (vertex[a] != vertex[b] && isValidDiagonal(a, b)) {
+                    int c = splitPolygon(a, b);
+                    a = filterPoints(a, next[a]);
+                    c = filterPoints(c, next[c]);
+                    earcutLinked(a, 0);
+                    earcutLinked(c, 0);
+                    return;
+                }
+                b = next[b];
+            }
+            a = next[a];
+        } while (a != start);
+    }
+
+    // links every hole into the outer loop, producing a single-ring polygon without holes
+    private int eliminateHoles(int[] holeStarts, int outerNode) {
+        int vertexCount = coords.length / 2;
+        int[] queue = new int[holeStarts.length];
+        int queueSize = 0;
+        for (int i = 0; i < holeStarts.length; i++) {
+            int start = holeStarts[i];
+            int end = i < holeStarts.length - 1 ? holeStarts[i + 1] : vertexCount;
+            int list = linkedList(start, end, false);
+            if (list == NONE) {
+                continue;
+            }
+            if (list == next[list]) {
+                steiner[list] = true;
+            }
+            queue[queueSize++] = getLeftmost(list);
+        }
+
+        // holes are bridged from left to right
+        Integer[] sorted = new Integer[queueSize];
+        for (int i = 0; i < queueSize; i++) {
+            sorted[i] = queue[i];
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(x[a], x[b]));
+        for (int hole : sorted) {
+            outerNode = eliminateHole(hole, outerNode);
+        }
+        return outerNode;
+    }
+
+    private int eliminateHole(int hole, int outerNode) {
+        int bridge = findHoleBridge(hole, outerNode);
+        if (bridge == NONE) {
+            return outerNode;
+        }
+        int bridgeReverse = splitPolygon(bridge, hole);
+        // filter collinear points around the cuts
+        filterPoints(bridgeReverse, next[bridgeReverse]);
+        return filterPoints(bridge, next[bridge]);
+    }
+
+    // David Eberly's algorithm for finding a bridge between hole and outer polygon
+    private int findHoleBridge(int hole, int outerNode) {
+        int p = outerNode;
+        double hx = x[hole];
+        double hy = y[hole];
+        double qx = Double.NEGATIVE_INFINITY;
+        int m = NONE;
+
+        // find a segment intersected by a ray from the hole's leftmost point to the left;
+        // segment's endpoint with lesser x will be potential connection point
+        do {
+            int n = next[p];
+            if (hy <= y[p] && hy >= y[n] && y[n] != y[p]) {
+                double ix = x[p] + (hy - y[p]) * (x[n] - x[p]) / (y[n] - y[p]);
+                if (ix <= hx && ix > qx) {
+                    qx = ix;
+                    m = x[p] < x[n] ? p : n;
+                    if (ix == hx) {
+                        // hole touches outer segment, pick leftmost endpoint
+                        return m;
+                    }
+                }
+            }
+            p = n;
+        } while (p != outerNode);
+
+        if (m == NONE) {
+            return NONE;
+        }
+
+        // look for points inside the triangle of hole point, segment intersection and endpoint;
+        // if there are no points found, we have a valid connection;
+        // otherwise choose the point of the minimum angle with the ray as connection point
+        int stop = m;
+        double mx = x[m];
+        double my = y[m];
+        double tanMin = Double.POSITIVE_INFINITY;
+        p = m;
+        do {
+            if (hx >= x[p] && x[p] >= mx && hx != x[p]
+                    && pointInTriangle(hy < my ? hx : qx, hy, mx, my, hy < my ? qx : hx, hy, x[p], y[p])) {
+                double tan = Math.abs(hy - y[p]) / (hx - x[p]);
+                if (locallyInside(p, hole)
+                        && (tan < tanMin || (tan == tanMin && (x[p] > x[m] || (x[p] == x[m] && sectorContainsSector(m, p)))))) {
+                    m = p;
+                    tanMin = tan;
+                }
+            }
+            p = next[p];
+        } while (p != stop);
+        return m;
+    }
+
+    // whether sector in vertex m contains sector in vertex p in the same coordinates
+    private boolean sectorContainsSector(int m, int p) {
+        return area(prev[m], m, prev[p]) < 0 && area(next[p], m, next[m]) < 0;
+    }
+
+    // interlinks polygon nodes in z-order
+    private void indexCurve(int start) {
+        int p = start;
+        do {
+            if (z[p] == 0) {
+                z[p] = zOrder(x[p], y[p]);
+            }
+            prevZ[p] = prev[p];
+            nextZ[p] = next[p];
+            p = next[p];
+        } while (p != start);
+
+        nextZ[prevZ[p]] = NONE;
+        prevZ[p] = NONE;
+        sortLinked(p);
+    }
+
+    // Simon Tatham's linked list merge sort algorithm
+    private int sortLinked(int list) {
+        int inSize = 1;
+        int numMerges;
+        do {
+            int p = list;
+            list = NONE;
+            int tail = NONE;
+            numMerges = 0;
+
+            while (p != NONE) {
+                numMerges++;
+                int q = p;
+                int pSize = 0;
+                for (int i = 0; i < inSize; i++) {
+                    pSize++;
+                    q = nextZ[q];
+                    if (q == NONE) {
+                        break;
+                    }
+                }
+                int qSize = inSize;
+
+                while (pSize > 0 || (qSize > 0 && q != NONE)) {
+                    int e;
+                    if (pSize != 0 && (qSize == 0 || q == NONE || z[p] <= z[q])) {
+                        e = p;
+                        p = nextZ[p];
+                        pSize--;
+                    } else {
+                        e = q;
+                        q = nextZ[q];
+                        qSize--;
+                    }
+                    if (tail != NONE) {
+                        nextZ[tail] = e;
+                    } else {
+                        list = e;
+                    }
+                    prevZ[e] = tail;
+                    tail = e;
+                }
+                p = q;
+            }
+            nextZ[tail] = NONE;
+            inSize *= 2;
+        } while (numMerges > 1);
+        return list;
+    }
+
+    // z-order of a point given coords and inverse of the longer side of data bbox
+    private int zOrder(double px, double py) {
+        int ix = (int) ((px - minX) * invSize);
+        int iy = (int) ((py - minY) * invSize);
+
+        ix = (ix | (ix << 8)) & 0x00FF00FF;
+        ix = (ix | (ix << 4)) & 0x0F0F0F0F;
+        ix = (ix | (ix << 2)) & 0x33333333;
+        ix = (ix | (ix << 1)) & 0x55555555;
+
+        iy = (iy | (iy << 8)) & 0x00FF00FF;
+        iy = (iy | (iy << 4)) & 0x0F0F0F0F;
+        iy = (iy | (iy << 2)) & 0x33333333;
+        iy = (iy | (iy << 1)) & 0x55555555;
+
+        return ix | (iy << 1);
+    }
+
+    private int getLeftmost(int start) {
+        int p = start;
+        int leftmost = start;
+        do {
+            if (x[p] < x[leftmost] || (x[p] == x[leftmost] && y[p] < y[leftmost])) {
+                leftmost = p;
+            }
+            p = next[p];
+        } while (p != start);
+        return leftmost;
+    }
+
+    private static boolean pointInTriangle(double ax, double ay, double bx, double by, double cx, double cy, double px, double py) {
+        return (cx - px) * (ay - py) >= (ax - px) * (cy - py)
+                && (ax - px) * (by - py) >= (bx - px) * (ay - py)
+                && (bx - px) * (cy - py) >= (cx - px) * (by - py);
+    }
+
+    // whether a diagonal between a and b is valid, i.e. it lies inside the polygon and does not intersect its edges
+    private boolean isValidDiagonal(int a, int b) {
+        return vertex[next[a]] != vertex[b] && vertex[prev[a]] != vertex[b] && !intersectsPolygon(a, b)
+                && ((locallyInside(a, b) && locallyInside(b, a) && middleInside(a, b)
+                        && (area(prev[a], a, prev[b]) != 0 || area(a, prev[b], b) != 0))
+                    || (equals(a, b) && area(prev[a], a, next[a]) > 0 && area(prev[b], b, next[b]) > 0));
+    }
+
+    // signed area of a triangle, negative for counterclockwise
+    private double area(int p, int q, int r) {
+        return (y[q] - y[p]) * (x[r] - x[q]) - (x[q] - x[p]) * (y[r] - y[q]);
+    }
+
+    private boolean equals(int p1, int p2) {
+        return x[p1] == x[p2] && y[p1] == y[p2];
+    }
+
+    private boolean intersects(int p1, int q1, int p2, int q2) {
+        int o1 = sign(area(p1, q1, p2));
+        int o2 = sign(area(p1, q1, q2));
+        int o3 = sign(area(p2, q2, p1));
+        int o4 = sign(area(p2, q2, q1));
+
+        if (o1 != o2 && o3 != o4) {
+            return true;
+        }
+        // collinear cases
+        if (o1 == 0 && onSegment(p1, p2, q1)) return true;
+        if (o2 == 0 && onSegment(p1, q2, q1)) return true;
+        if (o3 == 0 && onSegment(p2, p1, q2)) return true;
+        if (o4 == 0 && onSegment(p2, q1, q2)) return true;
+        return false;
+    }
+
+    // for collinear points p, q, r, checks if point q lies on segment pr
+    private boolean onSegment(int p, int q, int r) {
+        return x[q] <= Math.max(x[p], x[r]) && x[q] >= Math.min(x[p], x[r])
+                && y[q] <= Math.max(y[p], y[r]) && y[q] >= Math.min(y[p], y[r]);
+    }
+
+    private static int sign(double value) {
+        return value > 0 ? 1 : value < 0 ? -1 : 0;
+    }
+
+    private boolean intersectsPolygon(int a, int b) {
+        int p = a;
+        do {
+            int n = next[p];
+            if (vertex[p] != vertex[a] && vertex[n] != vertex[a] && vertex[p] != vertex[b] && vertex[n] != vertex[b]
+                    && intersects(p, n, a, b)) {
+                return true;
+            }
+            p = n;
+        } while (p != a);
+        return false;
+    }
+
+    private boolean locallyInside(int a, int b) {
+        return area(prev[a], a, next[a]) < 0
+                ? area(a, b, next[a]) >= 0 && area(a, prev[a], b) >= 0
+                : area(a, b, prev[a]) < 0 || area(a, next[a], b) < 0;
+    }
+
+    // whether the middle point of a polygon diagonal is inside the polygon
+    private boolean middleInside(int a, int b) {
+        int p = a;
+        boolean inside = false;
+        double px = (x[a] + x[b]) / 2;
+        double py = (y[a] + y[b]) / 2;
+        do {
+            int n = next[p];
+            if (((y[p] > py) != (y[n] > py)) && y[n] != y[p]
+                    && (px < (x[n] - x[p]) * (py - y[p]) / (y[n] - y[p]) + x[p])) {
+                inside = !inside;
+            }
+            p = n;
+        } while (p != a);
+        return inside;
+    }
+
+    // links two polygon vertices with a bridge; if the vertices belong to the same ring, it splits polygon into two;
+    // if one belongs to the outer ring and another to a hole, it merges them into a single ring
+    private int splitPolygon(int a, int b) {
+        int a2 = newNode(vertex[a], x[a], y[a]);
+        int b2 = newNode(vertex[b], x[b], y[b]);
+        int an = next[a];
+        int bp = prev[b];
+
+        next[a] = b;
+        prev[b] = a;
+
+        next[a2] = an;
+        prev[an] = a2;
+
+        next[b2] = a2;
+        prev[a2] = b2;
+
+        next[bp] = b2;
+        prev[b2] = bp;
+        return b2;
+    }
+
+    private int insertNode(int i, int last) {
+        int p = newNode(i, coords[2 * i], coords[2 * i + 1]);
+        if (last == NONE) {
+            prev[p] = p;
+            next[p] = p;
+        } else {
+            next[p] = next[last];
+            prev[p] = last;
+            prev[next[last]] = p;
+            next[last] = p;
+        }
+        return p;
+    }
+
+    private void removeNode(int p) {
+        prev[next[p]] = prev[p];
+        next[prev[p]] = next[p];
+        if (prevZ[p] != NONE) {
+            nextZ[prevZ[p]] = nextZ[p];
+        }
+        if (nextZ[p] != NONE) {
+            prevZ[nextZ[p]] = prevZ[p];
+        }
+    }
+
+    private int newNode(int i, double px, double py) {
+        if (nodeCount == vertex.length) {
+            int capacity = vertex.length * 2;
+            vertex = Arrays.copyOf(vertex, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            next = Arrays.copyOf(next, capacity);
+            z = Arrays.copyOf(z, capacity);
+            prevZ = Arrays.copyOf(prevZ, capacity);
+            nextZ = Arrays.copyOf(nextZ, capacity);
+            steiner = Arrays.copyOf(steiner, capacity);
+        }
+        int p = nodeCount++;
+        vertex[p] = i;
+        x[p] = px;
+        y[p] = py;
+        prevZ[p] = NONE;
+        nextZ[p] = NONE;
+        return p;
+    }
+
+    private void addTriangle(int a, int b, int c) {
+        if (triangleIndexCount + 3 > triangles.length) {
+            triangles = Arrays.copyOf(triangles, triangles.length * 2);
+        }
+        triangles[triangleIndexCount++] = a;
+        triangles[triangleIndexCount++] = b;
+        triangles[triangleIndexCount++] = c;
+    }
+}
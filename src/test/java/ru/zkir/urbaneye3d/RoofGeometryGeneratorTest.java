@@ -4,8 +4,12 @@ import org.junit.jupiter.api.Test;
 import org.openstreetmap.josm.data.coor.LatLon;
 import ru.zkir.urbaneye3d.utils.Contour;
 import ru.zkir.urbaneye3d.utils.Mesh;
+import ru.zkir.urbaneye3d.utils.MeshBuilder;
+import ru.zkir.urbaneye3d.utils.MeshWelder;
 import ru.zkir.urbaneye3d.utils.Point2D;
 import ru.zkir.urbaneye3d.utils.Point3D;
+import ru.zkir.urbaneye3d.utils.Triangulator;
+import ru.zkir.urbaneye3d.roofgenerators.RoofGenerator;
 import ru.zkir.urbaneye3d.roofgenerators.RoofShapes;
 
 import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
@@ -71,7 +75,7 @@ class RoofGeometryGeneratorTest {
     private void assertNoZeroLengthEdges(Mesh mesh, String mesherName) {
         // A small tolerance for floating point comparisons
         final double Epsilon = 1e-6;
-        List<Point3D> vertices = mesh.verts;
+        List<Point3D> vertices = vertices(mesh);
         for (int i = 0; i < vertices.size(); i++) {
             for (int j = i + 1; j < vertices.size(); j++) {
                 assertTrue(vertices.get(i).distance(vertices.get(j)) > Epsilon,
@@ -84,9 +88,9 @@ class RoofGeometryGeneratorTest {
     private void assertWatertight(Mesh mesh, String mesherName) {
         Map<String, Integer> edgeCounts = new HashMap<>();
         List<int[]> allFaces = new ArrayList<>();
-        allFaces.addAll(mesh.wallFaces);
-        allFaces.addAll(mesh.roofFaces);
-        allFaces.addAll(mesh.bottomFaces);
+        allFaces.addAll(faces(mesh, Mesh.WALL));
+        allFaces.addAll(faces(mesh, Mesh.ROOF));
+        allFaces.addAll(faces(mesh, Mesh.BOTTOM));
 
         for (int[] face : allFaces) {
             for (int i = 0; i < face.length; i++) {
@@ -106,12 +110,12 @@ class RoofGeometryGeneratorTest {
         int i=0;
         for (int[] face : faceGroup) {
 
-            Point3D v0 = mesh.verts.get(face[0]);
-            Point3D v1 = mesh.verts.get(face[1]);
-            Point3D v2 = mesh.verts.get(face[2]);
+            Point3D v0 = mesh.getVertex(face[0]);
+            Point3D v1 = mesh.getVertex(face[1]);
+            Point3D v2 = mesh.getVertex(face[2]);
 
             Point3D normal = calculateNormal(v0, v1, v2);
-            Point3D faceCenter = calculateFaceCenter(face, mesh.verts);
+            Point3D faceCenter = calculateFaceCenter(face, vertices(mesh));
             Point3D toCenter = new Point3D(geometricCenter.x - faceCenter.x, geometricCenter.y - faceCenter.y, geometricCenter.z - faceCenter.z);
 
             assertTrue(normal.dot(toCenter) < 0, "Roof shape " +mesherName+ ": normal of a "+ face_group_name+" face (#"+i+") is pointing inwards.");
@@ -120,10 +124,10 @@ class RoofGeometryGeneratorTest {
     }
 
     private void assertNormalsOutward(Mesh mesh, String mesherName) {
-        Point3D geometricCenter = calculateGeometricCenter(mesh.verts);
-        assertNormalsOutwardFaceGroup(mesh, mesh.wallFaces, geometricCenter, mesherName, "wall");
-        assertNormalsOutwardFaceGroup(mesh, mesh.roofFaces, geometricCenter, mesherName, "roof");
-        assertNormalsOutwardFaceGroup(mesh, mesh.bottomFaces, geometricCenter, mesherName, "bottom");
+        Point3D geometricCenter = calculateGeometricCenter(vertices(mesh));
+        assertNormalsOutwardFaceGroup(mesh, faces(mesh, Mesh.WALL), geometricCenter, mesherName, "wall");
+        assertNormalsOutwardFaceGroup(mesh, faces(mesh, Mesh.ROOF), geometricCenter, mesherName, "roof");
+        assertNormalsOutwardFaceGroup(mesh, faces(mesh, Mesh.BOTTOM), geometricCenter, mesherName, "bottom");
     }
 
     private Point3D calculateGeometricCenter(List<Point3D> vertices) {
@@ -158,12 +162,12 @@ class RoofGeometryGeneratorTest {
     }
 
     private void assertHeightConstraints(Mesh mesh, double minHeight, double height, String mesherName) {
-        assertFalse(mesh.verts.isEmpty(), "Mesh has no vertices for " + mesherName);
+        assertFalse(mesh.getVertexCount() == 0, "Mesh has no vertices for " + mesherName);
 
         double minZ = Double.MAX_VALUE;
         double maxZ = Double.MIN_VALUE;
 
-        for (Point3D vert : mesh.verts) {
+        for (Point3D vert : vertices(mesh)) {
             if (vert.z < minZ) {
                 minZ = vert.z;
             }
@@ -291,4 +295,241 @@ class RoofGeometryGeneratorTest {
         AssertMeshTopology(mesh, test_building.minHeight, test_building.height, RoofShapes.SKILLION.toString() + " with hole");
     }
 
-}
\ No newline at end of file
+    private ArrayList<Point2D> createPolygon(double... coords) {
+        ArrayList<Point2D> points = new ArrayList<>();
+        for (int i = 0; i < coords.length; i += 2) {
+            points.add(new Point2D(coords[i], coords[i + 1]));
+        }
+        return points;
+    }
+
+    @Test
+    void testSkeletonRoofs() {
+        // L, T, U shaped buildings, a house-shaped pentagon and a wing which is not rectangular.
+        List<ArrayList<Point2D>> footprints = new ArrayList<>();
+        footprints.add(createPolygon(0, 0, 20, 0, 20, 8, 8, 8, 8, 20, 0, 20));
+        footprints.add(createPolygon(0, 0, 30, 0, 30, 8, 19, 8, 19, 25, 11, 25, 11, 8, 0, 8));
+        footprints.add(createPolygon(0, 0, 30, 0, 30, 20, 22, 20, 22, 8, 8, 8, 8, 20, 0, 20));
+        footprints.add(createPolygon(0, 0, 10, 0, 10, 8, 5, 12, 0, 8));
+        footprints.add(createPolygon(0, 0, 25, 0, 25, 10, 14, 9, 13, 22, 3, 24, 0, 10));
+
+        RoofShapes[] shapes = {RoofShapes.HIPPED, RoofShapes.GABLED, RoofShapes.HALF_HIPPED};
+        for (ArrayList<Point2D> footprint : footprints) {
+            for (RoofShapes shape : shapes) {
+                for (double minHeight : new double[]{0, 5}) {
+                    String name = shape + ", " + footprint.size() + " vertices, min height " + minHeight;
+                    RenderableBuildingElement building = createTestBuilding(footprint, shape, minHeight, 5, 10);
+                    Mesh mesh = shape.getMesher().generate(building);
+                    // footprints are concave, so normals are checked by the volume sign rather than by the direction to the center
+                    assertNotNull(mesh, name);
+                    assertHeightConstraints(mesh, building.minHeight, building.height, name);
+                    assertNoZeroLengthEdges(mesh, name);
+                    assertWatertight(mesh, name);
+                    mesh = mesh.triangulate();
+                    assertTrue(signedVolume(mesh) > 0, "Normals should point outwards: " + name);
+                    for (int[] roofFace : faces(mesh, Mesh.ROOF)) {
+                        Point3D normal = calculateNormal(mesh.getVertex(roofFace[0]), mesh.getVertex(roofFace[1]), mesh.getVertex(roofFace[2]));
+                        assertTrue(normal.z > 0, "Roof planes should face upwards: " + name);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testLevelsOfDetail() {
+        RenderableBuildingElement dome = createTestBuilding(createRectangularBase(10, 10), RoofShapes.DOME, 0, 5, 15);
+        int full = dome.getGeometry(RenderableBuildingElement.LOD_FULL).triangles.length;
+        int simplified = dome.getGeometry(RenderableBuildingElement.LOD_SIMPLIFIED).triangles.length;
+        int box = dome.getGeometry(RenderableBuildingElement.LOD_BOX).triangles.length;
+        assertTrue(simplified < full, "Simplified dome should have fewer triangles");
+        assertTrue(box < simplified, "Box should have fewer triangles than simplified dome");
+        assertEquals(dome.height, dome.getGeometry(RenderableBuildingElement.LOD_BOX).maxZ, 1e-6);
+
+        // nothing to simplify, the same geometry is shared by all levels
+        RenderableBuildingElement flat = createTestBuilding(createRectangularBase(10, 10), RoofShapes.FLAT, 0, 0, 15);
+        assertSame(flat.getGeometry(), flat.getGeometry(RenderableBuildingElement.LOD_SIMPLIFIED));
+        assertSame(flat.getGeometry(), flat.getGeometry(RenderableBuildingElement.LOD_BOX));
+
+        // hysteresis: level is not switched back and forth near the threshold
+        assertEquals(RenderableBuildingElement.LOD_FULL, Renderer3D.selectLod(RenderableBuildingElement.LOD_FULL, 79));
+        assertEquals(RenderableBuildingElement.LOD_SIMPLIFIED, Renderer3D.selectLod(RenderableBuildingElement.LOD_FULL, 50));
+        assertEquals(RenderableBuildingElement.LOD_SIMPLIFIED, Renderer3D.selectLod(RenderableBuildingElement.LOD_SIMPLIFIED, 81));
+        assertEquals(RenderableBuildingElement.LOD_FULL, Renderer3D.selectLod(RenderableBuildingElement.LOD_SIMPLIFIED, 120));
+        assertEquals(RenderableBuildingElement.LOD_BOX, Renderer3D.selectLod(RenderableBuildingElement.LOD_FULL, 5));
+        assertEquals(RenderableBuildingElement.LOD_FULL, Renderer3D.selectLod(RenderableBuildingElement.LOD_BOX, 500));
+    }
+
+    @Test
+    void testAdaptiveTessellation() {
+        // the same dome shape, but a kiosk and a cathedral
+        RenderableBuildingElement kiosk = createTestBuilding(createRectangularBase(3, 3), RoofShapes.DOME, 0, 1.5, 4.5);
+        RenderableBuildingElement cathedral = createTestBuilding(createRectangularBase(40, 40), RoofShapes.DOME, 0, 20, 60);
+        // meshes are not kept by elements, so they are generated again, the way composeMesh() does it
+        Mesh kioskMesh = MeshWelder.weld(RoofShapes.DOME.getMesher().generate(kiosk));
+        Mesh cathedralMesh = MeshWelder.weld(RoofShapes.DOME.getMesher().generate(cathedral));
+        assertTrue(kioskMesh.getVertexCount() < cathedralMesh.getVertexCount(),
+                "Small dome should have fewer vertices than a large one");
+
+        // chord error of the chosen tessellation does not exceed the budget
+        for (double radius : new double[]{1, 5, 20, 100}) {
+            int segments = RoofGenerator.segmentsForChordError(radius, Math.PI / 2, RoofGenerator.FULL_CHORD_ERROR);
+            double chordError = radius * (1 - Math.cos(Math.PI / 2 / segments / 2));
+            assertTrue(chordError <= RoofGenerator.FULL_CHORD_ERROR + 1e-9, "radius " + radius + ": " + chordError);
+        }
+
+        RenderableBuildingElement round = createTestBuilding(createRectangularBase(30, 10), RoofShapes.ROUND, 0, 5, 15);
+        int full = round.getGeometry(RenderableBuildingElement.LOD_FULL).triangles.length;
+        int simplified = round.getGeometry(RenderableBuildingElement.LOD_SIMPLIFIED).triangles.length;
+        assertTrue(simplified < full, "Simplified round roof should have fewer triangles");
+    }
+
+    @Test
+    void testTriangulator() {
+        // star-shaped (concave) outer ring, large enough for z-order hashing, with two square holes
+        List<List<Point2D>> rings = new ArrayList<>();
+        List<Point2D> outer = new ArrayList<>();
+        int n = 200;
+        for (int i = 0; i < n; i++) {
+            double angle = 2 * Math.PI * i / n;
+            double radius = (i % 2 == 0) ? 50 : 40;
+            outer.add(new Point2D(radius * Math.cos(angle), radius * Math.sin(angle)));
+        }
+        rings.add(outer);
+        List<Point2D> hole1 = createRectangularBase(10, 10);
+        hole1.replaceAll(p -> new Point2D(p.x - 15, p.y));
+        List<Point2D> hole2 = createRectangularBase(10, 10);
+        hole2.replaceAll(p -> new Point2D(p.x + 15, p.y + 3));
+        rings.add(hole1);
+        rings.add(hole2);
+
+        List<Point2D> all = new ArrayList<>();
+        rings.forEach(all::addAll);
+        int[] triangles = Triangulator.triangulate(rings);
+        assertEquals((all.size() + 2 * (rings.size() - 1) - 2) * 3, triangles.length, "Number of triangles");
+
+        double expectedArea = Math.abs(signedArea(outer)) - 2 * 100;
+        double area = 0;
+        for (int t = 0; t < triangles.length; t += 3) {
+            double triangleArea = signedArea(List.of(all.get(triangles[t]), all.get(triangles[t + 1]), all.get(triangles[t + 2])));
+            assertTrue(triangleArea > 0, "Triangles should be counterclockwise, as the outer ring");
+            area += triangleArea;
+        }
+        assertEquals(expectedArea, area, 1e-6);
+    }
+
+    @Test
+    void testMeshWelding() {
+        // two squares with separate copies of the shared edge, and a face between the copies, which collapses
+        MeshBuilder builder = new MeshBuilder();
+        int a = builder.addVertex(0, 0, 0);
+        int b = builder.addVertex(1, 0, 0);
+        int c = builder.addVertex(1, 1, 0);
+        int d = builder.addVertex(0, 1, 0);
+        int b2 = builder.addVertex(1, 0, 0.0001);
+        int c2 = builder.addVertex(1, 1, 0);
+        int e = builder.addVertex(2, 0, 0);
+        int f = builder.addVertex(2, 1, 0);
+        builder.addRoofFace(a, b, c, d);
+        builder.addRoofFace(b2, e, f, c2);
+        builder.addWallFace(b, b2, c2, c);
+        Mesh welded = MeshWelder.weld(builder.build());
+        assertEquals(6, welded.getVertexCount());
+        assertEquals(2, welded.getFaceCount());
+        assertEquals(welded.getGroupStart(Mesh.WALL), welded.getGroupEnd(Mesh.WALL), "Degenerate wall should be removed");
+        assertArrayEquals(new int[]{1, 4, 5, 2}, welded.getFace(1));
+
+        // Counts per roof shape, for a regular building, a building without roof height and a footprint with
+        // a duplicated node: vertices and face indices before and after welding, and vertices of the geometry
+        // uploaded to GPU. Flat shading needs a vertex per face, so there faces share vertices only if they are coplanar.
+        Map<RoofShapes, int[]> expected = new HashMap<>();
+        expected.put(RoofShapes.FLAT, new int[]{35, 32, 114, 104, 104});
+        expected.put(RoofShapes.PYRAMIDAL, new int[]{29, 27, 104, 96, 96});
+        expected.put(RoofShapes.DOME, new int[]{133, 123, 520, 480, 480});
+        expected.put(RoofShapes.HALF_DOME, new int[]{185, 171, 728, 672, 600});
+        expected.put(RoofShapes.ONION, new int[]{107, 99, 416, 384, 384});
+        expected.put(RoofShapes.SKILLION, new int[]{26, 24, 78, 72, 72});
+        expected.put(RoofShapes.GABLED, new int[]{20, 20, 60, 60, 60});
+        expected.put(RoofShapes.HIPPED, new int[]{20, 20, 68, 68, 68});
+        expected.put(RoofShapes.MANSARD, new int[]{28, 28, 100, 100, 100});
+        expected.put(RoofShapes.ROUND, new int[]{76, 76, 236, 236, 228});
+        expected.put(RoofShapes.GAMBREL, new int[]{28, 28, 92, 92, 84});
+        expected.put(RoofShapes.SALTBOX, new int[]{24, 24, 80, 80, 72});
+        expected.put(RoofShapes.HALF_HIPPED, new int[]{28, 28, 92, 92, 84});
+        expected.put(RoofShapes.CROSS_GABLED, new int[]{26, 26, 96, 96, 88});
+        ArrayList<Point2D> duplicatedNode = createRectangularBase(25, 10);
+        duplicatedNode.add(2, duplicatedNode.get(1));
+        for (RoofShapes shape : RoofShapes.values()) {
+            int[] counts = new int[5];
+            List<RenderableBuildingElement> buildings = List.of(
+                    createTestBuilding(createRectangularBase(25, 10), shape, 0, 5, 10),
+                    createTestBuilding(createRectangularBase(25, 10), shape, 0, 0, 10),
+                    createTestBuilding(duplicatedNode, shape, 0, 5, 10));
+            for (RenderableBuildingElement building : buildings) {
+                Mesh mesh = shape.getMesher().generate(building);
+                if (mesh == null) {
+                    continue;
+                }
+                welded = MeshWelder.weld(mesh);
+                assertNoZeroLengthEdges(welded, shape.toString());
+                for (int face = 0; face < welded.getFaceCount(); face++) {
+                    assertTrue(welded.getFaceSize(face) >= 3, shape + ": degenerate face");
+                }
+                counts[0] += mesh.getVertexCount();
+                counts[1] += welded.getVertexCount();
+                counts[2] += indexCount(mesh);
+                counts[3] += indexCount(welded);
+                counts[4] += ElementGeometry.build(building, welded.triangulate()).getVertexCount();
+            }
+            assertArrayEquals(expected.get(shape), counts, shape.toString());
+        }
+    }
+
+    private static int indexCount(Mesh mesh) {
+        int count = 0;
+        for (int face = 0; face < mesh.getFaceCount(); face++) {
+            count += mesh.getFaceSize(face);
+        }
+        return count;
+    }
+
+    // volume enclosed by the mesh, positive if faces are oriented outwards
+    private static double signedVolume(Mesh mesh) {
+        double volume = 0;
+        for (int face = 0; face < mesh.getFaceCount(); face++) {
+            for (int t = 0; t < mesh.getTriangleIndexCount(face); t += 3) {
+                Point3D a = mesh.getVertex(mesh.getTriangleVertex(face, t));
+                Point3D b = mesh.getVertex(mesh.getTriangleVertex(face, t + 1));
+                Point3D c = mesh.getVertex(mesh.getTriangleVertex(face, t + 2));
+                volume += (a.x * (b.y * c.z - b.z * c.y) - a.y * (b.x * c.z - b.z * c.x) + a.z * (b.x * c.y - b.y * c.x)) / 6;
+            }
+        }
+        return volume;
+    }
+
+    private static List<Point3D> vertices(Mesh mesh) {
+        List<Point3D> result = new ArrayList<>();
+        for (int i = 0; i < mesh.getVertexCount(); i++) {
+            result.add(mesh.getVertex(i));
+        }
+        return result;
+    }
+
+    private static List<int[]> faces(Mesh mesh, int group) {
+        List<int[]> result = new ArrayList<>();
+        for (int face = mesh.getGroupStart(group); face < mesh.getGroupEnd(group); face++) {
+            result.add(mesh.getFace(face));
+        }
+        return result;
+    }
+
+    private static double signedArea(List<Point2D> ring) {
+        double sum = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            Point2D a = ring.get(i);
+            Point2D b = ring.get((i + 1) % ring.size());
+            sum += a.x * b.y - b.x * a.y;
+        }
+        return sum / 2;
+    }
+}
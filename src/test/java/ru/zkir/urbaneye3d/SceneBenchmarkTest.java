@@ -0,0 +1,286 @@
+package ru.zkir.urbaneye3d;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+import ru.zkir.urbaneye3d.utils.Contour;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+   Benchmarks are not run by default, since they take some time.
+   To run them: mvn test -P benchmark
+ */
+@Tag("benchmark")
+class SceneBenchmarkTest {
+
+    @BeforeAll
+    public static void setUp() {
+        Config.setPreferencesInstance(new Preferences());
+    }
+
+    static Way addRectangle(DataSet dataSet, double lat, double lon, double dLat, double dLon) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(new Node(new LatLon(lat, lon)));
+        nodes.add(new Node(new LatLon(lat, lon + dLon)));
+        nodes.add(new Node(new LatLon(lat + dLat, lon + dLon)));
+        nodes.add(new Node(new LatLon(lat + dLat, lon)));
+        for (Node node : nodes) {
+            dataSet.addPrimitive(node);
+        }
+        nodes.add(nodes.get(0));
+        Way way = new Way();
+        way.setNodes(nodes);
+        dataSet.addPrimitive(way);
+        return way;
+    }
+
+    // Synthetic city: a square grid of buildings, every second building has a building part inside.
+    static DataSet createSyntheticCity(int numberOfBuildings) {
+        DataSet dataSet = new DataSet();
+        int side = (int) Math.ceil(Math.sqrt(numberOfBuildings));
+        final double step = 0.0003; // about 30 m
+        final double size = 0.0002;
+
+        for (int i = 0; i < numberOfBuildings; i++) {
+            double lat = 55.0 + (i / side) * step;
+            double lon = 37.0 + (i % side) * step;
+            Way building = addRectangle(dataSet, lat, lon, size, size);
+            building.put("building", "yes");
+            building.put("building:levels", Integer.toString(1 + i % 9));
+            if (i % 2 == 0) {
+                Way part = addRectangle(dataSet, lat + size / 4, lon + size / 4, size / 2, size / 2);
+                part.put("building:part", "yes");
+                part.put("height", "20");
+                part.put("roof:shape", "gabled");
+            }
+        }
+        return dataSet;
+    }
+
+    // Multipolygon with a star-shaped outer ring (zigzag between radius 100 and 90 m), split into ways of 3 nodes.
+    // Members are shuffled and every second way is reversed, as in real data nobody keeps them in order.
+    static Relation createStarMultipolygon(int numberOfMembers, Random random) {
+        List<Node> ringNodes = new ArrayList<>();
+        for (int i = 0; i < 2 * numberOfMembers; i++) {
+            double angle = Math.PI * i / numberOfMembers;
+            double radius = i % 2 == 0 ? 0.0009 : 0.0008;
+            ringNodes.add(new Node(new LatLon(55.0 + radius * Math.sin(angle), 37.0 + radius * Math.cos(angle))));
+        }
+        List<RelationMember> members = new ArrayList<>();
+        for (int i = 0; i < numberOfMembers; i++) {
+            List<Node> nodes = new ArrayList<>();
+            for (int k = 0; k < 3; k++) {
+                nodes.add(ringNodes.get((2 * i + k) % ringNodes.size()));
+            }
+            if (i % 2 == 1) {
+                Collections.reverse(nodes);
+            }
+            Way way = new Way();
+            way.setNodes(nodes);
+            members.add(new RelationMember("outer", way));
+        }
+        Collections.shuffle(members, random);
+        Relation relation = new Relation();
+        relation.setMembers(members);
+        relation.put("type", "multipolygon");
+        relation.put("building", "yes");
+        return relation;
+    }
+
+    @Test
+    void benchmarkSceneBuildScaling() {
+        int[] sizes = {1000, 10000, 100000};
+        double[] times = new double[sizes.length];
+
+        //warm-up
+        new Scene().updateData(createSyntheticCity(1000));
+
+        for (int i = 0; i < sizes.length; i++) {
+            DataSet dataSet = createSyntheticCity(sizes[i]);
+            Scene scene = new Scene();
+            long start = System.nanoTime();
+            scene.updateData(dataSet);
+            times[i] = (System.nanoTime() - start) / 1e6;
+
+            // parent buildings are not rendered, so there are exactly numberOfBuildings elements
+            assertEquals(sizes[i], scene.renderableElements.size());
+            System.out.printf("Scene build, %d buildings: %.0f ms, %.1f us per building%n",
+                    sizes[i], times[i], times[i] * 1000 / sizes[i]);
+        }
+
+        // 10x more data should take about 10x more time. Quadratic algorithm would give 100x.
+        double ratio = times[2] / times[1];
+        assertTrue(ratio < 30, "Scene build time does not scale linearly: 100k/10k ratio is " + ratio);
+    }
+
+    @Test
+    void benchmarkMultipolygonAssembly() {
+        int[] sizes = {2000, 20000};
+        double[] times = new double[sizes.length];
+
+        //warm-up
+        new Contour(createStarMultipolygon(2000, new Random(1)), null);
+
+        for (int i = 0; i < sizes.length; i++) {
+            Relation relation = createStarMultipolygon(sizes[i], new Random(42));
+            long start = System.nanoTime();
+            Contour contour = new Contour(relation, null);
+            times[i] = (System.nanoTime() - start) / 1e6;
+
+            assertEquals(1, contour.outerRings.size());
+            assertEquals(2 * sizes[i], contour.outerRings.get(0).size());
+            System.out.printf("Multipolygon assembly, %d members: %.1f ms%n", sizes[i], times[i]);
+        }
+
+        // 10x more members should take about 10x more time, not 100x.
+        double ratio = times[1] / times[0];
+        assertTrue(ratio < 30, "Multipolygon assembly time does not scale linearly: 20k/2k ratio is " + ratio);
+    }
+
+    @Test
+    void benchmarkCompactStoreFootprint() {
+        DataSet dataSet = createSyntheticCity(10000);
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        long elementsSize = deepSize(new ArrayList<>(scene.getSnapshot()));
+
+        Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, true);
+        try {
+            Scene compactScene = new Scene();
+            compactScene.updateData(dataSet);
+            SceneSnapshot snapshot = compactScene.getSnapshot();
+            // store is counted together with the elements, they keep only their ids, heights and roof parameters.
+            // Store arrays are counted with their capacity: arenas are grown in advance, for in-place updates.
+            List<Object> compact = new ArrayList<>(snapshot);
+            compact.add(snapshot.store);
+            long compactSize = deepSize(compact);
+
+            System.out.printf("Scene footprint, %d elements: %.1f MB, compact store: %.1f MB (%.0f%%)%n",
+                    snapshot.size(), elementsSize / 1e6, compactSize / 1e6, 100.0 * compactSize / elementsSize);
+            assertTrue(compactSize < elementsSize, "Compact store does not reduce scene footprint");
+        } finally {
+            Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, false);
+        }
+    }
+
+    /*
+       Rough retained size of an object graph, the way JOL estimates it for a 64-bit JVM with compressed references:
+       12 bytes object header, 4 bytes per reference, 8 bytes alignment, 16 bytes array header.
+       JDK classes cannot be inspected reflectively, so they are counted by their declared fields,
+       collections and maps are traversed through their API. OSM primitives and enums are shared, they are not counted.
+     */
+    static long deepSize(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+        long total = 0;
+        while (!stack.isEmpty()) {
+            Object object = stack.pop();
+            Class<?> type = object.getClass();
+            if (!visited.add(object) || type.isEnum() || object instanceof Class || object instanceof OsmPrimitive) {
+                continue;
+            }
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> component = type.getComponentType();
+                total += align(16 + (long) length * fieldSize(component));
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        push(stack, Array.get(object, i));
+                    }
+                }
+                continue;
+            }
+
+            total += shallowSize(type);
+            if (object instanceof String) {
+                total += align(16 + ((String) object).length()); // latin-1 bytes
+            } else if (object instanceof Collection) {
+                Collection<?> collection = (Collection<?>) object;
+                total += align(16 + 4L * collection.size()); // backing array
+                for (Object item : collection) {
+                    push(stack, item);
+                }
+            } else if (object instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) object;
+                total += align(16 + 8L * map.size()) + 32L * map.size(); // table and entries, like HashMap
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    push(stack, entry.getKey());
+                    push(stack, entry.getValue());
+                }
+            } else if (!type.getName().startsWith("java")) {
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                            continue;
+                        }
+                        try {
+                            field.setAccessible(true);
+                            push(stack, field.get(object));
+                        } catch (ReflectiveOperationException | RuntimeException e) {
+                            // not accessible, the object is counted as a leaf
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    private static void push(ArrayDeque<Object> stack, Object object) {
+        if (object != null) {
+            stack.push(object);
+        }
+    }
+
+    private static long shallowSize(Class<?> type) {
+        long size = 12;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += fieldSize(field.getType());
+                }
+            }
+        }
+        return align(size);
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 4; // int, float, reference
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -3,13 +3,39 @@ package ru.zkir.urbaneye3d;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.io.OsmReader;
 import org.openstreetmap.josm.spi.preferences.Config;
+import ru.zkir.urbaneye3d.utils.Contour;
+import ru.zkir.urbaneye3d.utils.Frustum;
+import ru.zkir.urbaneye3d.utils.NodePoints;
 
 import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SceneTest {
@@ -124,7 +150,654 @@ class SceneTest {
 
     }
 
+    private Way findWayWithKey(DataSet dataSet, String key) {
+        for (Way way : dataSet.getWays()) {
+            if (way.hasKey(key)) {
+                return way;
+            }
+        }
+        throw new IllegalArgumentException("No way with key " + key);
+    }
+
+    @Test
+    /*
+        Incremental update: building:part tag is removed from the only part,
+        so the parent building should appear again.
+     */
+    void testIncrementalTagChange() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("building_with_part.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        assertEquals(1, scene.renderableElements.size());
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        Way building = findWayWithKey(dataSet, "building");
+        part.put("building:part", null);
+        scene.updatePrimitives(dataSet, Collections.singletonList(part));
+
+        assertEquals(1, scene.renderableElements.size());
+        assertEquals(building.getPrimitiveId(), scene.renderableElements.get(0).primitiveId);
+    }
+
+    @Test
+    /*
+        Incremental update: a node of the building part is moved outside the building.
+        Part becomes orphan, so both the building and the part should be rendered.
+        Only the node is reported, affected way should be found via referrers.
+     */
+    void testIncrementalNodeMoved() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("building_with_part.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        assertEquals(1, scene.renderableElements.size());
+        RenderableBuildingElement oldPartElement = scene.renderableElements.get(0);
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        Node node = part.getNode(1);
+        node.setCoor(new LatLon(55.752, 37.63));
+        scene.updatePrimitives(dataSet, Collections.singletonList(node));
+        assertEquals(2, scene.renderableElements.size());
+        assertFalse(scene.renderableElements.contains(oldPartElement), "Moved part should be re-meshed");
+
+        //and back again
+        node.setCoor(new LatLon(55.752, 37.618));
+        scene.updatePrimitives(dataSet, Collections.singletonList(node));
+        assertEquals(1, scene.renderableElements.size());
+    }
+
+    @Test
+    /*
+        Incremental update should touch only affected elements.
+        Elements of unrelated buildings are kept as they are.
+     */
+    void testIncrementalUpdateKeepsUnaffectedElements() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> oldElements = new ArrayList<>(scene.renderableElements);
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        part.put("roof:colour", "red");
+        scene.updatePrimitives(dataSet, Collections.singletonList(part));
+
+        assertEquals(oldElements.size(), scene.renderableElements.size());
+        int reused = 0;
+        for (RenderableBuildingElement element : scene.renderableElements) {
+            if (oldElements.contains(element)) {
+                reused++;
+            }
+        }
+        assertEquals(oldElements.size() - 1, reused, "Only the changed part should be re-meshed");
+    }
+
+    @Test
+    /*
+        Snapshot taken by the renderer must not change, when the scene is updated.
+        New snapshot is published instead.
+     */
+    void testSnapshotIsNotModifiedByUpdate() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("building_with_part.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> snapshot = scene.getSnapshot();
+        assertEquals(scene.renderableElements, snapshot);
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        part.put("building:part", null);
+        scene.updatePrimitives(dataSet, Collections.singletonList(part));
+
+        assertEquals(1, snapshot.size(), "Old snapshot should stay as it was");
+        assertEquals(part.getPrimitiveId(), snapshot.get(0).primitiveId);
+        assertEquals(scene.renderableElements, scene.getSnapshot());
+        assertTrue(scene.getSnapshot() != snapshot, "New snapshot should be published");
+    }
+
+    @Test
+    /*
+        Meshing is done after the dataset lock is released, so it must not read the dataset:
+        elements are created from the data collected by the prepare step.
+     */
+    void testMeshingDoesNotReadDataSet() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("building_with_part.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        RenderableBuildingElement oldElement = scene.renderableElements.get(0);
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        part.put("roof:colour", "red");
+        scene.preparePrimitives(dataSet, Collections.singletonList(part));
+        assertTrue(scene.getSnapshot().contains(oldElement), "Nothing is published before completeUpdate()");
+
+        // edit made after the lock is released, it will be picked by the next update
+        part.getNode(1).setCoor(new LatLon(55.752, 37.63));
+        scene.completeUpdate();
+
+        assertEquals(1, scene.renderableElements.size());
+        RenderableBuildingElement newElement = scene.renderableElements.get(0);
+        assertTrue(newElement != oldElement, "Changed part should be re-meshed");
+        assertEquals(oldElement.originX, newElement.originX, 1e-9, "Contour should be taken before the lock is released");
+        assertEquals(oldElement.originY, newElement.originY, 1e-9, "Contour should be taken before the lock is released");
+    }
+
+    @Test
+    /*
+        A storm of dataset events should result in a single scene update.
+     */
+    void testEventsAreCoalesced() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("building_with_part.osm");
+        Scene scene = new Scene();
+        Config.getPref().putInt(SceneBuilder.LATENCY_PREF_KEY, 500);
+        CountDownLatch updated = new CountDownLatch(1);
+        SceneBuilder sceneBuilder = new SceneBuilder(scene, updated::countDown);
+        try {
+            Way part = findWayWithKey(dataSet, "building:part");
+            sceneBuilder.rebuild(dataSet);
+            for (int i = 0; i < 99; i++) {
+                sceneBuilder.update(dataSet, Collections.singletonList(part));
+            }
+
+            assertTrue(updated.await(10, TimeUnit.SECONDS), "Scene was not updated");
+            assertEquals(100, sceneBuilder.getEventsReceived());
+            assertEquals(1, sceneBuilder.getUpdatesExecuted());
+            assertEquals(1, scene.getSnapshot().size());
+        } finally {
+            sceneBuilder.shutdown();
+            Config.getPref().putInt(SceneBuilder.LATENCY_PREF_KEY, SceneBuilder.DEFAULT_LATENCY);
+        }
+    }
+
+    @Test
+    /*
+        Full rebuild should reuse elements of unchanged primitives from the cache.
+     */
+    void testRebuildReusesCachedElements() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> oldElements = new ArrayList<>(scene.renderableElements);
+
+        scene.updateData(dataSet);
+        assertEquals(oldElements, scene.renderableElements, "Unchanged elements should be taken from the cache");
+        assertEquals(oldElements.size(), scene.elementCache.getHits());
+
+        Way part = findWayWithKey(dataSet, "building:part");
+        part.put("roof:colour", "red");
+        scene.updateData(dataSet);
+        assertEquals(oldElements.size(), scene.renderableElements.size());
+        for (RenderableBuildingElement element : scene.renderableElements) {
+            assertEquals(!element.primitiveId.equals(part.getPrimitiveId()), oldElements.contains(element));
+        }
+    }
+
+    @Test
+    /*
+        Elements in front of the camera are drawn, elements far away are culled.
+     */
+    void testFrustumCulling() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        SceneSnapshot snapshot = scene.getSnapshot();
+        assertFalse(snapshot.isEmpty());
+
+        // gluPerspective(45, 1, 10, 5000) and camera 500 m above the first element, looking down.
+        float f = (float) (1.0 / Math.tan(Math.toRadians(22.5)));
+        float[] projection = {f, 0, 0, 0, 0, f, 0, 0, 0, 0, -5010f / 4990f, -1, 0, 0, -2 * 5000f * 10f / 4990f, 0};
+        float[] modelview = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -500, 1};
+        Frustum frustum = new Frustum(projection, modelview);
+
+        RenderableBuildingElement first = snapshot.get(0);
+        double lonScale = Math.cos(Math.toRadians(first.origin.lat()));
+        int[] visible = new int[snapshot.size()];
+        int visibleCount = snapshot.bvh.cull(frustum, first.originX, first.originY, lonScale, visible);
+        assertTrue(visibleCount > 0 && visibleCount <= snapshot.size());
+        assertTrue(Arrays.stream(visible, 0, visibleCount).anyMatch(position -> position == 0));
+        assertEquals(visibleCount, Arrays.stream(visible, 0, visibleCount).distinct().count());
+
+        // 10 km away
+        visibleCount = snapshot.bvh.cull(frustum, first.originX + 10000, first.originY, lonScale, visible);
+        assertEquals(0, visibleCount);
+    }
+
+    @Test
+    /*
+        BVH finds the same elements as testing them one by one, after a full rebuild and after incremental updates,
+        which refit the tree of the previous snapshot: changed, added and removed buildings.
+     */
+    void testBvhRefit() {
+        DataSet dataSet = SceneBenchmarkTest.createSyntheticCity(400);
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        assertCullingMatchesElements(scene.getSnapshot());
+
+        List<Way> buildings = new ArrayList<>();
+        for (Way way : dataSet.getWays()) {
+            if (way.hasKey("building")) {
+                buildings.add(way);
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            Way building = buildings.get(i * 37);
+            building.put("building:levels", "12");
+            scene.updatePrimitives(dataSet, Collections.singletonList(building));
+            assertCullingMatchesElements(scene.getSnapshot());
+        }
+
+        Way added = SceneBenchmarkTest.addRectangle(dataSet, 55.001, 37.001, 0.0001, 0.0001);
+        added.put("building", "yes");
+        scene.updatePrimitives(dataSet, Collections.singletonList(added));
+        assertTrue(scene.getSnapshot().stream().anyMatch(element -> element.primitiveId.equals(added.getPrimitiveId())));
+        assertCullingMatchesElements(scene.getSnapshot());
+
+        Way removed = buildings.get(100);
+        removed.put("building", null);
+        scene.updatePrimitives(dataSet, Collections.singletonList(removed));
+        assertCullingMatchesElements(scene.getSnapshot());
+    }
+
+    private static void assertCullingMatchesElements(SceneSnapshot snapshot) {
+        float f = (float) (1.0 / Math.tan(Math.toRadians(22.5)));
+        float[] projection = {f, 0, 0, 0, 0, f, 0, 0, 0, 0, -5010f / 4990f, -1, 0, 0, -2 * 5000f * 10f / 4990f, 0};
+        float[] modelview = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -500, 1};
+        Frustum frustum = new Frustum(projection, modelview);
+
+        float[] box = new float[6];
+        double[] bounds = new double[6];
+        for (RenderableBuildingElement camera : List.of(snapshot.get(0), snapshot.get(snapshot.size() / 2))) {
+            double lonScale = Math.cos(Math.toRadians(camera.origin.lat()));
+            int[] visible = new int[snapshot.size()];
+            int visibleCount = snapshot.bvh.cull(frustum, camera.originX, camera.originY, lonScale, visible);
+            assertTrue(visibleCount < snapshot.size(), "Camera should not see the whole city");
+
+            int[] expected = IntStream.range(0, snapshot.size()).filter(i -> {
+                ElementBVH.computeElementBounds(snapshot.get(i), null, i, box, bounds, 0);
+                return ElementBVH.testBox(frustum, bounds, 0, camera.originX, camera.originY, lonScale) != Frustum.OUTSIDE;
+            }).toArray();
+            int[] actual = Arrays.copyOf(visible, visibleCount);
+            Arrays.sort(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    /*
+        In streaming mode only buildings in the area are built. Moving the area loads and evicts buildings.
+     */
+    void testStreamingArea() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> allElements = new ArrayList<>(scene.renderableElements);
+
+        // far away from everything
+        LatLon center = allElements.get(0).origin;
+        scene.setStreamingArea(Scene.getStreamingArea(new LatLon(center.lat() + 1, center.lon()), 1000));
+        scene.updateData(dataSet);
+        assertTrue(scene.getSnapshot().isEmpty());
+        assertEquals(0, scene.elementCache.size(), "Elements out of the area should not be cached");
+
+        scene.moveStreamingArea(dataSet, Scene.getStreamingArea(center, 1000));
+        assertEquals(allElements.size(), scene.getSnapshot().size());
+        for (int i = 0; i < allElements.size(); i++) {
+            assertEquals(allElements.get(i).primitiveId, scene.getSnapshot().get(i).primitiveId);
+        }
+
+        scene.moveStreamingArea(dataSet, Scene.getStreamingArea(new LatLon(center.lat(), center.lon() + 1), 1000));
+        assertTrue(scene.getSnapshot().isEmpty());
+        assertEquals(0, scene.elementCache.size(), "Elements which left the area should not be cached");
+
+        scene.moveStreamingArea(dataSet, null);
+        assertEquals(allElements.size(), scene.getSnapshot().size());
+    }
+
+    @Test
+    /*
+        Length tags can have units. Values which are not numbers are treated as missing.
+     */
+    void testLengthTagParsing() {
+        assertEquals(12.0, BuildingTags.parseLength("12"));
+        assertEquals(12.5, BuildingTags.parseLength("12.5 m"));
+        assertEquals(12.0, BuildingTags.parseLength("12m"));
+        assertEquals(12.0, BuildingTags.parseLength("12 approx."));
+        assertEquals(40 * 0.3048, BuildingTags.parseLength("40 ft"), 1e-9);
+        assertEquals(40 * 0.3048, BuildingTags.parseLength("40ft"), 1e-9);
+        assertEquals(40.5 * 0.3048, BuildingTags.parseLength("40'6\""), 1e-9);
+        assertTrue(Double.isNaN(BuildingTags.parseLength(null)));
+        assertTrue(Double.isNaN(BuildingTags.parseLength("tall")));
+        assertTrue(Double.isNaN(BuildingTags.parseLength("12;15")));
+    }
+
+    @Test
+    /*
+        Part shares a node with the building, which is dropped by simplification of the building contour
+        (nearly straight angle). Containment is checked on the original contour, so the part still belongs to the building.
+     */
+    void testPartOnSimplifiedWall() {
+        DataSet dataSet = new DataSet();
+        Node wallNode = new Node(new LatLon(54.99999, 37.0005)); // 1 m off the straight south wall
+        Node corner = new Node(new LatLon(55.0, 37.001));
+        List<Node> buildingNodes = new ArrayList<>(List.of(new Node(new LatLon(55.0, 37.0)), wallNode, corner,
+                new Node(new LatLon(55.001, 37.001)), new Node(new LatLon(55.001, 37.0))));
+        List<Node> partNodes = new ArrayList<>(List.of(wallNode, corner,
+                new Node(new LatLon(55.0005, 37.001)), new Node(new LatLon(55.0005, 37.0005))));
+        for (Node node : buildingNodes) {
+            dataSet.addPrimitive(node);
+        }
+        for (Node node : partNodes.subList(2, 4)) {
+            dataSet.addPrimitive(node);
+        }
+        buildingNodes.add(buildingNodes.get(0));
+        partNodes.add(partNodes.get(0));
+
+        Way building = new Way();
+        building.setNodes(buildingNodes);
+        building.put("building", "yes");
+        dataSet.addPrimitive(building);
+        Way part = new Way();
+        part.setNodes(partNodes);
+        part.put("building:part", "yes");
+        dataSet.addPrimitive(part);
+
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        assertEquals(1, scene.renderableElements.size());
+        assertEquals(part.getPrimitiveId(), scene.renderableElements.get(0).primitiveId);
+    }
+
+    @Test
+    /*
+        Ring assembly does not depend on the order of members. Broken ring (one way is missing) is closed by a straight segment.
+     */
+    void testBrokenMultipolygonRing() {
+        for (long seed = 0; seed < 5; seed++) {
+            Relation relation = SceneBenchmarkTest.createStarMultipolygon(40, new Random(seed));
+            Contour contour = new Contour(relation, null);
+            assertEquals(1, contour.outerRings.size());
+            assertEquals(80, contour.outerRings.get(0).size());
+
+            List<RelationMember> members = relation.getMembers();
+            members.remove(members.size() - 1);
+            relation.setMembers(members);
+            contour = new Contour(relation, null);
+            assertEquals(1, contour.outerRings.size());
+            assertEquals(79, contour.outerRings.get(0).size());
+        }
+    }
 
+    @Test
+    /*
+        Contours read during one update share the points of common nodes, coordinates are the same as without sharing.
+     */
+    void testSharedNodePoints() {
+        Relation relation = SceneBenchmarkTest.createStarMultipolygon(2000, new Random(1));
+        NodePoints points = new NodePoints();
+        Contour shared = new Contour(relation, null, points);
+        Contour plain = new Contour(relation, null);
+        assertEquals(plain.outerRings.get(0).size(), shared.outerRings.get(0).size());
+        for (int i = 0; i < plain.outerRings.get(0).size(); i++) {
+            assertEquals(plain.outerRings.get(0).get(i).x, shared.outerRings.get(0).get(i).x);
+            assertEquals(plain.outerRings.get(0).get(i).y, shared.outerRings.get(0).get(i).y);
+        }
+        assertEquals(4000, points.size());
+
+        Contour again = new Contour(relation, null, points);
+        assertSame(shared.outerRings.get(0).get(0), again.outerRings.get(0).get(0));
+        assertEquals(4000, points.size());
 
+        points.clear();
+        assertEquals(0, points.size());
+        assertNotSame(shared.outerRings.get(0).get(0), new Contour(relation, null, points).outerRings.get(0).get(0));
+    }
 
+    @Test
+    /*
+        Compact store mode: geometry is moved from the elements to the store, and stays the same.
+        Unaffected elements of an incremental update keep their store slots.
+     */
+    void testCompactStore() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> elements = new ArrayList<>(scene.getSnapshot());
+
+        Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, true);
+        try {
+            Scene compactScene = new Scene();
+            compactScene.updateData(dataSet);
+            assertCompactSnapshot(elements, compactScene.getSnapshot());
+
+            Way part = findWayWithKey(dataSet, "building:part");
+            part.put("roof:colour", "red");
+            compactScene.updatePrimitives(dataSet, Collections.singletonList(part));
+
+            Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, false);
+            scene.updatePrimitives(dataSet, Collections.singletonList(part));
+            assertCompactSnapshot(new ArrayList<>(scene.getSnapshot()), compactScene.getSnapshot());
+        } finally {
+            Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, false);
+        }
+    }
+
+    private static void assertCompactSnapshot(List<RenderableBuildingElement> expected, SceneSnapshot snapshot) {
+        CompactSceneStore store = snapshot.store;
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < expected.size(); i++) {
+            RenderableBuildingElement element = snapshot.get(i);
+            assertFalse(element.hasGeometry(), "Geometry should be handed over to the store");
+            assertNull(element.color, "Data copied to the store should be dropped from the element");
+            assertNull(element.origin, "Data copied to the store should be dropped from the element");
+            assertEquals(expected.get(i).originX, store.getOriginX(i), 1e-2);
+            assertEquals(expected.get(i).originY, store.getOriginY(i), 1e-2);
+            assertEquals(expected.get(i).height, store.getHeight(i), 1e-3);
+            assertEquals(expected.get(i).roofColor, store.getRoofColor(i));
+            for (int lod = RenderableBuildingElement.LOD_FULL; lod <= RenderableBuildingElement.LOD_BOX; lod++) {
+                ElementGeometry geometry = expected.get(i).getGeometry(lod);
+                int storeGeometry = store.getGeometry(i, lod);
+                assertEquals(geometry.triangles.length, store.getTriangleIndexCount(storeGeometry));
+                float[] vertices = new float[geometry.vertices.length];
+                System.arraycopy(store.vertices, store.vertexStarts[storeGeometry] * ElementGeometry.VERTEX_SIZE,
+                                 vertices, 0, vertices.length);
+                assertArrayEquals(geometry.vertices, vertices);
+                for (int k = 0; k < geometry.triangles.length; k++) {
+                    assertEquals(store.vertexStarts[storeGeometry] + geometry.triangles[k],
+                                 store.indices[store.triangleStarts[storeGeometry] + k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    /*
+        Compact store mode: an acquired snapshot is not changed by later updates, store slots it refers to are reused
+        only after it's released. Only geometries of the changed elements are written to the store.
+     */
+    void testCompactStoreSnapshotIsolation() {
+        DataSet dataSet = SceneBenchmarkTest.createSyntheticCity(400);
+        List<Way> buildings = new ArrayList<>();
+        for (Way way : dataSet.getWays()) {
+            if (way.hasKey("building")) {
+                buildings.add(way);
+            }
+        }
+
+        Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, true);
+        try {
+            Scene scene = new Scene();
+            scene.updateData(dataSet);
+            SceneSnapshot held = scene.acquireSnapshot();
+            List<float[]> heldContent = storeContent(held);
+            for (int i = 0; i < 5; i++) {
+                Way building = buildings.get(i * 37);
+                building.put("building:levels", Integer.toString(10 + i));
+                scene.updatePrimitives(dataSet, Collections.singletonList(building));
+            }
+            assertNotSame(held, scene.getSnapshot());
+            List<float[]> content = storeContent(held);
+            for (int k = 0; k < heldContent.size(); k++) {
+                assertArrayEquals(heldContent.get(k), content.get(k), "Held snapshot has been changed");
+            }
+            // vertices of the held elements which are evicted now, they can be reused after the release
+            Set<RenderableBuildingElement> current = Collections.newSetFromMap(new IdentityHashMap<>());
+            current.addAll(scene.getSnapshot());
+            BitSet evictedVertices = new BitSet();
+            for (int i = 0; i < held.size(); i++) {
+                if (!current.contains(held.get(i))) {
+                    for (int lod = RenderableBuildingElement.LOD_FULL; lod <= RenderableBuildingElement.LOD_BOX; lod++) {
+                        int geometry = held.store.getGeometry(i, lod);
+                        evictedVertices.set(held.store.vertexStarts[geometry],
+                                            held.store.vertexStarts[geometry] + held.store.vertexCounts[geometry]);
+                    }
+                }
+            }
+            assertFalse(evictedVertices.isEmpty());
+            held.release();
+
+            // standalone building: buildings with parts are not rendered themselves.
+            // It's written before the slots are freed (at the end of the update), next versions of it reuse them.
+            Way building = SceneBenchmarkTest.addRectangle(dataSet, 55.1, 37.1, 0.0001, 0.0001);
+            building.put("building", "yes");
+            scene.updatePrimitives(dataSet, Collections.singletonList(building));
+            CompactSceneStore store = scene.getSnapshot().store;
+            for (int i = 0; i < 20; i++) {
+                building.put("building:levels", Integer.toString(5 + i % 2));
+                scene.updatePrimitives(dataSet, Collections.singletonList(building));
+                CompactSceneStore next = scene.getSnapshot().store;
+                if (next.logGeneration == store.logGeneration) {
+                    int written = next.writeCount - store.writeCount;
+                    assertTrue(written > 0 && written <= 3, "Only the changed building should be written");
+                    if (i == 0) {
+                        for (int k = store.writeCount; k < next.writeCount; k++) {
+                            int firstVertex = next.writeLog[4 * k];
+                            int vertexCount = next.writeLog[4 * k + 1];
+                            assertEquals(vertexCount, evictedVertices.get(firstVertex, firstVertex + vertexCount).cardinality(),
+                                         "Slots of evicted elements should be reused");
+                        }
+                    }
+                }
+                store = next;
+            }
+
+            // all elements from the cache, after slots have been freed and reused
+            scene.updateData(dataSet);
+            Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, false);
+            Scene reference = new Scene();
+            reference.updateData(dataSet);
+            assertCompactSnapshot(new ArrayList<>(reference.getSnapshot()), scene.getSnapshot());
+        } finally {
+            Config.getPref().putBoolean(Scene.COMPACT_STORE_PREF_KEY, false);
+        }
+    }
+
+    // attributes, vertices and (relative) indices of each element and level of detail
+    private static List<float[]> storeContent(SceneSnapshot snapshot) {
+        CompactSceneStore store = snapshot.store;
+        List<float[]> content = new ArrayList<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            content.add(new float[]{(float) store.getHeight(i), store.getRoofColor(i).getRGB(), (float) store.getOriginX(i)});
+            for (int lod = RenderableBuildingElement.LOD_FULL; lod <= RenderableBuildingElement.LOD_BOX; lod++) {
+                int geometry = store.getGeometry(i, lod);
+                int vertexCount = store.vertexCounts[geometry];
+                int indexCount = store.triangleIndexCounts[geometry] + store.lineIndexCounts[geometry];
+                float[] data = new float[vertexCount * ElementGeometry.VERTEX_SIZE + indexCount];
+                System.arraycopy(store.vertices, store.vertexStarts[geometry] * ElementGeometry.VERTEX_SIZE,
+                                 data, 0, vertexCount * ElementGeometry.VERTEX_SIZE);
+                for (int k = 0; k < indexCount; k++) {
+                    data[vertexCount * ElementGeometry.VERTEX_SIZE + k] =
+                            store.indices[store.triangleStarts[geometry] + k] - store.vertexStarts[geometry];
+                }
+                content.add(data);
+            }
+        }
+        return content;
+    }
+
+    @Test
+    /*
+        Direct storage mode: geometry is in direct native-order buffers, and is the same as the one on heap.
+        Storage of evicted elements is reused, chunks are dropped when they are free or the scene is disposed.
+     */
+    void testDirectGeometryStorage() throws Exception {
+        DataSet dataSet = loadDataSetFromOsmFile("multipolygons_belonging.osm");
+        Scene scene = new Scene();
+        scene.updateData(dataSet);
+        List<RenderableBuildingElement> expected = new ArrayList<>(scene.getSnapshot());
+
+        Config.getPref().putBoolean(Scene.DIRECT_STORAGE_PREF_KEY, true);
+        try {
+            // cached elements of the other mode are not reused, even by an incremental update
+            scene.updatePrimitives(dataSet, Collections.emptyList());
+            for (RenderableBuildingElement element : scene.getSnapshot()) {
+                assertTrue(element.getGeometry().isDirect(), "Scene should be rebuilt when the storage mode is switched");
+            }
+
+            Scene directScene = new Scene();
+            directScene.updateData(dataSet);
+            SceneSnapshot snapshot = directScene.getSnapshot();
+            assertEquals(expected.size(), snapshot.size());
+            for (int i = 0; i < expected.size(); i++) {
+                for (int lod = RenderableBuildingElement.LOD_FULL; lod <= RenderableBuildingElement.LOD_BOX; lod++) {
+                    ElementGeometry heapGeometry = expected.get(i).getGeometry(lod);
+                    ElementGeometry geometry = snapshot.get(i).getGeometry(lod);
+                    assertTrue(geometry.isDirect() && geometry.vertices == null);
+                    assertTrue(geometry.getVertexData().isDirect());
+                    assertEquals(ByteOrder.nativeOrder(), geometry.getVertexData().order());
+                    assertEquals(ByteOrder.nativeOrder(), geometry.getIndexData().order());
+                    assertEquals(heapGeometry.vertices.length, geometry.getVertexData().remaining());
+                    assertEquals(heapGeometry.triangles.length + heapGeometry.lines.length, geometry.getIndexData().remaining());
+
+                    float[] vertices = new float[heapGeometry.vertices.length];
+                    geometry.copyVertices(vertices, 0);
+                    assertArrayEquals(heapGeometry.vertices, vertices);
+                    // attribute blocks are uploaded as they are, so they are checked directly
+                    int n = geometry.getVertexCount();
+                    for (int k = 0; k < 3 * n; k++) {
+                        int from = k / 3 * ElementGeometry.VERTEX_SIZE + k % 3;
+                        FloatBuffer data = geometry.getVertexData();
+                        assertEquals(heapGeometry.vertices[from + ElementGeometry.POSITION_OFFSET], data.get(ElementGeometry.DIRECT_POSITION_BLOCK * 3 * n + k));
+                        assertEquals(heapGeometry.vertices[from + ElementGeometry.NORMAL_OFFSET], data.get(ElementGeometry.DIRECT_NORMAL_BLOCK * 3 * n + k));
+                        assertEquals(heapGeometry.vertices[from + ElementGeometry.BASE_COLOR_OFFSET], data.get(ElementGeometry.DIRECT_BASE_COLOR_BLOCK * 3 * n + k));
+                        assertEquals(heapGeometry.vertices[from + ElementGeometry.LIT_COLOR_OFFSET], data.get(ElementGeometry.DIRECT_LIT_COLOR_BLOCK * 3 * n + k));
+                    }
+                    for (int k = 0; k < heapGeometry.triangles.length; k++) {
+                        assertEquals(heapGeometry.triangles[k], geometry.getTriangleIndex(k));
+                    }
+                    for (int k = 0; k < heapGeometry.lines.length; k++) {
+                        assertEquals(heapGeometry.lines[k], geometry.getLineIndex(k));
+                    }
+                    assertEquals(heapGeometry.maxZ, geometry.maxZ);
+                }
+            }
+
+            // storage of evicted elements is returned to the chunks of the scene and reused
+            Way building = SceneBenchmarkTest.addRectangle(dataSet, 55.1, 37.1, 0.0001, 0.0001);
+            building.put("building", "yes");
+            long allocated = 0;
+            long capacity = 0;
+            for (int i = 0; i < 10; i++) {
+                building.put("building:levels", Integer.toString(3 + i % 2));
+                directScene.updatePrimitives(dataSet, Collections.singletonList(building));
+                if (i == 1) {
+                    allocated = directScene.directStorage.getAllocatedBytes();
+                    capacity = directScene.directStorage.getCapacity();
+                }
+            }
+            assertEquals(allocated, directScene.directStorage.getAllocatedBytes(), "Storage of evicted elements should be freed");
+            assertEquals(capacity, directScene.directStorage.getCapacity());
+
+            directScene.dispose();
+            assertEquals(0, directScene.directStorage.getCapacity(), "Chunks should be dropped with the scene");
+
+            // chunk which becomes fully free is dropped
+            DirectStorage storage = new DirectStorage(1024);
+            long small = storage.allocate(512);
+            long large = storage.allocate(4096); // chunk of its own
+            assertEquals(1024 + 4096, storage.getCapacity());
+            storage.free(large, 4096);
+            assertEquals(1024, storage.getCapacity());
+            storage.free(small, 512);
+            assertEquals(0, storage.getCapacity());
+        } finally {
+            Config.getPref().putBoolean(Scene.DIRECT_STORAGE_PREF_KEY, false);
+        }
+    }
 }